@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One address of a remote endpoint with its Dispatch pool, circuit breaker, bulkhead and
+ * the statistics the load balancers select on. Health is tracked passively, an address
+ * that failed several calls in a row is skipped for a while.
+ */
+public class Backend {
+    private static final double EWMA_DECAY = 0.3;
+
+    private final String _address;
+    private final DispatchPool _dispatchPool;
+    private final CircuitBreaker _circuitBreaker;
+    private final Throttle _bulkhead;
+    private final int _unhealthyAfter;
+    private final long _unhealthyDuration;
+    private final AtomicInteger _outstanding = new AtomicInteger();
+    private volatile double _latency;
+    private volatile long _unhealthyUntil;
+    private int _consecutiveFailures;
+
+    /**
+     * Constructor.
+     * @param address the endpoint address
+     * @param dispatchPool the Dispatch pool bound to the address
+     * @param unhealthyAfter the number of consecutive failures after which the address is skipped
+     * @param unhealthyDuration how long an unhealthy address is skipped in milliseconds
+     */
+    public Backend(final String address, final DispatchPool dispatchPool, final int unhealthyAfter,
+            final long unhealthyDuration) {
+        this(address, dispatchPool, new CircuitBreaker(address), new Throttle(0, 0), unhealthyAfter, unhealthyDuration);
+    }
+
+    /**
+     * Constructor.
+     * @param address the endpoint address
+     * @param dispatchPool the Dispatch pool bound to the address
+     * @param circuitBreaker the circuit breaker of the address
+     * @param bulkhead the bulkhead limiting concurrent calls to the address
+     * @param unhealthyAfter the number of consecutive failures after which the address is skipped
+     * @param unhealthyDuration how long an unhealthy address is skipped in milliseconds
+     */
+    public Backend(final String address, final DispatchPool dispatchPool, final CircuitBreaker circuitBreaker,
+            final Throttle bulkhead, final int unhealthyAfter, final long unhealthyDuration) {
+        _address = address;
+        _dispatchPool = dispatchPool;
+        _circuitBreaker = circuitBreaker;
+        _bulkhead = bulkhead;
+        _unhealthyAfter = unhealthyAfter;
+        _unhealthyDuration = unhealthyDuration;
+    }
+
+    /**
+     * Records the start of a call.
+     */
+    public void started() {
+        _outstanding.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a call started with started().
+     * @param success false if the address could not be invoked
+     * @param duration the call duration in milliseconds
+     */
+    public void completed(final boolean success, final long duration) {
+        _outstanding.decrementAndGet();
+        synchronized (this) {
+            // Failed calls are often fast, only successful ones feed the latency average
+            if (success) {
+                _latency = (_latency == 0) ? duration : EWMA_DECAY * duration + (1 - EWMA_DECAY) * _latency;
+                _consecutiveFailures = 0;
+            } else if (++_consecutiveFailures >= _unhealthyAfter) {
+                _unhealthyUntil = System.currentTimeMillis() + _unhealthyDuration;
+                _consecutiveFailures = 0;
+            }
+        }
+    }
+
+    /**
+     * Records the end of a call started with started() that was cancelled, its outcome is unknown.
+     */
+    public void cancelled() {
+        _outstanding.decrementAndGet();
+    }
+
+    /**
+     * Checks if the address has not been marked unhealthy recently.
+     * @return true if the address may be selected
+     */
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= _unhealthyUntil;
+    }
+
+    /**
+     * Returns the endpoint address.
+     * @return the address
+     */
+    public String getAddress() {
+        return _address;
+    }
+
+    /**
+     * Returns the Dispatch pool bound to the address.
+     * @return the DispatchPool
+     */
+    public DispatchPool getDispatchPool() {
+        return _dispatchPool;
+    }
+
+    /**
+     * Returns the circuit breaker of the address, listeners can be registered to observe
+     * its state transitions.
+     * @return the CircuitBreaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return _circuitBreaker;
+    }
+
+    /**
+     * Returns the bulkhead limiting concurrent calls to the address, its limit can be
+     * changed at runtime.
+     * @return the Throttle
+     */
+    public Throttle getBulkhead() {
+        return _bulkhead;
+    }
+
+    /**
+     * Returns the number of calls in progress.
+     * @return the outstanding count
+     */
+    public int getOutstanding() {
+        return _outstanding.get();
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of successful call durations.
+     * @return the latency in milliseconds, 0 if no call succeeded yet
+     */
+    public double getLatency() {
+        return _latency;
+    }
+}
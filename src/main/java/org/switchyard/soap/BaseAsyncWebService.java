@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+ 
+package org.switchyard.soap;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.transform.Source;
+import javax.xml.ws.Service.Mode;
+import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.WebServiceProvider;
+import javax.xml.ws.handler.MessageContext;
+
+import org.switchyard.soap.util.SOAPUtil;
+
+import com.sun.xml.ws.api.server.AsyncProvider;
+import com.sun.xml.ws.api.server.AsyncProviderCallback;
+
+/**
+ * Asynchronous variant of BaseWebService. The container thread is released as soon as
+ * the request has been handed to SwitchYard and the response is written when the
+ * InboundHandler completes the exchange.
+ */
+@WebServiceProvider
+@ServiceMode(Mode.MESSAGE)
+public class BaseAsyncWebService implements AsyncProvider<Source> {
+    private InboundHandler _serviceConsumer;
+
+    protected BaseAsyncWebService() {
+    }
+
+    /**
+     * Sets the service handler.
+     * @param serviceConsumer the service handler.
+     */
+    public void setConsumer(final InboundHandler serviceConsumer) {
+        _serviceConsumer = serviceConsumer;
+    }
+
+    /**
+     * The Webservice implementation method, invokes the service handler. MIME attachments
+     * decoded by the XopFilter are passed on to the handler and attachments of the
+     * response are handed back to it.
+     * @param request the SOAP envelope
+     * @param callback the callback used to send the SOAP response envelope
+     * @param context the WebService context
+     */
+    public void invoke(final Source request, final AsyncProviderCallback<Source> callback, final WebServiceContext context) {
+        byte[] envelope;
+        try {
+            envelope = SOAPUtil.toBytes(request);
+        } catch (SOAPException se) {
+            callback.sendError(new WebServiceException(se));
+            return;
+        }
+        final MessageContext messageContext = context.getMessageContext();
+        _serviceConsumer.invokeAsync(envelope, SOAPUtil.getSOAPAction(messageContext),
+                XopFilter.getExchange(messageContext), new ResponseFuture<Source>() {
+            @Override
+            protected void done(final Source response) {
+                ThrottledFault.addRetryAfter(messageContext, response);
+                callback.send(response);
+            }
+        });
+    }
+}
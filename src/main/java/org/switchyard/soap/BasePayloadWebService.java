@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+ 
+package org.switchyard.soap;
+
+import javax.annotation.Resource;
+import javax.xml.soap.SOAPException;
+import javax.xml.transform.Source;
+import javax.xml.ws.Provider;
+import javax.xml.ws.Service.Mode;
+import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.WebServiceProvider;
+import javax.xml.ws.handler.MessageContext;
+
+import org.switchyard.soap.util.SOAPUtil;
+
+/**
+ * Payload mode variant of BaseWebService. Only the contents of the SOAP body are
+ * exchanged with the container, so no SAAJ envelope is ever built.
+ */
+@WebServiceProvider
+@ServiceMode(Mode.PAYLOAD)
+public class BasePayloadWebService implements Provider<Source> {
+    private InboundHandler _serviceConsumer;
+
+    @Resource
+    private WebServiceContext _context;
+
+    protected BasePayloadWebService() {
+    }
+
+    /**
+     * Sets the service handler.
+     * @param serviceConsumer the service handler.
+     */
+    public void setConsumer(final InboundHandler serviceConsumer) {
+        _serviceConsumer = serviceConsumer;
+    }
+
+    /**
+     * The Webservice implementation method, invokes the service handler. MIME attachments
+     * decoded by the XopFilter are passed on to the handler, responses have no attachments.
+     * @param request the SOAP body payload
+     * @return the SOAP response body payload
+     */
+    public Source invoke(final Source request) {
+        try {
+            MessageContext messageContext = (_context != null) ? _context.getMessageContext() : null;
+            XopFilter.XopExchange exchange = XopFilter.getExchange(messageContext);
+            Source response = _serviceConsumer.invokePayload(SOAPUtil.toBytes(request),
+                    SOAPUtil.getSOAPAction(messageContext), (exchange != null) ? exchange.getAttachments() : null);
+            ThrottledFault.addRetryAfter(messageContext, response);
+            return response;
+        } catch (SOAPException se) {
+            throw new WebServiceException(se);
+        }
+    }
+}
@@ -22,11 +22,16 @@
  
 package org.switchyard.soap;
 
-import javax.xml.soap.SOAPMessage;
+import javax.annotation.Resource;
+import javax.xml.transform.Source;
 import javax.xml.ws.Provider;
 import javax.xml.ws.Service.Mode;
 import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.WebServiceProvider;
+import javax.xml.ws.handler.MessageContext;
+
+import org.switchyard.soap.util.SOAPUtil;
 
 
 /**
@@ -35,9 +40,12 @@ import javax.xml.ws.WebServiceProvider;
  */
 @WebServiceProvider
 @ServiceMode(Mode.MESSAGE)
-public class BaseWebService implements Provider<SOAPMessage> {
+public class BaseWebService implements Provider<Source> {
     private InboundHandler _serviceConsumer;
 
+    @Resource
+    private WebServiceContext _context;
+
     protected BaseWebService() {
     }
 
@@ -51,10 +59,18 @@ public class BaseWebService implements Provider<SOAPMessage> {
 
     /**
      * The Webservice implementation method, invokes the service handler.
-     * @param request the SOAP request
-     * @return the SOAP response
+     * The envelope is handed to the handler as a Source so that the operation can be
+     * detected while it is read. MIME attachments decoded by the XopFilter are passed
+     * on to the handler, which hands attachments of the response back to it. Throttled
+     * requests get a Retry-After HTTP header.
+     * @param request the SOAP envelope
+     * @return the SOAP response envelope
      */
-    public SOAPMessage invoke(final SOAPMessage request) {
-        return _serviceConsumer.invoke(request);
+    public Source invoke(final Source request) {
+        MessageContext messageContext = (_context != null) ? _context.getMessageContext() : null;
+        Source response = _serviceConsumer.invoke(request, SOAPUtil.getSOAPAction(messageContext),
+                XopFilter.getExchange(messageContext));
+        ThrottledFault.addRetryAfter(messageContext, response);
+        return response;
     }
 }
@@ -0,0 +1,305 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker for a remote endpoint. Outcomes of the most recent calls are kept in a
+ * fixed size window. When the share of failed or slow calls in a full enough window
+ * reaches its threshold the breaker opens and calls are rejected until the open duration
+ * has passed. It then lets a few probe calls through, closing again if all of them
+ * succeed and reopening on the first failed or slow one.
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+
+    /**
+     * The states of a CircuitBreaker.
+     */
+    public enum State {
+        /** Calls are allowed and their outcomes recorded. */
+        CLOSED,
+        /** Calls are rejected. */
+        OPEN,
+        /** A limited number of probe calls are allowed. */
+        HALF_OPEN
+    }
+
+    /**
+     * Notified of state transitions.
+     */
+    public interface Listener {
+        /**
+         * Called after the breaker changed state.
+         * @param breaker the CircuitBreaker
+         * @param from the previous state
+         * @param to the new state
+         */
+        void stateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    private final String _name;
+    private final CopyOnWriteArrayList<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+    private double _failureRateThreshold = 50;
+    private double _slowCallRateThreshold = 100;
+    private volatile long _slowCallDuration = 60000;
+    private int _minimumCalls = 20;
+    private long _openDuration = 30000;
+    private int _halfOpenCalls = 5;
+    private byte[] _window = new byte[100];
+    private int _next;
+    private int _calls;
+    private int _failures;
+    private int _slowCalls;
+    private State _state = State.CLOSED;
+    private long _openUntil;
+    private int _probes;
+    private int _probeSuccesses;
+
+    /**
+     * Constructor.
+     * @param name the name used in log messages, usually the endpoint
+     */
+    public CircuitBreaker(final String name) {
+        _name = name;
+    }
+
+    /**
+     * Checks if a call may be made and reserves a probe slot when half open. Every allowed
+     * call must be followed by a call to record() or cancelled().
+     * @return false if the call must be rejected
+     */
+    public boolean allowRequest() {
+        State from;
+        synchronized (this) {
+            if (_state == State.CLOSED) {
+                return true;
+            }
+            if (_state == State.HALF_OPEN) {
+                if (_probes < _halfOpenCalls) {
+                    _probes++;
+                    return true;
+                }
+                return false;
+            }
+            if (System.currentTimeMillis() < _openUntil) {
+                return false;
+            }
+            from = transition(State.HALF_OPEN);
+            _probes = 1;
+            _probeSuccesses = 0;
+        }
+        fire(from, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Records the outcome of an allowed call.
+     * @param success false if the remote endpoint could not be invoked
+     * @param duration the call duration in milliseconds
+     */
+    public void record(final boolean success, final long duration) {
+        boolean slow = duration >= _slowCallDuration;
+        State from = null;
+        State to = null;
+        synchronized (this) {
+            if (_state == State.HALF_OPEN) {
+                if (_probes > 0) {
+                    _probes--;
+                }
+                if (!success || slow) {
+                    to = State.OPEN;
+                } else if (++_probeSuccesses >= _halfOpenCalls) {
+                    to = State.CLOSED;
+                }
+            } else if (_state == State.CLOSED) {
+                add(success, slow);
+                if (_calls >= _minimumCalls
+                        && (_failures * 100.0 / _calls >= _failureRateThreshold
+                            || _slowCalls * 100.0 / _calls >= _slowCallRateThreshold)) {
+                    to = State.OPEN;
+                }
+            }
+            if (to != null) {
+                from = transition(to);
+            }
+        }
+        if (to != null) {
+            fire(from, to);
+        }
+    }
+
+    /**
+     * Releases an allowed call that was cancelled before it completed. Its outcome is
+     * unknown and not recorded, but a probe slot it took while half open is given back.
+     */
+    public synchronized void cancelled() {
+        if (_state == State.HALF_OPEN && _probes > 0) {
+            _probes--;
+        }
+    }
+
+    private void add(final boolean success, final boolean slow) {
+        if (_calls == _window.length) {
+            byte evicted = _window[_next];
+            _failures -= evicted & 1;
+            _slowCalls -= (evicted >> 1) & 1;
+        } else {
+            _calls++;
+        }
+        byte outcome = (byte) ((success ? 0 : 1) | (slow ? 2 : 0));
+        _window[_next] = outcome;
+        _failures += outcome & 1;
+        _slowCalls += (outcome >> 1) & 1;
+        _next = (_next + 1) % _window.length;
+    }
+
+    private State transition(final State to) {
+        State from = _state;
+        _state = to;
+        if (to == State.OPEN) {
+            _openUntil = System.currentTimeMillis() + _openDuration;
+        } else if (to == State.CLOSED) {
+            _next = 0;
+            _calls = 0;
+            _failures = 0;
+            _slowCalls = 0;
+        }
+        return from;
+    }
+
+    private void fire(final State from, final State to) {
+        if (to == State.OPEN) {
+            LOGGER.warn("Circuit breaker for " + _name + " opened, rejecting calls for " + _openDuration + "ms");
+        } else {
+            LOGGER.info("Circuit breaker for " + _name + " changed from " + from + " to " + to);
+        }
+        for (Listener listener : _listeners) {
+            listener.stateChanged(this, from, to);
+        }
+    }
+
+    /**
+     * Registers a listener for state transitions.
+     * @param listener the Listener
+     */
+    public void addListener(final Listener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the Listener
+     */
+    public void removeListener(final Listener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Returns the name of this breaker.
+     * @return the name
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Checks if the breaker is open and still rejecting calls. Unlike allowRequest() this
+     * does not reserve a probe slot.
+     * @return true if a call would be rejected without probing
+     */
+    public synchronized boolean isOpen() {
+        return _state == State.OPEN && System.currentTimeMillis() < _openUntil;
+    }
+
+    /**
+     * Returns the current state.
+     * @return the State
+     */
+    public synchronized State getState() {
+        return _state;
+    }
+
+    /**
+     * Sets the percentage of failed calls that opens the breaker.
+     * @param threshold the percentage, 50 by default
+     */
+    public synchronized void setFailureRateThreshold(final double threshold) {
+        _failureRateThreshold = threshold;
+    }
+
+    /**
+     * Sets the percentage of slow calls that opens the breaker.
+     * @param threshold the percentage, 100 by default
+     */
+    public synchronized void setSlowCallRateThreshold(final double threshold) {
+        _slowCallRateThreshold = threshold;
+    }
+
+    /**
+     * Sets the duration from which a call counts as slow.
+     * @param duration the duration in milliseconds, 60000 by default
+     */
+    public void setSlowCallDuration(final long duration) {
+        _slowCallDuration = duration;
+    }
+
+    /**
+     * Sets the number of recorded calls needed before the rates are evaluated.
+     * @param minimumCalls the number of calls, 20 by default
+     */
+    public synchronized void setMinimumCalls(final int minimumCalls) {
+        _minimumCalls = minimumCalls;
+    }
+
+    /**
+     * Sets the number of most recent calls the rates are computed over. Resets the window.
+     * @param size the number of calls, 100 by default
+     */
+    public synchronized void setWindowSize(final int size) {
+        _window = new byte[size];
+        _next = 0;
+        _calls = 0;
+        _failures = 0;
+        _slowCalls = 0;
+    }
+
+    /**
+     * Sets how long the breaker stays open before probing.
+     * @param duration the duration in milliseconds, 30000 by default
+     */
+    public synchronized void setOpenDuration(final long duration) {
+        _openDuration = duration;
+    }
+
+    /**
+     * Sets the number of probe calls that must succeed to close the breaker.
+     * @param calls the number of calls, 5 by default
+     */
+    public synchronized void setHalfOpenCalls(final int calls) {
+        _halfOpenCalls = calls;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Negotiates HTTP compression of SOAP requests and responses. Request bodies with a
+ * gzip or deflate Content-Encoding are decompressed before they reach the JAX-WS
+ * endpoint, responses are compressed with the first encoding the client accepts unless
+ * they are known to be smaller than the threshold. Metadata requests are left to the
+ * MetadataFilter.
+ */
+public class CompressionFilter extends Filter {
+    private static final Logger LOGGER = Logger.getLogger(CompressionFilter.class);
+    /** The gzip content coding. */
+    public static final String GZIP = "gzip";
+    /** The deflate content coding, a zlib stream. */
+    public static final String DEFLATE = "deflate";
+    private static final String IDENTITY = "identity";
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private final long _threshold;
+
+    /**
+     * Constructor.
+     * @param threshold the response size in bytes below which responses are sent uncompressed
+     */
+    public CompressionFilter(final long threshold) {
+        _threshold = threshold;
+    }
+
+    @Override
+    public String description() {
+        return "Decompresses requests and compresses responses with gzip or deflate";
+    }
+
+    @Override
+    public void doFilter(final HttpExchange exchange, final Chain chain) throws IOException {
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            chain.doFilter(exchange);
+            return;
+        }
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        InputStream in = null;
+        if (contentEncoding != null && !IDENTITY.equalsIgnoreCase(contentEncoding.trim())) {
+            try {
+                in = decode(contentEncoding.trim(), exchange.getRequestBody());
+            } catch (IOException ioe) {
+                LOGGER.warn("Rejecting malformed " + contentEncoding.trim() + " request: " + ioe.getMessage());
+                exchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+                exchange.close();
+                return;
+            }
+            if (in == null) {
+                exchange.sendResponseHeaders(HTTP_UNSUPPORTED_MEDIA_TYPE, -1);
+                exchange.close();
+                return;
+            }
+        }
+        String encoding = negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (in == null && encoding == null) {
+            chain.doFilter(exchange);
+        } else {
+            chain.doFilter(new CompressingExchange(exchange, in, encoding));
+        }
+    }
+
+    /**
+     * Wraps a stream to decompress it.
+     * @param encoding the content coding
+     * @param in the compressed stream
+     * @return the decompressing stream, null if the coding is not supported
+     * @throws IOException If the gzip header could not be read
+     */
+    public static InputStream decode(final String encoding, final InputStream in) throws IOException {
+        if (GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in);
+        } else if (DEFLATE.equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(in);
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a stream to compress it. The stream must be closed to write the trailer.
+     * @param encoding the content coding
+     * @param out the stream receiving the compressed bytes
+     * @return the compressing stream, null if the coding is not supported
+     * @throws IOException If the gzip header could not be written
+     */
+    public static OutputStream encode(final String encoding, final OutputStream out) throws IOException {
+        if (GZIP.equalsIgnoreCase(encoding)) {
+            return new GZIPOutputStream(out);
+        } else if (DEFLATE.equalsIgnoreCase(encoding)) {
+            return new DeflaterOutputStream(out);
+        }
+        return null;
+    }
+
+    /**
+     * Picks the response encoding from an Accept-Encoding header, gzip is preferred
+     * over deflate when both are accepted. A * only applies to the codings that are
+     * not listed explicitly.
+     * @param acceptEncoding the header value, may be null
+     * @return gzip, deflate or null for an uncompressed response
+     */
+    static String negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Boolean gzip = null;
+        Boolean deflate = null;
+        Boolean any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ENGLISH);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException nfe) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Boolean.valueOf(accepted);
+            } else if (name.equals(DEFLATE)) {
+                deflate = Boolean.valueOf(accepted);
+            } else if (name.equals("*")) {
+                any = Boolean.valueOf(accepted);
+            }
+        }
+        if ((gzip != null) ? gzip.booleanValue() : Boolean.TRUE.equals(any)) {
+            return GZIP;
+        }
+        if ((deflate != null) ? deflate.booleanValue() : Boolean.TRUE.equals(any)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * An exchange with a decompressed request body and, once the response headers are
+     * sent, a compressed response body.
+     */
+    private final class CompressingExchange extends HttpExchangeWrapper {
+        private final String _encoding;
+        private InputStream _in;
+        private OutputStream _out;
+        private OutputStream _compressed;
+        private final OutputStream _body = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                target().write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                target().write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                target().flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                target().close();
+            }
+        };
+
+        /**
+         * Constructor.
+         * @param exchange the exchange
+         * @param in the decompressed request body, null if the request is not compressed
+         * @param encoding the response encoding, null for an uncompressed response
+         */
+        private CompressingExchange(final HttpExchange exchange, final InputStream in, final String encoding) {
+            super(exchange);
+            _in = in;
+            _encoding = encoding;
+        }
+
+        /**
+         * Returns the stream the response body is written to.
+         * @return the compressing stream if the response is compressed
+         */
+        private OutputStream target() {
+            if (_out != null) {
+                return _out;
+            }
+            return (_compressed != null) ? _compressed : getExchange().getResponseBody();
+        }
+
+        @Override
+        public void sendResponseHeaders(final int code, final long length) throws IOException {
+            // Responses with a known small size are not worth the CPU
+            if (_encoding != null && length >= 0 && (length == 0 || length >= _threshold)) {
+                getResponseHeaders().set("Content-Encoding", _encoding);
+                getResponseHeaders().add("Vary", "Accept-Encoding");
+                getExchange().sendResponseHeaders(code, 0);
+                _compressed = encode(_encoding, getExchange().getResponseBody());
+            } else {
+                getExchange().sendResponseHeaders(code, length);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (_compressed != null) {
+                    _compressed.close();
+                }
+            } catch (IOException ioe) {
+                // The client went away, closing the exchange releases the connection anyway
+                getExchange().close();
+                return;
+            }
+            getExchange().close();
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return (_in != null) ? _in : getExchange().getRequestBody();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return _body;
+        }
+
+        @Override
+        public void setStreams(final InputStream in, final OutputStream out) {
+            if (in != null) {
+                _in = in;
+            }
+            if (out != null) {
+                _out = out;
+            }
+        }
+    }
+}
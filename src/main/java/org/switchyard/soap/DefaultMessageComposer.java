@@ -24,6 +24,7 @@ package org.switchyard.soap;
 
 import java.util.Iterator;
 
+import javax.xml.soap.AttachmentPart;
 import javax.xml.soap.Node;
 import javax.xml.soap.SOAPBody;
 import javax.xml.soap.SOAPElement;
@@ -32,10 +33,12 @@ import javax.xml.soap.SOAPMessage;
 
 import org.switchyard.Message;
 import org.switchyard.MessageBuilder;
+import org.switchyard.soap.util.SOAPUtil;
 
 /**
  * The default implementation of MessageComposer simply copies the SOAP body into
- * the Message and SOAP headers into the Message's context.
+ * the Message and SOAP headers into the Message's context. MIME attachments are added
+ * to the Message by Content-ID.
  */
 public class DefaultMessageComposer implements MessageComposer {
 
@@ -75,6 +78,16 @@ public class DefaultMessageComposer implements MessageComposer {
             throw new SOAPException("Could not find SOAPElement in SOAPBody");
         }
 
+        final Iterator parts = soapMessage.getAttachments();
+        while (parts.hasNext()) {
+            final AttachmentPart part = (AttachmentPart) parts.next();
+            String contentId = SOAPUtil.stripContentId(part.getContentId());
+            if (contentId == null) {
+                contentId = "attachment" + message.getAttachmentMap().size();
+            }
+            message.addAttachment(contentId, part.getDataHandler().getDataSource());
+        }
+
         return message;
     }
 }
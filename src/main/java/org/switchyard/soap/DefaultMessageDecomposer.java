@@ -22,8 +22,24 @@
 
 package org.switchyard.soap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.SOAPConstants;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 
 import org.switchyard.Message;
 import org.switchyard.soap.util.SOAPUtil;
@@ -33,8 +49,25 @@ import org.w3c.dom.Node;
 /**
  * The default implementation of MessageDecomposer simply copies the Message body onto SOAP
  * and adds SOAP headers from the Message's context.
+ * DOM payloads are imported into a new SAAJ message. Serialized payloads that were never
+ * parsed, and envelopes written to a stream, go through a pre-built envelope skeleton
+ * instead, so the payload is not serialized and parsed again just to build the tree.
+ * Message attachments become MIME attachments with their name as Content-ID, services
+ * reference them from the payload with xop:Include elements.
  */
-public class DefaultMessageDecomposer implements MessageDecomposer {
+public class DefaultMessageDecomposer implements MessageDecomposer, PayloadMessageDecomposer {
+    private static final byte[] ENVELOPE_START;
+    private static final byte[] ENVELOPE_END;
+
+    static {
+        try {
+            ENVELOPE_START = ("<soap:Envelope xmlns:soap=\"" + SOAPConstants.URI_NS_SOAP_ENVELOPE + "\">"
+                    + "<soap:Body>").getBytes("UTF-8");
+            ENVELOPE_END = "</soap:Body></soap:Envelope>".getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
 
     /**
      * Extract the SOAPMessage from Message.
@@ -47,19 +80,132 @@ public class DefaultMessageDecomposer implements MessageDecomposer {
             throw new SOAPException("Failed to instantiate SOAP Message Factory");
         }
 
-        final SOAPMessage response = SOAPUtil.SOAP_MESSAGE_FACTORY.createMessage();
-        if (message != null) {
+        if (message == null) {
+            return SOAPUtil.SOAP_MESSAGE_FACTORY.createMessage();
+        }
+        final Object content = message.getContent();
+        final SOAPMessage soapMessage;
+        if (LazyPayload.getMappedContent(content) != null || LazyPayload.getPayloadSource(content) != null) {
+            // Never parsed, let SAAJ read the serialized payload once
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            decompose(message, out);
+            soapMessage = SOAPUtil.createMessage(out.toByteArray());
+        } else {
             final Element input = message.getContent(Element.class);
             if (input == null) {
                 throw new SOAPException("Null response from service");
             }
+            soapMessage = SOAPUtil.SOAP_MESSAGE_FACTORY.createMessage();
             try {
-                Node node = response.getSOAPBody().getOwnerDocument().importNode(input, true);
-                response.getSOAPBody().appendChild(node);
+                Node node = soapMessage.getSOAPBody().getOwnerDocument().importNode(input, true);
+                soapMessage.getSOAPBody().appendChild(node);
             } catch (Exception e) {
                 throw new SOAPException("Unable to parse SOAP Message", e);
             }
         }
-        return response;
+        final Map<String, DataSource> attachments = message.getAttachmentMap();
+        if (attachments != null) {
+            for (Map.Entry<String, DataSource> attachment : attachments.entrySet()) {
+                final AttachmentPart part = soapMessage.createAttachmentPart(new DataHandler(attachment.getValue()));
+                part.setContentId("<" + attachment.getKey() + ">");
+                soapMessage.addAttachmentPart(part);
+            }
+        }
+        return soapMessage;
+    }
+
+    /**
+     * Writes the SOAP envelope of a Message to a stream without building a SAAJ tree.
+     * Payloads in memory-mapped files are copied from the mapping, attachments are not written.
+     * @param message a Message to be converted
+     * @param out the stream receiving the envelope, not closed
+     * @throws SOAPException If the Message has no content or the envelope could not be written
+     */
+    public void decompose(final Message message, final OutputStream out) throws SOAPException {
+        final Object content = message.getContent();
+        if (content == null) {
+            throw new SOAPException("Null response from service");
+        }
+        try {
+            out.write(ENVELOPE_START, 0, ENVELOPE_START.length);
+            final MappedContent mapped = LazyPayload.getMappedContent(content);
+            final PayloadSource payload = LazyPayload.getPayloadSource(content);
+            if (mapped != null) {
+                copy(mapped.getInputStream(), out);
+            } else if (payload != null) {
+                // Never parsed, copy the serialized payload as is
+                final byte[] bytes = payload.getBytes();
+                out.write(bytes, 0, bytes.length);
+            } else {
+                SOAPUtil.writeElement(message.getContent(Element.class), out);
+            }
+            out.write(ENVELOPE_END, 0, ENVELOPE_END.length);
+        } catch (IOException ioe) {
+            throw new SOAPException("Unable to write SOAP envelope", ioe);
+        }
+    }
+
+    /**
+     * Returns the SOAP envelope of a Message as a stream that serializes the payload as it is
+     * read, so the envelope can be written out before it is complete and is never held in
+     * memory as a whole. Attachments are not written.
+     * @param message a Message to be converted
+     * @return the stream of the envelope
+     * @throws SOAPException If the Message has no content
+     */
+    public InputStream openEnvelope(final Message message) throws SOAPException {
+        final Object content = message.getContent();
+        if (content == null) {
+            throw new SOAPException("Null response from service");
+        }
+        final MappedContent mapped = LazyPayload.getMappedContent(content);
+        final PayloadSource payload = LazyPayload.getPayloadSource(content);
+        if (mapped != null) {
+            return envelope(mapped.getInputStream());
+        } else if (payload != null) {
+            return envelope(new ByteArrayInputStream(payload.getBytes()));
+        }
+        return envelope(new ElementInputStream(message.getContent(Element.class)));
+    }
+
+    /**
+     * Wraps a serialized payload into a SOAP envelope as it is read.
+     * @param payload the serialized body payload
+     * @return the stream of the envelope
+     */
+    static InputStream envelope(final InputStream payload) {
+        return new SequenceInputStream(new ByteArrayInputStream(ENVELOPE_START),
+                new SequenceInputStream(payload, new ByteArrayInputStream(ENVELOPE_END)));
+    }
+
+    /**
+     * Copies a stream.
+     * @param in the source, not closed
+     * @param out the target, not closed
+     * @throws IOException If a stream could not be read or written
+     */
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            out.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Extract the SOAP body payload from Message.
+     * @param message a Message to be converted
+     * @return the SOAP body payload
+     * @throws SOAPException If the payload could not be created.
+     */
+    public Source decomposePayload(final Message message) throws SOAPException {
+        final Object content = (message != null) ? message.getContent() : null;
+        if (content == null) {
+            throw new SOAPException("Null response from service");
+        }
+        final PayloadSource payload = LazyPayload.getPayloadSource(content);
+        if (payload != null) {
+            return payload.getSource();
+        }
+        return new DOMSource(message.getContent(Element.class));
     }
 }
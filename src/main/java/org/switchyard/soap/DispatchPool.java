@@ -0,0 +1,331 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.wsdl.Definition;
+import javax.wsdl.Port;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.transform.Source;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Service;
+import javax.xml.ws.soap.AddressingFeature;
+import javax.xml.ws.soap.MTOMFeature;
+
+import org.apache.log4j.Logger;
+import org.switchyard.soap.util.WSDLUtil;
+
+/**
+ * Bounded pool of Dispatch clients for one WSDL service and port. A Dispatch is not
+ * guaranteed to be thread-safe, so each invocation borrows its own instance. Pools are
+ * shared by all OutboundHandlers targeting the same WSDL and endpoint address and are
+ * reference counted, the last handler to close a pool discards it.
+ */
+public final class DispatchPool {
+    private static final Logger LOGGER = Logger.getLogger(DispatchPool.class);
+    private static final Map<String, DispatchPool> POOLS = new HashMap<String, DispatchPool>();
+    // The chunked streaming property of the standalone and the JDK internal JAX-WS RI
+    private static final String[] CHUNK_SIZE_PROPERTIES = {"com.sun.xml.ws.transport.http.client.streaming.chunk.size",
+        "com.sun.xml.internal.ws.transport.http.client.streaming.chunk.size"};
+    private static final int STREAMING_CHUNK_SIZE = 8192;
+
+    private final String _key;
+    private final String _wsdlLocation;
+    private final BlockingQueue<Dispatch<SOAPMessage>> _idle;
+    private final int _size;
+    private final String _address;
+    private final boolean _mtom;
+    private Port _port;
+    private OperationIndex _operations;
+    private Service _service;
+    private QName _portName;
+    private final AtomicLong _borrows = new AtomicLong();
+    private final AtomicLong _waitNanos = new AtomicLong();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private int _references;
+
+    private DispatchPool(final String key, final String wsdlLocation, final String address, final int size, final boolean mtom) {
+        _key = key;
+        _wsdlLocation = wsdlLocation;
+        _address = address;
+        _size = size;
+        _mtom = mtom;
+        _idle = new ArrayBlockingQueue<Dispatch<SOAPMessage>>(size);
+    }
+
+    /**
+     * Reads the WSDL and creates the Dispatch instances, unless an earlier caller already did.
+     * Only callers of the same pool wait for each other.
+     * @throws Exception If the WSDL could not be read or the Dispatch instances created
+     */
+    private synchronized void init() throws Exception {
+        if (_service != null) {
+            return;
+        }
+        Definition definition = WSDLUtil.readWSDL(_wsdlLocation);
+        // Only first service and port for now
+        javax.wsdl.Service wsdlService = (javax.wsdl.Service) definition.getServices().values().iterator().next();
+        Port port = (Port) wsdlService.getPorts().values().iterator().next();
+        QName portName = new QName(definition.getTargetNamespace(), port.getName());
+        Service service = Service.create(new URL(_wsdlLocation), wsdlService.getQName());
+        for (int i = 0; i < _size; i++) {
+            // this does not return a proper qualified Fault element and has no Detail so defering for now
+            // bp.getRequestContext().put("jaxws.response.throwExceptionIfSOAPFault", Boolean.FALSE);
+            Dispatch<SOAPMessage> dispatch = service.createDispatch(portName, SOAPMessage.class, Service.Mode.MESSAGE,
+                    new AddressingFeature(false, false), new MTOMFeature(_mtom));
+            if (_address != null) {
+                dispatch.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, _address);
+            }
+            _idle.add(dispatch);
+        }
+        _port = port;
+        _operations = new OperationIndex(port);
+        _portName = portName;
+        _service = service;
+    }
+
+    /**
+     * Creates a Dispatch for large messages outside of the pool. It exchanges envelopes as
+     * Sources and sends requests with chunked transfer encoding, so that neither the
+     * request nor the response is buffered or built as a SAAJ tree.
+     * @return the Dispatch
+     */
+    public Dispatch<Source> createStreamingDispatch() {
+        Dispatch<Source> dispatch = _service.createDispatch(_portName, Source.class, Service.Mode.MESSAGE,
+                new AddressingFeature(false, false), new MTOMFeature(_mtom));
+        if (_address != null) {
+            dispatch.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, _address);
+        }
+        for (String property : CHUNK_SIZE_PROPERTIES) {
+            dispatch.getRequestContext().put(property, Integer.valueOf(STREAMING_CHUNK_SIZE));
+        }
+        return dispatch;
+    }
+
+    /**
+     * Returns the pool for the first service and port of a WSDL, creating it if this is
+     * the first reference. Every call must be matched by a call to close().
+     * @param wsdlLocation the WSDL URL
+     * @param size the number of Dispatch instances, only used when the pool is created
+     * @return the shared DispatchPool
+     * @throws SOAPException If the WSDL could not be read or the Dispatch instances created
+     */
+    public static DispatchPool acquire(final String wsdlLocation, final int size) throws SOAPException {
+        return acquire(wsdlLocation, null, size);
+    }
+
+    /**
+     * Returns the pool for the first service and port of a WSDL bound to an endpoint address,
+     * creating it if this is the first reference. Every call must be matched by a call to close().
+     * @param wsdlLocation the WSDL URL
+     * @param address the endpoint address, null for the address in the WSDL port
+     * @param size the number of Dispatch instances, only used when the pool is created
+     * @return the shared DispatchPool
+     * @throws SOAPException If the WSDL could not be read or the Dispatch instances created
+     */
+    public static DispatchPool acquire(final String wsdlLocation, final String address, final int size) throws SOAPException {
+        return acquire(wsdlLocation, address, size, false);
+    }
+
+    /**
+     * Returns the pool for the first service and port of a WSDL bound to an endpoint address,
+     * creating it if this is the first reference. Every call must be matched by a call to close().
+     * @param wsdlLocation the WSDL URL
+     * @param address the endpoint address, null for the address in the WSDL port
+     * @param size the number of Dispatch instances, only used when the pool is created
+     * @param mtom true to send attachments of requests as an MTOM/XOP package
+     * @return the shared DispatchPool
+     * @throws SOAPException If the WSDL could not be read or the Dispatch instances created
+     */
+    public static DispatchPool acquire(final String wsdlLocation, final String address, final int size,
+            final boolean mtom) throws SOAPException {
+        String key = wsdlLocation;
+        if (address != null) {
+            key += "@" + address;
+        }
+        if (mtom) {
+            key += ";mtom";
+        }
+        DispatchPool pool;
+        synchronized (POOLS) {
+            pool = POOLS.get(key);
+            if (pool == null) {
+                pool = new DispatchPool(key, wsdlLocation, address, size, mtom);
+                POOLS.put(key, pool);
+            } else if (pool._size != size) {
+                LOGGER.warn("Dispatch pool for " + key + " is shared with size " + pool._size + ", ignoring size " + size);
+            }
+            pool._references++;
+        }
+        boolean initialized = false;
+        try {
+            pool.init();
+            initialized = true;
+            return pool;
+        } catch (SOAPException se) {
+            throw se;
+        } catch (Exception e) {
+            throw new SOAPException(e);
+        } finally {
+            if (!initialized) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Releases a reference obtained from acquire().
+     */
+    public void close() {
+        synchronized (POOLS) {
+            if (--_references == 0) {
+                POOLS.remove(_key);
+                _idle.clear();
+            }
+        }
+    }
+
+    /**
+     * Borrows a Dispatch, waiting for one to be returned if all are in use.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the Dispatch, to be handed back with giveBack()
+     * @throws SOAPException If none became available in time or the wait was interrupted
+     */
+    public Dispatch<SOAPMessage> borrow(final long timeout) throws SOAPException {
+        long start = System.nanoTime();
+        Dispatch<SOAPMessage> dispatch = _idle.poll();
+        try {
+            if (dispatch == null) {
+                dispatch = _idle.poll(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SOAPException("Interrupted while waiting for a Dispatch to " + _key);
+        }
+        long waited = System.nanoTime() - start;
+        _borrows.incrementAndGet();
+        _waitNanos.addAndGet(waited);
+        long max = _maxWaitNanos.get();
+        while (waited > max && !_maxWaitNanos.compareAndSet(max, waited)) {
+            max = _maxWaitNanos.get();
+        }
+        if (dispatch == null) {
+            _timeouts.incrementAndGet();
+            throw new SOAPException("Timed out after " + timeout + "ms waiting for a Dispatch to " + _key
+                    + ", all " + _size + " are in use");
+        }
+        return dispatch;
+    }
+
+    /**
+     * Returns a borrowed Dispatch to the pool.
+     * @param dispatch the Dispatch
+     */
+    public void giveBack(final Dispatch<SOAPMessage> dispatch) {
+        _idle.offer(dispatch);
+    }
+
+    /**
+     * Returns the WSDL port the Dispatch instances are bound to.
+     * @return the Port
+     */
+    public Port getPort() {
+        return _port;
+    }
+
+    /**
+     * Returns the operations of the WSDL port.
+     * @return the OperationIndex
+     */
+    public OperationIndex getOperations() {
+        return _operations;
+    }
+
+    /**
+     * Returns the number of Dispatch instances.
+     * @return the pool size
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns the number of Dispatch instances not currently borrowed.
+     * @return the idle count
+     */
+    public int getIdle() {
+        return _idle.size();
+    }
+
+    /**
+     * Returns the number of borrow calls, including those that timed out.
+     * @return the borrow count
+     */
+    public long getBorrowCount() {
+        return _borrows.get();
+    }
+
+    /**
+     * Returns the number of borrow calls that timed out.
+     * @return the timeout count
+     */
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    /**
+     * Returns the total time spent waiting in borrow().
+     * @return the wait time in milliseconds
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_waitNanos.get());
+    }
+
+    /**
+     * Returns the average time spent waiting in borrow().
+     * @return the average wait time in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long borrows = _borrows.get();
+        return (borrows > 0) ? _waitNanos.get() / 1000000.0 / borrows : 0;
+    }
+
+    /**
+     * Returns the longest time spent waiting in borrow().
+     * @return the maximum wait time in milliseconds
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_maxWaitNanos.get());
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.switchyard.soap.util.XMLHelper;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Comment;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+
+/**
+ * Serializes a DOM Element as it is read. The tree is walked a chunk at a time, so a reader
+ * sees the first bytes before the element has been serialized and only a chunk is held
+ * in memory. Namespaces in scope of the element are declared on it, as it is taken out of
+ * its document.
+ */
+final class ElementInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Element _element;
+    private final Chunk _chunk = new Chunk();
+    private final List<Map<String, String>> _scopes = new ArrayList<Map<String, String>>();
+    private XMLStreamWriter _writer;
+    private int _pos;
+    private Node _node;
+    private final Map<String, String> _generatedPrefixes = new HashMap<String, String>();
+
+    /**
+     * Constructor.
+     * @param element the element to serialize
+     */
+    ElementInputStream(final Element element) {
+        _element = element;
+        _node = element;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return _chunk.bytes()[_pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, _chunk.size() - _pos);
+        System.arraycopy(_chunk.bytes(), _pos, b, off, count);
+        _pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return _chunk.size() - _pos;
+    }
+
+    /**
+     * Serializes the next chunk once the current one has been read.
+     * @return false at the end of the element
+     * @throws IOException If the element could not be serialized
+     */
+    private boolean fill() throws IOException {
+        while (_pos == _chunk.size()) {
+            if (_node == null) {
+                return false;
+            }
+            _chunk.reset();
+            _pos = 0;
+            try {
+                if (_writer == null) {
+                    _writer = XMLHelper.getXMLStreamWriter(_chunk, "UTF-8");
+                }
+                while (_node != null && _chunk.size() < CHUNK_SIZE) {
+                    write(_node);
+                    _writer.flush();
+                }
+                if (_node == null) {
+                    _writer.close();
+                }
+            } catch (XMLStreamException xse) {
+                IOException ioe = new IOException("Unable to serialize " + _element.getNodeName());
+                ioe.initCause(xse);
+                throw ioe;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a node and moves on to the next one, an element is entered if it has children.
+     * @param node the node
+     * @throws XMLStreamException If the node could not be written
+     */
+    private void write(final Node node) throws XMLStreamException {
+        if (node instanceof Element) {
+            startElement((Element) node);
+            if (node.hasChildNodes()) {
+                _node = node.getFirstChild();
+                return;
+            }
+            endElement();
+        } else if (node instanceof CDATASection) {
+            _writer.writeCData(((CDATASection) node).getData());
+        } else if (node instanceof Text) {
+            _writer.writeCharacters(((Text) node).getData());
+        } else if (node instanceof Comment) {
+            _writer.writeComment(((Comment) node).getData());
+        } else if (node instanceof ProcessingInstruction) {
+            ProcessingInstruction pi = (ProcessingInstruction) node;
+            _writer.writeProcessingInstruction(pi.getTarget(), pi.getData());
+        } else if (node instanceof EntityReference) {
+            _writer.writeEntityRef(node.getNodeName());
+        }
+        Node current = node;
+        while (current != _element && current.getNextSibling() == null) {
+            current = current.getParentNode();
+            endElement();
+        }
+        _node = (current != _element) ? current.getNextSibling() : null;
+    }
+
+    /**
+     * Writes a start tag, declaring the namespaces that are not in scope yet.
+     * @param element the element
+     * @throws XMLStreamException If the tag could not be written
+     */
+    private void startElement(final Element element) throws XMLStreamException {
+        String prefix = (element.getPrefix() != null) ? element.getPrefix() : "";
+        String namespace = (element.getNamespaceURI() != null) ? element.getNamespaceURI() : "";
+        _writer.writeStartElement(prefix, localName(element), namespace);
+        Map<String, String> declared = new LinkedHashMap<String, String>();
+        if (element == _element) {
+            for (Node node = element.getParentNode(); node instanceof Element; node = node.getParentNode()) {
+                Map<String, String> inherited = declarations((Element) node);
+                inherited.keySet().removeAll(declared.keySet());
+                declared.putAll(inherited);
+            }
+        }
+        declared.putAll(declarations(element));
+        if (!namespace.equals(lookup(declared, prefix))) {
+            declared.put(prefix, namespace);
+        }
+        List<Attr> attributes = new ArrayList<Attr>();
+        NamedNodeMap attributeMap = element.getAttributes();
+        for (int i = 0; i < attributeMap.getLength(); i++) {
+            Attr attribute = (Attr) attributeMap.item(i);
+            if (!isDeclaration(attribute)) {
+                attributes.add(attribute);
+                String attrNamespace = attribute.getNamespaceURI();
+                if (attrNamespace != null && attrNamespace.length() > 0
+                        && !XMLConstants.XML_NS_URI.equals(attrNamespace)
+                        && !attrNamespace.equals(lookup(declared, attributePrefix(attribute)))) {
+                    declared.put(attributePrefix(attribute), attrNamespace);
+                }
+            }
+        }
+        for (Map.Entry<String, String> ns : declared.entrySet()) {
+            if (ns.getKey().length() == 0) {
+                _writer.writeDefaultNamespace(ns.getValue());
+            } else {
+                _writer.writeNamespace(ns.getKey(), ns.getValue());
+            }
+        }
+        for (Attr attribute : attributes) {
+            String attrNamespace = attribute.getNamespaceURI();
+            if (attrNamespace == null || attrNamespace.length() == 0) {
+                _writer.writeAttribute(attribute.getName(), attribute.getValue());
+            } else {
+                _writer.writeAttribute(attributePrefix(attribute), attrNamespace, localName(attribute), attribute.getValue());
+            }
+        }
+        _scopes.add(declared);
+    }
+
+    /**
+     * Writes an end tag.
+     * @throws XMLStreamException If the tag could not be written
+     */
+    private void endElement() throws XMLStreamException {
+        _writer.writeEndElement();
+        _scopes.remove(_scopes.size() - 1);
+    }
+
+    /**
+     * Returns the namespace a prefix is bound to in the output.
+     * @param declared the declarations of the current element
+     * @param prefix the prefix, empty for the default namespace
+     * @return the namespace, empty for none
+     */
+    private String lookup(final Map<String, String> declared, final String prefix) {
+        String namespace = declared.get(prefix);
+        for (int i = _scopes.size() - 1; namespace == null && i >= 0; i--) {
+            namespace = _scopes.get(i).get(prefix);
+        }
+        return (namespace != null) ? namespace : ((prefix.length() == 0) ? "" : null);
+    }
+
+    /**
+     * Returns the prefix of a namespaced attribute, one is made up if it has none.
+     * @param attribute the attribute
+     * @return the prefix
+     */
+    private String attributePrefix(final Attr attribute) {
+        if (attribute.getPrefix() != null) {
+            return attribute.getPrefix();
+        }
+        String prefix = _generatedPrefixes.get(attribute.getNamespaceURI());
+        if (prefix == null) {
+            prefix = "ns" + _generatedPrefixes.size();
+            _generatedPrefixes.put(attribute.getNamespaceURI(), prefix);
+        }
+        return prefix;
+    }
+
+    /**
+     * Returns the namespace declarations of an element.
+     * @param element the element
+     * @return the namespaces by prefix, empty for the default namespace
+     */
+    private static Map<String, String> declarations(final Element element) {
+        Map<String, String> declarations = new LinkedHashMap<String, String>();
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (isDeclaration(attribute)) {
+                String name = attribute.getName();
+                declarations.put(name.equals(XMLConstants.XMLNS_ATTRIBUTE) ? ""
+                        : name.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1), attribute.getValue());
+            }
+        }
+        return declarations;
+    }
+
+    /**
+     * Checks whether an attribute is a namespace declaration.
+     * @param attribute the attribute
+     * @return true for xmlns and xmlns:prefix attributes
+     */
+    private static boolean isDeclaration(final Attr attribute) {
+        String name = attribute.getName();
+        return name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+    }
+
+    /**
+     * Returns the local name of a node, also for nodes created without namespace support.
+     * @param node the node
+     * @return the local name
+     */
+    private static String localName(final Node node) {
+        return (node.getLocalName() != null) ? node.getLocalName() : node.getNodeName();
+    }
+
+    /**
+     * A reusable chunk buffer.
+     */
+    private static final class Chunk extends ByteArrayOutputStream {
+        /**
+         * Constructor.
+         */
+        private Chunk() {
+            super(CHUNK_SIZE * 2);
+        }
+
+        /**
+         * Returns the internal buffer, valid up to size().
+         * @return the buffer
+         */
+        private byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when an idempotent operation is hedged. The hedge delay is a percentile of
+ * the recent response times of the operation, so only requests slower than that get a
+ * second request, and a TokenBudget caps hedges at a percentage of the requests.
+ */
+public class HedgePolicy {
+    private static final int SAMPLE_SIZE = 1000;
+    private static final int MIN_SAMPLES = 100;
+    private static final int RECOMPUTE_EVERY = 100;
+    private static final double MAX_TOKENS = 10;
+
+    private final double _percentile;
+    private final TokenBudget _budget;
+    private final long[] _samples = new long[SAMPLE_SIZE];
+    private int _sampleCount;
+    private int _nextSample;
+    private int _sinceRecompute;
+    private volatile long _delay = -1;
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _hedges = new AtomicLong();
+    private final AtomicLong _wins = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param percentile the response time percentile used as hedge delay, e.g. 95
+     * @param maxPercent the maximum percentage of requests that are hedged
+     */
+    public HedgePolicy(final double percentile, final double maxPercent) {
+        _percentile = percentile;
+        _budget = new TokenBudget(maxPercent / 100, MAX_TOKENS);
+    }
+
+    /**
+     * Returns the time to wait for a response before hedging.
+     * @return the delay in milliseconds, -1 until enough response times have been recorded
+     */
+    public long getDelay() {
+        return _delay;
+    }
+
+    /**
+     * Records the response time of a successful call.
+     * @param duration the response time in milliseconds
+     */
+    public synchronized void record(final long duration) {
+        _samples[_nextSample] = duration;
+        _nextSample = (_nextSample + 1) % SAMPLE_SIZE;
+        _sampleCount = Math.min(_sampleCount + 1, SAMPLE_SIZE);
+        if (++_sinceRecompute >= RECOMPUTE_EVERY && _sampleCount >= MIN_SAMPLES) {
+            _sinceRecompute = 0;
+            long[] sorted = Arrays.copyOf(_samples, _sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(_percentile / 100 * _sampleCount) - 1;
+            _delay = sorted[Math.max(0, Math.min(index, _sampleCount - 1))];
+        }
+    }
+
+    /**
+     * Records a request of the operation, earning a fraction of a hedge.
+     */
+    public void requested() {
+        _requests.incrementAndGet();
+        _budget.deposit();
+    }
+
+    /**
+     * Asks for permission to send a hedged request.
+     * @return true if the hedge budget allows it
+     */
+    public boolean tryHedge() {
+        if (!_budget.tryWithdraw()) {
+            return false;
+        }
+        _hedges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the response of a hedged request was used.
+     */
+    public void won() {
+        _wins.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests.
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+    /**
+     * Returns the number of hedged requests sent.
+     * @return the hedge count
+     */
+    public long getHedgeCount() {
+        return _hedges.get();
+    }
+
+    /**
+     * Returns the number of hedged requests whose response was used.
+     * @return the win count
+     */
+    public long getWinCount() {
+        return _wins.get();
+    }
+
+    /**
+     * Returns the fraction of requests that were hedged.
+     * @return the hedge rate between 0 and 1
+     */
+    public double getHedgeRate() {
+        long requests = _requests.get();
+        return (requests == 0) ? 0 : (double) _hedges.get() / requests;
+    }
+
+    /**
+     * Returns the fraction of hedged requests that answered first.
+     * @return the win rate between 0 and 1
+     */
+    public double getWinRate() {
+        long hedges = _hedges.get();
+        return (hedges == 0) ? 0 : (double) _wins.get() / hedges;
+    }
+}
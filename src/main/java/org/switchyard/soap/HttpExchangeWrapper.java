@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * An exchange delegating to another one, filters override the methods they change.
+ * Attributes are shared by all exchanges of a context, so per exchange state belongs
+ * in fields of the subclass.
+ */
+class HttpExchangeWrapper extends HttpExchange {
+    private final HttpExchange _exchange;
+
+    /**
+     * Constructor.
+     * @param exchange the wrapped exchange
+     */
+    HttpExchangeWrapper(final HttpExchange exchange) {
+        _exchange = exchange;
+    }
+
+    /**
+     * Returns the wrapped exchange.
+     * @return the exchange
+     */
+    protected HttpExchange getExchange() {
+        return _exchange;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return _exchange.getRequestHeaders();
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return _exchange.getResponseHeaders();
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return _exchange.getRequestURI();
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return _exchange.getRequestMethod();
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return _exchange.getHttpContext();
+    }
+
+    @Override
+    public void close() {
+        _exchange.close();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return _exchange.getRequestBody();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return _exchange.getResponseBody();
+    }
+
+    @Override
+    public void sendResponseHeaders(final int code, final long length) throws IOException {
+        _exchange.sendResponseHeaders(code, length);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return _exchange.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return _exchange.getResponseCode();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return _exchange.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return _exchange.getProtocol();
+    }
+
+    @Override
+    public Object getAttribute(final String name) {
+        return _exchange.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(final String name, final Object value) {
+        _exchange.setAttribute(name, value);
+    }
+
+    @Override
+    public void setStreams(final InputStream in, final OutputStream out) {
+        _exchange.setStreams(in, out);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return _exchange.getPrincipal();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shares HTTP servers between the endpoints published on the same address. Endpoints are
+ * published to a context created here instead of an address, so that filters can be
+ * installed in front of the JAX-WS handler. The server is stopped once its last context
+ * has been removed.
+ */
+public final class HttpServers {
+    private static final Logger LOGGER = Logger.getLogger(HttpServers.class);
+    private static final Map<InetSocketAddress, ServerState> SERVERS = new HashMap<InetSocketAddress, ServerState>();
+
+    private HttpServers() {
+    }
+
+    /**
+     * Creates a context for an endpoint address, starting a server for its host and port if needed.
+     * @param address the endpoint address
+     * @return the HttpContext to publish the endpoint to
+     * @throws IOException If the server could not be started
+     */
+    public static HttpContext createContext(final URL address) throws IOException {
+        int port = (address.getPort() != -1) ? address.getPort() : address.getDefaultPort();
+        InetSocketAddress socketAddress = new InetSocketAddress(address.getHost(), port);
+        synchronized (SERVERS) {
+            ServerState state = SERVERS.get(socketAddress);
+            if (state == null) {
+                state = new ServerState(socketAddress);
+                SERVERS.put(socketAddress, state);
+            }
+            state._contexts++;
+            return state._server.createContext(address.getPath());
+        }
+    }
+
+    /**
+     * Removes a context created by createContext(), stopping the server with the last one.
+     * @param context the HttpContext
+     */
+    public static void removeContext(final HttpContext context) {
+        synchronized (SERVERS) {
+            for (ServerState state : SERVERS.values()) {
+                if (state._server == context.getServer()) {
+                    try {
+                        state._server.removeContext(context);
+                    } catch (IllegalArgumentException iae) {
+                        LOGGER.debug("Context " + context.getPath() + " was already removed by its Endpoint");
+                    }
+                    if (--state._contexts == 0) {
+                        SERVERS.remove(state._address);
+                        state._server.stop(0);
+                        state._executor.shutdown();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A running server and the number of contexts on it.
+     */
+    private static final class ServerState {
+        private final InetSocketAddress _address;
+        private final HttpServer _server;
+        private final ExecutorService _executor;
+        private int _contexts;
+
+        private ServerState(final InetSocketAddress address) throws IOException {
+            _address = address;
+            _server = HttpServer.create(address, 0);
+            _executor = Executors.newCachedThreadPool();
+            _server.setExecutor(_executor);
+            _server.start();
+        }
+    }
+}
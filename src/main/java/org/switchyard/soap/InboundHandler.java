@@ -22,20 +22,30 @@
  
 package org.switchyard.soap;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.activation.DataSource;
 import javax.wsdl.Definition;
 import javax.wsdl.Port;
 import javax.xml.namespace.QName;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
 import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.ws.Endpoint;
 
+import com.sun.net.httpserver.HttpContext;
+
 import org.apache.log4j.Logger;
 import org.switchyard.BaseHandler;
 import org.switchyard.Exchange;
@@ -53,9 +63,48 @@ import org.switchyard.soap.util.WSDLUtil;
 public class InboundHandler extends BaseHandler {
     private static final Logger LOGGER = Logger.getLogger(InboundHandler.class);
     private static final long DEFAULT_TIMEOUT = 15000;
-    private static final int DEFAULT_SLEEP = 100;
+    private static final int DEFAULT_MAX_PENDING = 50000;
+    private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final long MAX_RETRY_AFTER = 60;
+    private static final String TIMEOUT_PREFIX = "timeout.";
+    private static final String RATE_PREFIX = "maxRequestsPerSecond.";
+    private static final String IN_FLIGHT_PREFIX = "maxInFlight.";
+    private static final String CACHE_PREFIX = "cache.";
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+    private static final long DEFAULT_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final long DEFAULT_ATTACHMENT_THRESHOLD = 65536;
+    private static final QName RETRY_AFTER_QN = new QName("retryAfter");
+    private static final String ASYNC_PROVIDER = "com.sun.xml.ws.api.server.AsyncProvider";
+    private static final String RI_PACKAGE = "com.sun.xml.ws.";
 
-    private static ThreadLocal<SOAPMessage> _response = new ThreadLocal<SOAPMessage>();
+    private final Map<String, Long> _operationTimeouts = new HashMap<String, Long>();
+    private final ConcurrentHashMap<String, Throttle> _operationThrottles = new ConcurrentHashMap<String, Throttle>();
+    private final ConcurrentHashMap<Long, byte[]> _throttledFaults = new ConcurrentHashMap<Long, byte[]>();
+    private final ConcurrentHashMap<Long, byte[]> _throttledPayloads = new ConcurrentHashMap<Long, byte[]>();
+    private final Map<String, Long> _cacheTtls = new HashMap<String, Long>();
+    private ResponseCache _responseCache;
+    private Throttle _throttle;
+    private OperationIndex _operations;
+    private byte[] _unknownOperationFault;
+    private PendingExchanges _pending;
+    private TimingWheel _timer;
+    private boolean _async;
+    private boolean _payloadMode;
+    private PayloadMessageComposer _payloadComposer;
+    private PayloadMessageDecomposer _payloadDecomposer;
+    private String _executorType;
+    private boolean _compression;
+    private long _compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean _mtom;
+    private long _attachmentThreshold = DEFAULT_ATTACHMENT_THRESHOLD;
+    private long _largeMessageThreshold;
+    private boolean _chunkedResponses;
+    private DefaultMessageDecomposer _envelopeDecomposer;
+    private final StreamingMessageComposer _largeComposer = new StreamingMessageComposer();
+    private int _poolSize = DEFAULT_POOL_SIZE;
+    private ExecutorService _executor;
+    private ExecutorService _timeoutExecutor;
 
     private MessageComposer _composer;
     private MessageDecomposer _decomposer;
@@ -64,6 +113,7 @@ public class InboundHandler extends BaseHandler {
     private QName _serviceName;
     private long _waitTimeout = DEFAULT_TIMEOUT; // default of 15 seconds
     private Endpoint _endpoint;
+    private HttpContext _httpContext;
     private String _endpointUrl;
     private String _wsName;
     private Port _port;
@@ -78,6 +128,8 @@ public class InboundHandler extends BaseHandler {
         String port = config.get("port");
         String composer = config.get("composer");
         String decomposer = config.get("decomposer");
+        String timeout = config.get("timeout");
+        String maxPending = config.get("maxPending");
 
         if (composer != null && composer.length() > 0) {
             try {
@@ -112,6 +164,101 @@ public class InboundHandler extends BaseHandler {
             context = "";
         }
         _endpointUrl = "http://localhost:" + port + "/" + context;
+
+        if (timeout != null) {
+            _waitTimeout = Long.parseLong(timeout);
+        }
+        _pending = new PendingExchanges((maxPending != null) ? Integer.parseInt(maxPending) : DEFAULT_MAX_PENDING);
+        _async = "true".equals(config.get("async"));
+        if (_async && !isAsyncProviderSupported()) {
+            LOGGER.warn("Asynchronous endpoints require the JAX-WS RI AsyncProvider, using a synchronous endpoint");
+            _async = false;
+        }
+        _payloadMode = "payload".equals(config.get("mode"));
+        if (_payloadMode && _async) {
+            LOGGER.warn("Payload mode is not available for asynchronous endpoints, using message mode");
+            _payloadMode = false;
+        }
+        String largeMessageThreshold = config.get("largeMessageThreshold");
+        if (largeMessageThreshold != null) {
+            _largeMessageThreshold = Long.parseLong(largeMessageThreshold);
+        }
+        if (_largeMessageThreshold > 0 && (_async || _payloadMode)) {
+            LOGGER.warn("Large message mode is only available for synchronous message mode endpoints");
+            _largeMessageThreshold = 0;
+        }
+        _chunkedResponses = "true".equals(config.get("chunkedResponses"));
+        if (_chunkedResponses && (_async || _payloadMode || !(_decomposer instanceof DefaultMessageDecomposer))) {
+            LOGGER.warn("Chunked responses are only available for synchronous message mode endpoints with the default decomposer");
+            _chunkedResponses = false;
+        }
+        _envelopeDecomposer = (_decomposer instanceof DefaultMessageDecomposer)
+                ? (DefaultMessageDecomposer) _decomposer : new DefaultMessageDecomposer();
+        _payloadComposer = (_composer instanceof PayloadMessageComposer)
+                ? (PayloadMessageComposer) _composer : new StreamingMessageComposer();
+        _payloadDecomposer = (_decomposer instanceof PayloadMessageDecomposer)
+                ? (PayloadMessageDecomposer) _decomposer : new DefaultMessageDecomposer();
+        _executorType = config.get("executor");
+        _compression = "true".equals(config.get("compression"));
+        String compressionThreshold = config.get("compressionThreshold");
+        if (compressionThreshold != null) {
+            _compressionThreshold = Long.parseLong(compressionThreshold);
+        }
+        _mtom = "true".equals(config.get("mtom"));
+        String attachmentThreshold = config.get("attachmentThreshold");
+        if (attachmentThreshold != null) {
+            _attachmentThreshold = Long.parseLong(attachmentThreshold);
+        }
+        String poolSize = config.get("poolSize");
+        if (poolSize != null) {
+            _poolSize = Integer.parseInt(poolSize);
+        }
+        _throttle = new Throttle(parseRate(config.get("maxRequestsPerSecond")), parseInFlight(config.get("maxInFlight")));
+        String cacheSize = config.get("cacheSize");
+        String cacheMaxBytes = config.get("cacheMaxBytes");
+        _responseCache = new ResponseCache((cacheSize != null) ? Integer.parseInt(cacheSize) : DEFAULT_CACHE_SIZE,
+                (cacheMaxBytes != null) ? Long.parseLong(cacheMaxBytes) : DEFAULT_CACHE_MAX_BYTES);
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            if (entry.getKey().startsWith(TIMEOUT_PREFIX)) {
+                String opName = entry.getKey().substring(TIMEOUT_PREFIX.length());
+                _operationTimeouts.put(opName, Long.valueOf(entry.getValue()));
+            } else if (entry.getKey().startsWith(RATE_PREFIX)) {
+                String opName = entry.getKey().substring(RATE_PREFIX.length());
+                getThrottle(opName).setRate(parseRate(entry.getValue()));
+            } else if (entry.getKey().startsWith(IN_FLIGHT_PREFIX)) {
+                String opName = entry.getKey().substring(IN_FLIGHT_PREFIX.length());
+                getThrottle(opName).setMaxInFlight(parseInFlight(entry.getValue()));
+            } else if (entry.getKey().startsWith(CACHE_PREFIX)) {
+                // Caching is opt-in, only operations known to be idempotent should be listed
+                String opName = entry.getKey().substring(CACHE_PREFIX.length());
+                _cacheTtls.put(opName, Long.valueOf(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Checks if the JAX-WS implementation in use is the JAX-WS RI, the only one that
+     * supports its AsyncProvider. The RI is a provided dependency, the JAX-WS
+     * implementation of the JDK does not recognize it.
+     * @return true if asynchronous endpoints can be published
+     */
+    private static boolean isAsyncProviderSupported() {
+        try {
+            Class.forName(ASYNC_PROVIDER, false, InboundHandler.class.getClassLoader());
+            return javax.xml.ws.spi.Provider.provider().getClass().getName().startsWith(RI_PACKAGE);
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        } catch (LinkageError le) {
+            return false;
+        }
+    }
+
+    private static double parseRate(final String rate) {
+        return (rate != null) ? Double.parseDouble(rate) : 0;
+    }
+
+    private static int parseInFlight(final String maxInFlight) {
+        return (maxInFlight != null) ? Integer.parseInt(maxInFlight) : 0;
     }
 
     /**
@@ -128,21 +275,63 @@ public class InboundHandler extends BaseHandler {
             // Only first port for now
             _port = (Port) wsdlService.getPorts().values().iterator().next();
             String portName = _port.getName();
-            BaseWebService wsProvider = new BaseWebService();
-            // Hook the handler
-            wsProvider.setConsumer(this);
-
-            _endpoint = Endpoint.create(wsProvider);
-            List<Source> metadata = new ArrayList<Source>();
-            StreamSource source = WSDLUtil.getStream(_wsdlLocation);
-            metadata.add(source);
-            _endpoint.setMetadata(metadata);
+            for (Object operation : _port.getBinding().getPortType().getOperations()) {
+                // Every operation gets a throttle so that limits can be adjusted at runtime
+                getThrottle(((javax.wsdl.Operation) operation).getName());
+            }
+            _operations = new OperationIndex(_port, _waitTimeout, _operationTimeouts, _operationThrottles, _cacheTtls);
+            _unknownOperationFault = SOAPUtil.toBytes(SOAPUtil.generateFault(
+                    new SOAPException("Unknown operation for service " + _serviceName)));
+            if (_async) {
+                BaseAsyncWebService wsProvider = new BaseAsyncWebService();
+                // Hook the handler
+                wsProvider.setConsumer(this);
+                _timer = new TimingWheel("SOAP timeouts " + _serviceName);
+                _timer.start();
+                _endpoint = Endpoint.create(wsProvider);
+            } else if (_payloadMode) {
+                BasePayloadWebService wsProvider = new BasePayloadWebService();
+                // Hook the handler
+                wsProvider.setConsumer(this);
+                _endpoint = Endpoint.create(wsProvider);
+            } else {
+                BaseWebService wsProvider = new BaseWebService();
+                // Hook the handler
+                wsProvider.setConsumer(this);
+                _endpoint = Endpoint.create(wsProvider);
+            }
+            _executor = createExecutor(_executorType, _poolSize);
+            if (_async) {
+                // Timed out responses are written here instead of on the timing wheel thread
+                _timeoutExecutor = (_executor != null) ? _executor : Executors.newCachedThreadPool();
+            }
+            if (_executor != null) {
+                _endpoint.setExecutor(_executor);
+            }
+            _endpoint.setMetadata(WSDLUtil.getMetadata(_wsdlLocation));
             Map<String, Object> properties = new HashMap<String, Object>();
             properties.put(Endpoint.WSDL_SERVICE, new QName(targetNamespace, _wsName));
             properties.put(Endpoint.WSDL_PORT, new QName(targetNamespace, portName));
             _endpoint.setProperties(properties);
 
-            _endpoint.publish(_endpointUrl + _wsName);
+            URL address = new URL(_endpointUrl + _wsName);
+            _httpContext = HttpServers.createContext(address);
+            MetadataFilter metadata = new MetadataFilter(address,
+                    new URL(address.getProtocol(), "127.0.0.1", address.getPort(), address.getFile()));
+            _httpContext.getFilters().add(metadata);
+            if (_compression) {
+                _httpContext.getFilters().add(new CompressionFilter(_compressionThreshold));
+            }
+            if (_mtom) {
+                _httpContext.getFilters().add(new XopFilter(_attachmentThreshold));
+            }
+            try {
+                _endpoint.publish(_httpContext);
+            } catch (RuntimeException re) {
+                HttpServers.removeContext(_httpContext);
+                throw re;
+            }
+            metadata.load();
             LOGGER.info("WebService published at " + _endpointUrl + _wsName);
         } catch (Exception e) {
             throw new WebServicePublishException(e);
@@ -150,13 +339,61 @@ public class InboundHandler extends BaseHandler {
     }
 
     /**
-     * Stop lifecycle.
+     * Stop lifecycle. Requests still waiting for a response are answered with a fault.
      */
     public void stop() {
         _endpoint.stop();
+        HttpServers.removeContext(_httpContext);
+        if (_timer != null) {
+            _timer.stop();
+        }
+        SOAPException stopped = new SOAPException("Service " + _serviceName + " stopped");
+        for (ResponseFuture<?> future : _pending.removeAll()) {
+            fail(future, stopped);
+        }
+        if (_timeoutExecutor != null) {
+            _timeoutExecutor.shutdown();
+        }
+        if (_executor != null) {
+            _executor.shutdown();
+        }
         LOGGER.info("WebService " + _endpointUrl + _wsName + " stopped.");
     }
 
+    /**
+     * Creates the executor that the endpoint dispatches requests on.
+     * Virtual threads and ForkJoinPool are looked up reflectively and fall back to a
+     * cached and a fixed thread pool respectively when the JVM does not provide them.
+     * @param type one of virtual, fixed or forkjoin, null for the container default
+     * @param poolSize the number of threads for fixed and forkjoin
+     * @return the executor or null to keep the container default
+     */
+    private static ExecutorService createExecutor(final String type, final int poolSize) {
+        if (type == null || type.length() == 0) {
+            return null;
+        }
+        if (type.equals("fixed")) {
+            return Executors.newFixedThreadPool(poolSize);
+        } else if (type.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                LOGGER.warn("Virtual threads are not available, using a cached thread pool");
+                return Executors.newCachedThreadPool();
+            }
+        } else if (type.equals("forkjoin")) {
+            try {
+                Class<?> poolClass = Class.forName("java.util.concurrent.ForkJoinPool");
+                return (ExecutorService) poolClass.getConstructor(int.class).newInstance(poolSize);
+            } catch (Exception e) {
+                LOGGER.warn("ForkJoinPool is not available, using a fixed thread pool");
+                return Executors.newFixedThreadPool(poolSize);
+            }
+        }
+        LOGGER.warn("Unknown executor type '" + type + "', using the container default");
+        return null;
+    }
+
     /**
      * The handler method that handles responses from a WebService.
      * @param exchange the Exchange
@@ -164,12 +401,7 @@ public class InboundHandler extends BaseHandler {
      */
     @Override
     public void handleMessage(final Exchange exchange) throws HandlerException {
-        try {
-            _response.set(_decomposer.decompose(exchange.getMessage()));
-        } catch (SOAPException se) {
-            // generate fault
-            LOGGER.error(se);
-        }
+        completeResponse(exchange);
     }
 
     /**
@@ -178,11 +410,61 @@ public class InboundHandler extends BaseHandler {
      */
     @Override
     public void handleFault(final Exchange exchange) {
-        try {
-            _response.set(_decomposer.decompose(exchange.getMessage()));
-        } catch (SOAPException se) {
-            // generate fault
-            LOGGER.error(se);
+        completeResponse(exchange);
+    }
+
+    /**
+     * Decomposes the reply and hands it over to the request thread waiting on the Exchange.
+     * @param exchange the Exchange
+     */
+    @SuppressWarnings("unchecked")
+    private void completeResponse(final Exchange exchange) {
+        ResponseFuture<?> future = _pending.remove(exchange);
+        if (future == null) {
+            LOGGER.warn("Discarding response for service " + _serviceName + ", the request is no longer waiting");
+            return;
+        }
+        if (future instanceof EnvelopeFuture) {
+            ((EnvelopeFuture) future).complete(decomposeEnvelope(exchange.getMessage()));
+        } else if (future instanceof MessageFuture) {
+            ((MessageFuture) future).complete(exchange.getMessage());
+        } else if (_payloadMode) {
+            Source response = null;
+            try {
+                response = _payloadDecomposer.decomposePayload(exchange.getMessage());
+            } catch (SOAPException se) {
+                LOGGER.error(se);
+                response = faultPayload(errorFault(se));
+            }
+            ((ResponseFuture<Source>) future).complete(response);
+        } else {
+            SOAPMessage response = null;
+            try {
+                response = _decomposer.decompose(exchange.getMessage());
+            } catch (SOAPException se) {
+                LOGGER.error(se);
+                response = errorFault(se);
+            }
+            ((ResponseFuture<SOAPMessage>) future).complete(response);
+        }
+    }
+
+    /**
+     * Completes the future of a request that will not get a response with a fault.
+     * @param future the future removed from the pending Exchanges
+     * @param se the reason
+     */
+    @SuppressWarnings("unchecked")
+    private void fail(final ResponseFuture<?> future, final SOAPException se) {
+        if (future instanceof EnvelopeFuture) {
+            ((EnvelopeFuture) future).complete(faultEnvelope(errorFault(se)));
+        } else if (future instanceof MessageFuture) {
+            // The waiting request answers a missing response Message with a fault
+            ((MessageFuture) future).complete(null);
+        } else if (_payloadMode) {
+            ((ResponseFuture<Source>) future).complete(faultPayload(errorFault(se)));
+        } else {
+            ((ResponseFuture<SOAPMessage>) future).complete(errorFault(se));
         }
     }
         /*}
@@ -237,47 +519,784 @@ public class InboundHandler extends BaseHandler {
         }*/
 
     /**
-     * The delegate method called by the Webservice implementation.
-     * @param soapMessage the SOAP request
-     * @return the SOAP response
+     * The delegate method called by the Webservice implementation. The operation is
+     * detected while the request is read, unknown operations and throttled requests are
+     * answered before the rest of the envelope is read. In large message mode requests
+     * above the threshold are spooled to a memory-mapped file.
+     * @param request the SOAP request envelope
+     * @param soapAction the SOAPAction of the request, may be null
+     * @param mime the MIME exchange of the request, may be null
+     * @return the SOAP response envelope, null for one way operations
      */
-    public SOAPMessage invoke(final SOAPMessage soapMessage) {
-        _response.remove();
+    public Source invoke(final Source request, final String soapAction, final XopFilter.XopExchange mime) {
+        Admission admission = new Admission(soapAction);
         try {
-            if (SOAPUtil.isMessageOneWay(_port, soapMessage)) {
-                Exchange exchange = _domain.createExchange(_serviceName, ExchangePattern.IN_ONLY, this);
-                Message message = _composer.compose(soapMessage);
-                exchange.send(message);
-            } else {
-                Exchange exchange = _domain.createExchange(_serviceName, ExchangePattern.IN_OUT, this);
-                Message message = _composer.compose(soapMessage);
-                exchange.send(message);
-                waitForResponse();
+            if (_largeMessageThreshold > 0) {
+                SpillOutputStream out = new SpillOutputStream(_largeMessageThreshold);
+                try {
+                    boolean complete = SOAPUtil.copyEnvelope(request, out, admission);
+                    out.close();
+                    if (!complete) {
+                        out.discard();
+                        return admission.getRejection();
+                    }
+                    if (out.isSpilled()) {
+                        return invoke(out.toMappedContent(), admission, (mime != null) ? mime.getAttachments() : null);
+                    }
+                    return invoke(out.toByteArray(), admission, mime);
+                } catch (IOException ioe) {
+                    out.discard();
+                    throw new SOAPException("Unable to spool SOAP request", ioe);
+                } catch (SOAPException se) {
+                    out.discard();
+                    throw se;
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!SOAPUtil.copyEnvelope(request, out, admission)) {
+                return admission.getRejection();
+            }
+            return invoke(out.toByteArray(), admission, mime);
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            admission.release();
+            return faultEnvelope(errorFault(se));
+        }
+    }
+
+    /**
+     * Invokes the service with a serialized request whose operation has been detected. The
+     * SOAP message is only built once the request has been admitted, cached responses are
+     * returned before admission. MIME attachments are added to the Message by Content-ID and
+     * attachments of the response are added to the MIME exchange. Requests with attachments
+     * bypass the response cache. With the default decomposer the response Message is handed
+     * to the request thread as it is and its envelope is written without building a SAAJ
+     * tree. With chunked responses it is serialized while the container writes it, with
+     * chunked transfer encoding, so not even a serialized copy of the response is built.
+     * Responses of cacheable operations are stored serialized. Throttled requests are
+     * answered with a ThrottledFault.
+     * @param request the serialized SOAP request
+     * @param admission the operation of the request and whether it has been admitted
+     * @param mime the MIME exchange of the request, may be null
+     * @return the SOAP response envelope, null for one way operations
+     */
+    private Source invoke(final byte[] request, final Admission admission, final XopFilter.XopExchange mime) {
+        Map<String, DataSource> attachments = (mime != null) ? mime.getAttachments() : null;
+        try {
+            OperationInfo operation = admission.getOperation();
+            String cacheKey = null;
+            if (operation.isCacheable() && (attachments == null || attachments.isEmpty())) {
+                cacheKey = cacheKey(operation, request, true);
+                byte[] cached = _responseCache.get(cacheKey);
+                if (cached != null) {
+                    return new StreamSource(new ByteArrayInputStream(cached));
+                }
+            }
+            Throttle opThrottle = operation.getThrottle();
+            if (!admission.isAdmitted()) {
+                long retryAfter = admit(opThrottle);
+                if (retryAfter > 0) {
+                    return throttledFault(retryAfter, true);
+                }
+            }
+            try {
+                Message message = compose(request, attachments);
+                if (operation.isOneWay()) {
+                    _domain.createExchange(_serviceName, ExchangePattern.IN_ONLY, this).send(message);
+                    return null;
+                }
+                if (_decomposer == _envelopeDecomposer) {
+                    Message response = sendAndWait(message, new MessageFuture(), operation.getTimeout());
+                    if (response == null) {
+                        throw new SOAPException("Null response from service");
+                    }
+                    Map<String, DataSource> responseAttachments = response.getAttachmentMap();
+                    if (mime != null) {
+                        mime.addResponseAttachments(responseAttachments);
+                    }
+                    if (_chunkedResponses && cacheKey == null) {
+                        return new StreamSource(_envelopeDecomposer.openEnvelope(response));
+                    }
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    _envelopeDecomposer.decompose(response, out);
+                    byte[] bytes = out.toByteArray();
+                    if (cacheKey != null && (responseAttachments == null || responseAttachments.isEmpty())
+                            && !SOAPUtil.isFault(bytes, true)) {
+                        _responseCache.put(cacheKey, bytes, operation.getCacheTtl());
+                    }
+                    return new StreamSource(new ByteArrayInputStream(bytes));
+                }
+                SOAPMessage response = sendAndWait(message, new ResponseFuture<SOAPMessage>(), operation.getTimeout());
+                if (cacheKey != null) {
+                    cacheResponse(cacheKey, operation.getCacheTtl(), response);
+                }
+                return envelope(response, mime);
+            } finally {
+                release(opThrottle);
             }
         } catch (SOAPException se) {
-            // generate fault
             LOGGER.error(se);
+            return faultEnvelope(errorFault(se));
         }
-        SOAPMessage response = _response.get();
-        _response.remove();
-        return response;
     }
 
     /**
-     * Sleep until we get a response or timeout has reached.
+     * Hands the envelope of a SOAP response to the container, moving its attachments to
+     * the MIME exchange of the request.
+     * @param response the SOAP response, may be null
+     * @param mime the MIME exchange of the request, may be null
+     * @return the SOAP response envelope or null
+     * @throws SOAPException If the response could not be read
      */
-    private void waitForResponse() {
-        long start = System.currentTimeMillis();
+    private static Source envelope(final SOAPMessage response, final XopFilter.XopExchange mime) throws SOAPException {
+        if (response == null) {
+            return null;
+        }
+        if (mime != null) {
+            mime.addResponseAttachments(response);
+        }
+        return response.getSOAPPart().getContent();
+    }
 
-        while (System.currentTimeMillis() < start + _waitTimeout) {
-            if (_response.get() != null) {
-                return;
+    /**
+     * Invokes the service with a request larger than the large message threshold whose
+     * operation has been detected. Neither the request nor the response is built as a SAAJ
+     * tree: the body payload is extracted into a memory-mapped file that backs the Message
+     * content, responses above the threshold are spilled to one as well. The request files
+     * are deleted when the exchange completes, the response file once it has been read.
+     * Requests bypass the response cache.
+     * @param request the serialized SOAP request, deleted by this method
+     * @param admission the operation of the request and whether it has been admitted
+     * @param attachments the request attachments by Content-ID, may be null
+     * @return the SOAP response envelope, null for one way operations
+     */
+    private Source invoke(final MappedContent request, final Admission admission, final Map<String, DataSource> attachments) {
+        MappedContent payload = null;
+        boolean oneWay = false;
+        try {
+            OperationInfo operation = admission.getOperation();
+            Throttle opThrottle = operation.getThrottle();
+            if (!admission.isAdmitted()) {
+                long retryAfter = admit(opThrottle);
+                if (retryAfter > 0) {
+                    return throttledFault(retryAfter, true);
+                }
+            }
+            try {
+                Message message = attach(_largeComposer.compose(request), attachments);
+                payload = LazyPayload.getMappedContent(message.getContent());
+                if (operation.isOneWay()) {
+                    // The service may read the payload after we return, it is deleted once unreachable
+                    oneWay = true;
+                    _domain.createExchange(_serviceName, ExchangePattern.IN_ONLY, this).send(message);
+                    return null;
+                }
+                return sendAndWait(message, new EnvelopeFuture(), operation.getTimeout());
+            } finally {
+                release(opThrottle);
+            }
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            return faultEnvelope(errorFault(se));
+        } finally {
+            request.delete();
+            if (payload != null && !oneWay) {
+                payload.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the response of a large request as a SOAP envelope, spilling it to a
+     * memory-mapped file above the threshold. Payloads that are already mapped are
+     * wrapped into the envelope as they are read, with chunked responses all payloads are.
+     * @param message the response Message
+     * @return the SOAP response envelope
+     */
+    private Source decomposeEnvelope(final Message message) {
+        if (message == null) {
+            return faultEnvelope(errorFault(new SOAPException("Null response from service")));
+        }
+        MappedContent mapped = LazyPayload.getMappedContent(message.getContent());
+        if (mapped != null) {
+            return new StreamSource(DefaultMessageDecomposer.envelope(mapped.getInputStream()));
+        }
+        if (_chunkedResponses) {
+            try {
+                return new StreamSource(_envelopeDecomposer.openEnvelope(message));
+            } catch (SOAPException se) {
+                LOGGER.error(se);
+                return faultEnvelope(errorFault(se));
+            }
+        }
+        SpillOutputStream out = new SpillOutputStream(_largeMessageThreshold);
+        try {
+            _envelopeDecomposer.decompose(message, out);
+            out.close();
+            if (out.isSpilled()) {
+                return new StreamSource(out.toMappedContent().getReleasingInputStream());
+            }
+            return new StreamSource(new ByteArrayInputStream(out.toByteArray()));
+        } catch (IOException ioe) {
+            LOGGER.error(ioe);
+            out.discard();
+            return faultEnvelope(errorFault(new SOAPException("Unable to spool SOAP response", ioe)));
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            out.discard();
+            return faultEnvelope(errorFault(se));
+        }
+    }
+
+    /**
+     * The delegate method called by the payload mode Webservice implementation.
+     * Faults are returned as a SOAP Fault payload.
+     * @param request the serialized SOAP body payload
+     * @param soapAction the SOAPAction of the request, may be null
+     * @return the SOAP response payload
+     */
+    public Source invokePayload(final byte[] request, final String soapAction) {
+        return invokePayload(request, soapAction, null);
+    }
+
+    /**
+     * The delegate method called by the payload mode Webservice implementation for requests
+     * that may carry MIME attachments. Requests with attachments bypass the response cache.
+     * @param request the serialized SOAP body payload
+     * @param soapAction the SOAPAction of the request, may be null
+     * @param attachments the request attachments by Content-ID, may be null
+     * @return the SOAP response payload
+     */
+    public Source invokePayload(final byte[] request, final String soapAction, final Map<String, DataSource> attachments) {
+        try {
+            OperationInfo operation = _operations.lookup(SOAPUtil.peekRootElementName(request), soapAction);
+            if (operation == null) {
+                return faultPayload(unknownOperationFault());
+            }
+            String cacheKey = null;
+            if (operation.isCacheable() && (attachments == null || attachments.isEmpty())) {
+                cacheKey = cacheKey(operation, request, false);
+                byte[] cached = _responseCache.get(cacheKey);
+                if (cached != null) {
+                    return new StreamSource(new ByteArrayInputStream(cached));
+                }
+            }
+            Throttle opThrottle = operation.getThrottle();
+            long retryAfter = admit(opThrottle);
+            if (retryAfter > 0) {
+                return throttledFault(retryAfter, false);
             }
             try {
-                Thread.sleep(DEFAULT_SLEEP);
-            } catch (InterruptedException e) { 
-                //ignore
+                Message message = attach(_payloadComposer.composePayload(new StreamSource(new ByteArrayInputStream(request))),
+                        attachments);
+                if (operation.isOneWay()) {
+                    _domain.createExchange(_serviceName, ExchangePattern.IN_ONLY, this).send(message);
+                    return null;
+                }
+                Source response = sendAndWait(message, new ResponseFuture<Source>(), operation.getTimeout());
+                if (cacheKey != null && response != null) {
+                    // The Source may only be readable once, hand back a copy of the cached bytes
+                    byte[] bytes = SOAPUtil.toBytes(response);
+                    if (!SOAPUtil.isFault(bytes, false)) {
+                        _responseCache.put(cacheKey, bytes, operation.getCacheTtl());
+                    }
+                    return new StreamSource(new ByteArrayInputStream(bytes));
+                }
+                return response;
+            } finally {
+                release(opThrottle);
             }
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            return faultPayload(errorFault(se));
+        }
+    }
+
+    /**
+     * Sends an IN_OUT Exchange and blocks until we get a response or timeout has reached.
+     * @param <T> the response type
+     * @param message the request Message
+     * @param future the future completed with the response
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the response
+     * @throws SOAPException If there are too many pending requests, the timeout was reached or the wait was interrupted
+     */
+    private <T> T sendAndWait(final Message message, final ResponseFuture<T> future, final long timeout) throws SOAPException {
+        Exchange exchange = _domain.createExchange(_serviceName, ExchangePattern.IN_OUT, this);
+        // Register before sending, the reply may arrive on this very thread
+        if (!_pending.add(exchange, future)) {
+            throw busyException();
         }
+        try {
+            exchange.send(message);
+            T response = future.get(timeout);
+            if (response == null) {
+                if (!future.isDone()) {
+                    throw timeoutException(timeout);
+                }
+                // The response may have arrived right after the wait timed out
+                response = future.get(0);
+            }
+            return response;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SOAPException("Interrupted while waiting for response from service " + _serviceName);
+        } finally {
+            _pending.remove(exchange);
+        }
+    }
+
+    /**
+     * The delegate method called by the asynchronous Webservice implementation. Returns as
+     * soon as the request has been sent, the response is delivered through the future.
+     * One way requests are acknowledged before the SOAP message is built.
+     * @param request the serialized SOAP request
+     * @param soapAction the SOAPAction of the request, may be null
+     * @param future the future completed with the SOAP response envelope
+     */
+    public void invokeAsync(final byte[] request, final String soapAction, final ResponseFuture<Source> future) {
+        invokeAsync(request, soapAction, null, future);
+    }
+
+    /**
+     * The delegate method called by the asynchronous Webservice implementation for requests
+     * that may carry MIME attachments, the attachments are added to the Message by Content-ID
+     * and attachments of the response are added to the MIME exchange. Requests with
+     * attachments bypass the response cache. Throttled requests are answered with a
+     * ThrottledFault.
+     * @param request the serialized SOAP request
+     * @param soapAction the SOAPAction of the request, may be null
+     * @param mime the MIME exchange of the request, may be null
+     * @param future the future completed with the SOAP response envelope
+     */
+    public void invokeAsync(final byte[] request, final String soapAction, final XopFilter.XopExchange mime,
+            final ResponseFuture<Source> future) {
+        Map<String, DataSource> attachments = (mime != null) ? mime.getAttachments() : null;
+        try {
+            OperationInfo operation = _operations.lookup(SOAPUtil.peekBodyElementName(request), soapAction);
+            if (operation == null) {
+                future.complete(unknownOperationEnvelope());
+                return;
+            }
+            String cacheKey = null;
+            if (operation.isCacheable() && (attachments == null || attachments.isEmpty())) {
+                cacheKey = cacheKey(operation, request, true);
+                byte[] cached = _responseCache.get(cacheKey);
+                if (cached != null) {
+                    future.complete(new StreamSource(new ByteArrayInputStream(cached)));
+                    return;
+                }
+            }
+            final Throttle opThrottle = operation.getThrottle();
+            long retryAfter = admit(opThrottle);
+            if (retryAfter > 0) {
+                future.complete(throttledFault(retryAfter, true));
+                return;
+            }
+            if (operation.isOneWay()) {
+                future.complete(null);
+                try {
+                    Exchange exchange = _domain.createExchange(_serviceName, ExchangePattern.IN_ONLY, this);
+                    Message message = compose(request, attachments);
+                    exchange.send(message);
+                } finally {
+                    release(opThrottle);
+                }
+            } else {
+                ResponseFuture<SOAPMessage> envelopeFuture = sourceFuture(mime, future);
+                final ResponseFuture<SOAPMessage> response = (cacheKey != null)
+                        ? cachingFuture(cacheKey, operation.getCacheTtl(), envelopeFuture) : envelopeFuture;
+                final Exchange exchange;
+                Message message;
+                try {
+                    exchange = _domain.createExchange(_serviceName, ExchangePattern.IN_OUT, this);
+                    message = compose(request, attachments);
+                } catch (SOAPException se) {
+                    release(opThrottle);
+                    throw se;
+                } catch (RuntimeException re) {
+                    release(opThrottle);
+                    throw new SOAPException("Unable to create exchange for service " + _serviceName, re);
+                }
+                // From here on the permits are released by whoever completes the response
+                response.onCompletion(new Runnable() {
+                    public void run() {
+                        release(opThrottle);
+                    }
+                });
+                if (!_pending.add(exchange, response)) {
+                    response.complete(errorFault(busyException()));
+                    return;
+                }
+                final long timeout = operation.getTimeout();
+                final Runnable expire = new Runnable() {
+                    public void run() {
+                        if (_pending.remove(exchange) != null) {
+                            response.complete(errorFault(timeoutException(timeout)));
+                        }
+                    }
+                };
+                response.setTimeout(_timer.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            _timeoutExecutor.execute(expire);
+                        } catch (RejectedExecutionException ree) {
+                            expire.run();
+                        }
+                    }
+                }, timeout));
+                try {
+                    exchange.send(message);
+                } catch (RuntimeException re) {
+                    LOGGER.error(re);
+                    if (_pending.remove(exchange) != null) {
+                        response.complete(errorFault(new SOAPException("Unable to send request to service "
+                                + _serviceName, re)));
+                    }
+                }
+            }
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            future.complete(faultEnvelope(errorFault(se)));
+        }
+    }
+
+    /**
+     * Wraps a future so that the envelope of the SOAP response is passed on.
+     * @param mime the MIME exchange of the request, receives the response attachments, may be null
+     * @param future the future to complete with the SOAP response envelope
+     * @return the wrapping future
+     */
+    private ResponseFuture<SOAPMessage> sourceFuture(final XopFilter.XopExchange mime, final ResponseFuture<Source> future) {
+        return new ResponseFuture<SOAPMessage>() {
+            @Override
+            protected void done(final SOAPMessage response) {
+                Source envelope;
+                try {
+                    envelope = envelope(response, mime);
+                } catch (SOAPException se) {
+                    LOGGER.error(se);
+                    envelope = faultEnvelope(errorFault(se));
+                }
+                future.complete(envelope);
+            }
+        };
+    }
+
+    /**
+     * Wraps a future so that the response is cached before it is passed on.
+     * @param cacheKey the cache key
+     * @param ttl the time to live in milliseconds
+     * @param future the future to complete with the response
+     * @return the wrapping future
+     */
+    private ResponseFuture<SOAPMessage> cachingFuture(final String cacheKey, final long ttl,
+            final ResponseFuture<SOAPMessage> future) {
+        return new ResponseFuture<SOAPMessage>() {
+            @Override
+            protected void done(final SOAPMessage response) {
+                cacheResponse(cacheKey, ttl, response);
+                future.complete(response);
+            }
+        };
+    }
+
+    /**
+     * Builds the response cache key from the operation name and a canonical hash of the
+     * request body, so that prefix, attribute order and whitespace differences still hit.
+     * @param operation the operation
+     * @param request the serialized request
+     * @param envelope true if the request is a SOAP envelope, false for a body payload
+     * @return the cache key
+     * @throws SOAPException If the request could not be parsed
+     */
+    private static String cacheKey(final OperationInfo operation, final byte[] request, final boolean envelope)
+        throws SOAPException {
+        return operation.getName() + ":" + SOAPUtil.canonicalHash(request, envelope);
+    }
+
+    /**
+     * Stores a response in the response cache unless it is a fault or has attachments.
+     * @param cacheKey the cache key
+     * @param ttl the time to live in milliseconds
+     * @param response the SOAP response, may be null
+     */
+    private void cacheResponse(final String cacheKey, final long ttl, final SOAPMessage response) {
+        if (response == null || response.countAttachments() > 0) {
+            return;
+        }
+        try {
+            byte[] bytes = SOAPUtil.toBytes(response);
+            if (!SOAPUtil.isFault(bytes, true)) {
+                _responseCache.put(cacheKey, bytes, ttl);
+            }
+        } catch (SOAPException se) {
+            LOGGER.warn("Could not cache response for service " + _serviceName, se);
+        }
+    }
+
+    /**
+     * Returns the response cache of this endpoint, exposing hit, miss and eviction counts.
+     * @return the ResponseCache
+     */
+    public ResponseCache getResponseCache() {
+        return _responseCache;
+    }
+
+    /**
+     * Composes a Message from a serialized request, streaming composers skip the SAAJ tree.
+     * @param request the serialized SOAP request
+     * @param attachments the request attachments by Content-ID, may be null
+     * @return the composed Message
+     * @throws SOAPException If the SOAP message is not correct.
+     */
+    private Message compose(final byte[] request, final Map<String, DataSource> attachments) throws SOAPException {
+        if (_composer instanceof StreamingMessageComposer) {
+            return attach(((StreamingMessageComposer) _composer).compose(request), attachments);
+        }
+        return attach(_composer.compose(SOAPUtil.createMessage(request)), attachments);
+    }
+
+    /**
+     * Adds request attachments to a composed Message.
+     * @param message the Message
+     * @param attachments the attachments by Content-ID, may be null
+     * @return the Message
+     */
+    private static Message attach(final Message message, final Map<String, DataSource> attachments) {
+        if (attachments != null) {
+            for (Map.Entry<String, DataSource> attachment : attachments.entrySet()) {
+                message.addAttachment(attachment.getKey(), attachment.getValue());
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Returns the endpoint throttle, its limits can be changed at runtime.
+     * @return the Throttle
+     */
+    public Throttle getThrottle() {
+        return _throttle;
+    }
+
+    /**
+     * Returns the throttle of an operation, creating an unlimited one if none has been
+     * configured yet. Its limits can be changed at runtime.
+     * @param opName the operation name
+     * @return the Throttle
+     */
+    public Throttle getThrottle(final String opName) {
+        Throttle throttle = _operationThrottles.get(opName);
+        if (throttle == null) {
+            _operationThrottles.putIfAbsent(opName, new Throttle(0, 0));
+            throttle = _operationThrottles.get(opName);
+        }
+        return throttle;
+    }
+
+    /**
+     * Admits a request against the endpoint and operation throttles.
+     * @param opThrottle the operation throttle, may be null
+     * @return 0 if admitted, otherwise the suggested retry delay in milliseconds
+     */
+    private long admit(final Throttle opThrottle) {
+        long retryAfter = _throttle.tryAcquire();
+        if (retryAfter == 0 && opThrottle != null) {
+            retryAfter = opThrottle.tryAcquire();
+            if (retryAfter > 0) {
+                _throttle.release();
+            }
+        }
+        return retryAfter;
+    }
+
+    /**
+     * Releases a request admitted by admit().
+     * @param opThrottle the operation throttle, may be null
+     */
+    private void release(final Throttle opThrottle) {
+        if (opThrottle != null) {
+            opThrottle.release();
+        }
+        _throttle.release();
+    }
+
+    /**
+     * Creates the fault returned for throttled requests. The fault is serialized once per
+     * retry delay and each rejection reads it through its own stream, so no Exchange, DOM
+     * or SAAJ tree is built. The endpoint sends the delay as Retry-After HTTP header.
+     * @param retryAfter the suggested retry delay in milliseconds
+     * @param envelope true for a SOAP envelope, false for a SOAP Fault payload
+     * @return the SOAP fault
+     * @throws SOAPException If the fault could not be created
+     */
+    private ThrottledFault throttledFault(final long retryAfter, final boolean envelope) throws SOAPException {
+        Long seconds = Long.valueOf(Math.min(MAX_RETRY_AFTER, (retryAfter + 999) / 1000));
+        byte[] fault = envelope ? _throttledFaults.get(seconds) : _throttledPayloads.get(seconds);
+        if (fault == null) {
+            SOAPMessage faultMsg = SOAPUtil.generateFault(new SOAPException("Service " + _serviceName
+                    + " is busy, retry after " + seconds + " seconds"));
+            faultMsg.getSOAPBody().getFault().addDetail().addDetailEntry(RETRY_AFTER_QN).addTextNode(seconds.toString());
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            SOAPUtil.writeElement(faultMsg.getSOAPBody().getFault(), payload);
+            _throttledFaults.putIfAbsent(seconds, SOAPUtil.toBytes(faultMsg));
+            _throttledPayloads.putIfAbsent(seconds, payload.toByteArray());
+            fault = envelope ? _throttledFaults.get(seconds) : _throttledPayloads.get(seconds);
+        }
+        return new ThrottledFault(fault, seconds.longValue());
+    }
+
+    /**
+     * Creates the exception reported when a response did not arrive in time.
+     * @param timeout the timeout in milliseconds
+     * @return the exception
+     */
+    private SOAPException timeoutException(final long timeout) {
+        return new SOAPException("Timed out after " + timeout + "ms waiting for response from service " + _serviceName);
+    }
+
+    /**
+     * Creates the exception reported when too many requests are already pending.
+     * @return the exception
+     */
+    private SOAPException busyException() {
+        return new SOAPException("Too many pending requests for service " + _serviceName
+                + ", limit is " + _pending.getLimit());
+    }
+
+    /**
+     * Creates a fault for an error.
+     * @param se the error
+     * @return the SOAP fault or null if it could not be created
+     */
+    private SOAPMessage errorFault(final SOAPException se) {
+        try {
+            return SOAPUtil.generateFault(se);
+        } catch (SOAPException fe) {
+            LOGGER.error(fe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the envelope of a fault message as a Source.
+     * @param fault the SOAP fault message, may be null
+     * @return the SOAP Fault envelope or null
+     */
+    private Source faultEnvelope(final SOAPMessage fault) {
+        try {
+            return (fault != null) ? fault.getSOAPPart().getContent() : null;
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the SOAP Fault element of a fault message as a payload.
+     * @param fault the SOAP fault message, may be null
+     * @return the SOAP Fault payload or null
+     */
+    private Source faultPayload(final SOAPMessage fault) {
+        try {
+            return (fault != null) ? new DOMSource(fault.getSOAPBody().getFault()) : null;
+        } catch (SOAPException se) {
+            LOGGER.error(se);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the fault returned for requests that do not match any WSDL operation.
+     * @return the SOAP fault
+     * @throws SOAPException If the fault could not be created
+     */
+    private SOAPMessage unknownOperationFault() throws SOAPException {
+        return SOAPUtil.createMessage(_unknownOperationFault);
+    }
+
+    /**
+     * Returns the fault envelope for requests that do not match any WSDL operation.
+     * @return the SOAP fault envelope
+     */
+    private Source unknownOperationEnvelope() {
+        return new StreamSource(new ByteArrayInputStream(_unknownOperationFault));
+    }
+
+    /**
+     * Detects the operation of a request from its first body element and admits requests
+     * of operations that are not cached. Cached operations are admitted once the cache
+     * has been checked with the complete request.
+     */
+    private final class Admission implements SOAPUtil.BodyElementListener {
+        private final String _soapAction;
+        private OperationInfo _operation;
+        private Source _rejection;
+        private boolean _admitted;
+
+        private Admission(final String soapAction) {
+            _soapAction = soapAction;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean bodyElement(final QName name) {
+            _operation = _operations.lookup(name, _soapAction);
+            if (_operation == null) {
+                _rejection = unknownOperationEnvelope();
+                return false;
+            }
+            if (_operation.isCacheable()) {
+                return true;
+            }
+            long retryAfter = admit(_operation.getThrottle());
+            if (retryAfter > 0) {
+                try {
+                    _rejection = throttledFault(retryAfter, true);
+                } catch (SOAPException se) {
+                    LOGGER.error(se);
+                    _rejection = faultEnvelope(errorFault(se));
+                }
+                return false;
+            }
+            _admitted = true;
+            return true;
+        }
+
+        private OperationInfo getOperation() {
+            return _operation;
+        }
+
+        private boolean isAdmitted() {
+            return _admitted;
+        }
+
+        private Source getRejection() {
+            return _rejection;
+        }
+
+        /**
+         * Releases the admission of a request that could not be read.
+         */
+        private void release() {
+            if (_admitted) {
+                _admitted = false;
+                InboundHandler.this.release(_operation.getThrottle());
+            }
+        }
+    }
+
+    /**
+     * The future of a large request, completed with the SOAP response envelope.
+     */
+    private static final class EnvelopeFuture extends ResponseFuture<Source> {
+    }
+
+    /**
+     * The future of a request with a chunked response, completed with the response Message.
+     */
+    private static final class MessageFuture extends ResponseFuture<Message> {
     }
 }
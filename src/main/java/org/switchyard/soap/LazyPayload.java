@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.switchyard.soap.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * A serialized SOAP body payload used as Message content by the StreamingMessageComposer.
+ * The payload is kept as bytes, or as MappedContent for large messages, and is only parsed
+ * when a PayloadMessage is asked for its content as an Element.
+ */
+public final class LazyPayload implements PayloadSource {
+    private final byte[] _bytes;
+    private final MappedContent _content;
+
+    /**
+     * Creates a payload over serialized bytes.
+     * @param bytes the serialized payload
+     */
+    public LazyPayload(final byte[] bytes) {
+        _bytes = bytes;
+        _content = null;
+    }
+
+    /**
+     * Creates a payload over a memory-mapped file. The owner of the content deletes it
+     * once the Message is no longer used.
+     * @param content the serialized payload
+     */
+    public LazyPayload(final MappedContent content) {
+        _bytes = null;
+        _content = content;
+    }
+
+    /**
+     * Returns the streaming view of a content object if it has one.
+     * @param content the Message content
+     * @return the PayloadSource or null
+     */
+    public static PayloadSource getPayloadSource(final Object content) {
+        return (content instanceof PayloadSource) ? (PayloadSource) content : null;
+    }
+
+    /**
+     * Returns the mapped payload of a content object that has not been materialized.
+     * @param content the Message content
+     * @return the MappedContent or null
+     */
+    public static MappedContent getMappedContent(final Object content) {
+        return (content instanceof LazyPayload) ? ((LazyPayload) content)._content : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Source getSource() {
+        return new StreamSource(openStream());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public XMLStreamReader getXMLStreamReader() throws XMLStreamException {
+        return XMLHelper.getXMLStreamReader(openStream());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] getBytes() {
+        return (_content != null) ? _content.toByteArray() : _bytes;
+    }
+
+    /**
+     * Parses the payload into a new DOM.
+     * @return the payload Element
+     * @throws SOAPException If the payload could not be parsed
+     */
+    public Element toElement() throws SOAPException {
+        try {
+            return XMLHelper.createDocument(XMLHelper.getXMLEventReader(openStream())).getDocumentElement();
+        } catch (Exception e) {
+            throw new SOAPException("Unable to parse payload", e);
+        }
+    }
+
+    /**
+     * Opens a stream over the serialized payload, a mapped payload is read in place.
+     * @return the stream
+     */
+    private InputStream openStream() {
+        return (_content != null) ? _content.getInputStream() : new ByteArrayInputStream(_bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "LazyPayload[" + ((_content != null) ? _content.getSize() : _bytes.length) + " bytes]";
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends calls to the backend with the fewest calls in progress. Two backends are picked
+ * at random and the less loaded one wins, which avoids every caller herding onto the
+ * same backend between updates.
+ */
+public class LeastOutstandingLoadBalancer implements LoadBalancer {
+    private final Random _random = new Random();
+
+    /**
+     * {@inheritDoc}
+     */
+    public Backend select(final List<Backend> backends) {
+        int size = backends.size();
+        if (size == 1) {
+            return backends.get(0);
+        }
+        int first = _random.nextInt(size);
+        int second = (first + 1 + _random.nextInt(size - 1)) % size;
+        Backend a = backends.get(first);
+        Backend b = backends.get(second);
+        return (cost(a) <= cost(b)) ? a : b;
+    }
+
+    /**
+     * Returns the cost of sending a call to a backend, lower is better.
+     * @param backend the backend
+     * @return the cost
+     */
+    protected double cost(final Backend backend) {
+        return backend.getOutstanding();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Content of a large message held in a memory-mapped temporary file. The pages are
+ * loaded and evicted by the operating system, so reading the content does not put it on
+ * the Java heap. Streams opened before delete() keep reading the mapped region.
+ */
+public final class MappedContent {
+    private final File _file;
+    private final TempFile _tempFile;
+    private final long _size;
+    private final AtomicBoolean _deleted = new AtomicBoolean();
+    private volatile ByteBuffer _buffer;
+
+    /**
+     * Maps a file, the MappedContent owns the file from now on.
+     * @param file the file
+     * @throws IOException If the file could not be mapped or is larger than 2 GB
+     */
+    MappedContent(final File file) throws IOException {
+        _file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            _size = channel.size();
+            if (_size > Integer.MAX_VALUE) {
+                throw new IOException("Message of " + _size + " bytes exceeds the 2 GB mapping limit");
+            }
+            _buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, _size);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+        _tempFile = TempFile.track(this, file);
+    }
+
+    /**
+     * Returns the size of the content.
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * Returns a new stream over the content.
+     * @return the stream
+     */
+    public InputStream getInputStream() {
+        return new BufferInputStream(buffer(), null);
+    }
+
+    /**
+     * Returns a new stream over the content that deletes the content once the stream is
+     * read to its end or closed. Used for responses handed to the container.
+     * @return the stream
+     */
+    public InputStream getReleasingInputStream() {
+        return new BufferInputStream(buffer(), this);
+    }
+
+    /**
+     * Returns a new Source over the content.
+     * @return the Source
+     */
+    public Source getSource() {
+        return new StreamSource(getInputStream());
+    }
+
+    /**
+     * Copies the content to the heap, only meant for content that turned out to be small
+     * or for callers that need a byte array.
+     * @return the content
+     */
+    public byte[] toByteArray() {
+        ByteBuffer buffer = buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks if the content was deleted.
+     * @return true if delete() has been called
+     */
+    public boolean isDeleted() {
+        return _deleted.get();
+    }
+
+    /**
+     * Releases the mapping and removes the file. The mapped pages are unmapped when the
+     * buffer is garbage collected, platforms that do not allow removing a mapped file
+     * remove it when the JVM exits. Content that is never deleted has its file removed
+     * once it is garbage collected.
+     */
+    public void delete() {
+        if (_deleted.compareAndSet(false, true)) {
+            _buffer = null;
+            _tempFile.delete();
+        }
+    }
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = _buffer;
+        if (buffer == null) {
+            throw new IllegalStateException("Content of " + _file + " has been deleted");
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Reads a buffer, optionally deleting the content at the end.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer _buffer;
+        private MappedContent _release;
+
+        private BufferInputStream(final ByteBuffer buffer, final MappedContent release) {
+            _buffer = buffer;
+            _release = release;
+        }
+
+        @Override
+        public int read() {
+            if (!_buffer.hasRemaining()) {
+                release();
+                return -1;
+            }
+            return _buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!_buffer.hasRemaining()) {
+                release();
+                return -1;
+            }
+            int count = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            int count = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+            _buffer.position(_buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return _buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+        private void release() {
+            if (_release != null) {
+                _release.delete();
+                _release = null;
+            }
+        }
+    }
+}
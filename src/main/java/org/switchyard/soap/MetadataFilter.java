@@ -0,0 +1,250 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Serves ?wsdl and ?xsd= requests from memory. Once the endpoint is published, load()
+ * fetches the WSDL and every document it references from the JAX-WS endpoint for each
+ * of the endpoint's own addresses, so the documents carry the addresses patched for that
+ * host. Requests for these addresses get the bytes straight away with an ETag and
+ * Last-Modified, or a 304 when the client already has them. Requests with any other Host
+ * header go through to the endpoint, so the cache cannot be grown by clients.
+ */
+public class MetadataFilter extends Filter {
+    private static final Logger LOGGER = Logger.getLogger(MetadataFilter.class);
+    private static final String RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final int HTTP_OK = 200;
+    private static final int DEFAULT_HTTP_PORT = 80;
+    private static final int BUFFER_SIZE = 8192;
+    // Imported WSDL and XML Schema documents as rewritten by the JAX-WS endpoint
+    private static final Pattern REFERENCE = Pattern.compile("\\?((?:wsdl|xsd)=[^\"'&<>\\s]+)[\"']");
+
+    private final URL[] _addresses;
+    private final ConcurrentHashMap<String, Document> _documents = new ConcurrentHashMap<String, Document>();
+
+    /**
+     * Constructor.
+     * @param addresses the addresses the endpoint is published at
+     */
+    public MetadataFilter(final URL... addresses) {
+        _addresses = addresses;
+    }
+
+    /**
+     * Fetches and keeps the metadata documents of every address. Must be called after the
+     * endpoint is published, documents that could not be fetched are served by the endpoint.
+     */
+    public void load() {
+        for (URL address : _addresses) {
+            try {
+                load(address, "wsdl", new HashSet<String>());
+            } catch (IOException ioe) {
+                LOGGER.warn("Could not load metadata documents of " + address + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void load(final URL address, final String query, final Set<String> loaded) throws IOException {
+        loaded.add(query);
+        HttpURLConnection connection = (HttpURLConnection) new URL(address + "?" + query).openConnection();
+        byte[] content;
+        try {
+            if (connection.getResponseCode() != HTTP_OK) {
+                LOGGER.warn("Could not load metadata document " + address + "?" + query
+                        + ", HTTP status " + connection.getResponseCode());
+                return;
+            }
+            content = readFully(connection.getInputStream());
+            _documents.put(normalize(address.getHost(), address.getPort()) + "?" + query,
+                    new Document(content, connection.getContentType()));
+        } finally {
+            connection.disconnect();
+        }
+        Matcher matcher = REFERENCE.matcher(new String(content, "UTF-8"));
+        while (matcher.find()) {
+            if (!loaded.contains(matcher.group(1))) {
+                load(address, matcher.group(1), loaded);
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Serves WSDL and XML Schema documents with conditional GET support";
+    }
+
+    @Override
+    public void doFilter(final HttpExchange exchange, final Chain chain) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        Document document = null;
+        if (host != null && "GET".equalsIgnoreCase(exchange.getRequestMethod()) && isMetadata(query)) {
+            document = _documents.get(normalize(host) + "?" + query);
+        }
+        if (document == null) {
+            chain.doFilter(exchange);
+            return;
+        }
+        serve(exchange, document);
+    }
+
+    private static String normalize(final String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon > host.lastIndexOf(']')) {
+            try {
+                return normalize(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)));
+            } catch (NumberFormatException nfe) {
+                return host;
+            }
+        }
+        return normalize(host, -1);
+    }
+
+    private static String normalize(final String host, final int port) {
+        return host.toLowerCase(Locale.ENGLISH) + ":" + ((port != -1) ? port : DEFAULT_HTTP_PORT);
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isMetadata(final String query) {
+        return query != null && (query.equalsIgnoreCase("wsdl") || query.startsWith("wsdl=") || query.startsWith("xsd="));
+    }
+
+    private static void serve(final HttpExchange exchange, final Document document) throws IOException {
+        exchange.getResponseHeaders().set("ETag", document._etag);
+        exchange.getResponseHeaders().set("Last-Modified", format(document._lastModified));
+        if (isNotModified(exchange, document)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (document._contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", document._contentType);
+        }
+        exchange.sendResponseHeaders(200, document._content.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(document._content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean isNotModified(final HttpExchange exchange, final Document document) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String etag : ifNoneMatch.split(",")) {
+                etag = etag.trim();
+                if (etag.equals("*") || etag.equals(document._etag) || etag.equals("W/" + document._etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                return document._lastModified / 1000 <= parse(ifModifiedSince).getTime() / 1000;
+            } catch (ParseException pe) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String format(final long time) {
+        SimpleDateFormat format = new SimpleDateFormat(RFC1123, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static Date parse(final String date) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat(RFC1123, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.parse(date);
+    }
+
+    /**
+     * A generated document and its validators.
+     */
+    private static final class Document {
+        private final byte[] _content;
+        private final String _contentType;
+        private final String _etag;
+        private final long _lastModified = System.currentTimeMillis();
+
+        private Document(final byte[] content, final String contentType) {
+            _content = content;
+            _contentType = contentType;
+            _etag = etag(content);
+        }
+
+        private static String etag(final byte[] content) {
+            try {
+                StringBuilder etag = new StringBuilder("\"");
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                    etag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return etag.append('"').toString();
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+        }
+    }
+}
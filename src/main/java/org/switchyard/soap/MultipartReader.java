@@ -0,0 +1,225 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the parts of a MIME multipart body one after the other without buffering the
+ * whole body. Each part is exposed as a stream ending at the next boundary, it must be
+ * read or skipped before the next part is requested.
+ */
+public class MultipartReader {
+    private static final int MAX_HEADER_LENGTH = 16384;
+
+    private final PushbackInputStream _in;
+    private final byte[] _delimiter;
+    private final byte[] _buffer;
+    private PartInputStream _part;
+    private boolean _finished;
+
+    /**
+     * Constructor.
+     * @param in the multipart body
+     * @param boundary the boundary parameter of the multipart Content-Type
+     * @throws IOException If the boundary is not ASCII
+     */
+    public MultipartReader(final InputStream in, final String boundary) throws IOException {
+        _delimiter = ("\r\n--" + boundary).getBytes("US-ASCII");
+        _buffer = new byte[_delimiter.length];
+        _in = new PushbackInputStream(new BufferedInputStream(in), _delimiter.length * 2);
+        // The first delimiter may come without the leading CRLF
+        _in.unread(new byte[] {'\r', '\n'});
+    }
+
+    /**
+     * Moves to the next part.
+     * @return the header names in lower case mapped to their values, null after the last part
+     * @throws IOException If the body is malformed or could not be read
+     */
+    public Map<String, String> nextPart() throws IOException {
+        if (_finished) {
+            return null;
+        }
+        if (_part == null) {
+            // Skip the preamble
+            new PartInputStream().skipAll();
+        } else {
+            _part.skipAll();
+        }
+        int first = _in.read();
+        int second = _in.read();
+        if (first == '-' && second == '-') {
+            _finished = true;
+            return null;
+        }
+        // Transport padding after the delimiter is ignored
+        while (first == ' ' || first == '\t') {
+            first = second;
+            second = _in.read();
+        }
+        if (first != '\r' || second != '\n') {
+            throw new IOException("Malformed multipart body, missing line break after boundary");
+        }
+        Map<String, String> headers = readHeaders();
+        _part = new PartInputStream();
+        return headers;
+    }
+
+    /**
+     * Returns the content of the current part.
+     * @return the stream ending at the next boundary
+     */
+    public InputStream getPartStream() {
+        return _part;
+    }
+
+    /**
+     * Reads the header lines of a part up to the empty line.
+     * @return the headers
+     * @throws IOException If the headers are malformed or too long
+     */
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        String previous = null;
+        int total = 0;
+        while (true) {
+            int b = _in.read();
+            if (b < 0) {
+                throw new IOException("Malformed multipart body, unexpected end in part headers");
+            }
+            if (++total > MAX_HEADER_LENGTH) {
+                throw new IOException("Multipart part headers exceed " + MAX_HEADER_LENGTH + " bytes");
+            }
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String text = line.toString("ISO-8859-1");
+            line.reset();
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            if (text.length() == 0) {
+                return headers;
+            }
+            if ((text.charAt(0) == ' ' || text.charAt(0) == '\t') && previous != null) {
+                // Folded header line
+                headers.put(previous, headers.get(previous) + " " + text.trim());
+                continue;
+            }
+            int colon = text.indexOf(':');
+            if (colon > 0) {
+                previous = text.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                headers.put(previous, text.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * The content of a part, ends where the next delimiter starts.
+     */
+    private final class PartInputStream extends InputStream {
+        private boolean _end;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (_end) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len) {
+                int c = _in.read();
+                if (c < 0) {
+                    throw new IOException("Malformed multipart body, missing closing boundary");
+                }
+                if (c == _delimiter[0] && atDelimiter(c)) {
+                    _end = true;
+                    break;
+                }
+                b[off + count++] = (byte) c;
+                if (count > 0 && _in.available() == 0) {
+                    break;
+                }
+            }
+            return (count == 0 && _end) ? -1 : count;
+        }
+
+        /**
+         * Checks if the delimiter starts with the byte just read, consuming it if so.
+         * @param c the byte read
+         * @return true if the delimiter was consumed
+         * @throws IOException If the body could not be read
+         */
+        private boolean atDelimiter(final int c) throws IOException {
+            _buffer[0] = (byte) c;
+            int read = 1;
+            while (read < _delimiter.length) {
+                int n = _in.read(_buffer, read, _delimiter.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            for (int i = 1; i < read; i++) {
+                if (_buffer[i] != _delimiter[i]) {
+                    _in.unread(_buffer, 1, read - 1);
+                    return false;
+                }
+            }
+            if (read < _delimiter.length) {
+                _in.unread(_buffer, 1, read - 1);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Reads the rest of the part.
+         * @throws IOException If the body could not be read
+         */
+        private void skipAll() throws IOException {
+            byte[] skip = new byte[_delimiter.length * 4];
+            while (read(skip, 0, skip.length) > -1) {
+                continue;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.wsdl.Binding;
+import javax.wsdl.BindingInput;
+import javax.wsdl.BindingOperation;
+import javax.wsdl.Input;
+import javax.wsdl.Operation;
+import javax.wsdl.OperationType;
+import javax.wsdl.Part;
+import javax.wsdl.Port;
+import javax.wsdl.extensions.soap.SOAPBinding;
+import javax.wsdl.extensions.soap.SOAPBody;
+import javax.wsdl.extensions.soap.SOAPOperation;
+import javax.wsdl.extensions.soap12.SOAP12Binding;
+import javax.wsdl.extensions.soap12.SOAP12Body;
+import javax.wsdl.extensions.soap12.SOAP12Operation;
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+
+import org.switchyard.soap.util.SOAPUtil;
+
+/**
+ * Immutable index of the operations of a WSDL port, built once when a handler starts
+ * so that requests are matched with hash lookups instead of walking the WSDL model.
+ * Operations are looked up by SOAP body element, then by SOAPAction and finally by
+ * local name. Overloaded operations are not supported.
+ */
+public class OperationIndex {
+    private static final String RPC = "rpc";
+
+    private final Map<QName, OperationInfo> _byElement;
+    private final Map<String, OperationInfo> _bySoapAction;
+    private final Map<String, OperationInfo> _byName;
+
+    /**
+     * Creates an index without timeouts, throttles or caching.
+     * @param port the WSDL port
+     */
+    public OperationIndex(final Port port) {
+        this(port, 0, Collections.<String, Long>emptyMap(), Collections.<String, Throttle>emptyMap(),
+                Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param port the WSDL port
+     * @param defaultTimeout the response timeout for operations without their own
+     * @param timeouts response timeouts by operation name
+     * @param throttles throttles by operation name
+     * @param cacheTtls response cache time to live by operation name
+     */
+    public OperationIndex(final Port port, final long defaultTimeout, final Map<String, Long> timeouts,
+            final Map<String, Throttle> throttles, final Map<String, Long> cacheTtls) {
+        Map<QName, OperationInfo> byElement = new HashMap<QName, OperationInfo>();
+        Map<String, OperationInfo> bySoapAction = new HashMap<String, OperationInfo>();
+        Map<String, OperationInfo> byName = new HashMap<String, OperationInfo>();
+
+        Binding binding = port.getBinding();
+        String bindingStyle = getStyle(binding.getExtensibilityElements());
+        for (Iterator<?> i = binding.getBindingOperations().iterator(); i.hasNext();) {
+            BindingOperation bindingOperation = (BindingOperation) i.next();
+            Operation operation = bindingOperation.getOperation();
+            String name = operation.getName();
+
+            String soapAction = null;
+            String style = bindingStyle;
+            for (Object ext : bindingOperation.getExtensibilityElements()) {
+                if (ext instanceof SOAPOperation) {
+                    soapAction = ((SOAPOperation) ext).getSoapActionURI();
+                    style = (((SOAPOperation) ext).getStyle() != null) ? ((SOAPOperation) ext).getStyle() : style;
+                } else if (ext instanceof SOAP12Operation) {
+                    soapAction = ((SOAP12Operation) ext).getSoapActionURI();
+                    style = (((SOAP12Operation) ext).getStyle() != null) ? ((SOAP12Operation) ext).getStyle() : style;
+                }
+            }
+
+            QName elementName;
+            if (RPC.equals(style)) {
+                elementName = new QName(getNamespace(bindingOperation.getBindingInput()), name);
+            } else {
+                elementName = getElementName(operation.getInput());
+            }
+
+            Long timeout = timeouts.get(name);
+            Long cacheTtl = cacheTtls.get(name);
+            OperationInfo info = new OperationInfo(name, elementName, soapAction,
+                    OperationType.ONE_WAY.equals(operation.getStyle()),
+                    (timeout != null) ? timeout.longValue() : defaultTimeout,
+                    throttles.get(name), (cacheTtl != null) ? cacheTtl.longValue() : 0);
+            if (elementName != null) {
+                byElement.put(elementName, info);
+            }
+            if (soapAction != null && soapAction.length() > 0) {
+                bySoapAction.put(soapAction, info);
+            }
+            byName.put(name, info);
+        }
+        _byElement = Collections.unmodifiableMap(byElement);
+        _bySoapAction = Collections.unmodifiableMap(bySoapAction);
+        _byName = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * Finds the operation a SOAP request is targeted at.
+     * @param soapMessage the SOAP request
+     * @return the operation or null if it is not part of the port
+     * @throws SOAPException If the SOAP message is invalid
+     */
+    public OperationInfo lookup(final SOAPMessage soapMessage) throws SOAPException {
+        String soapAction = null;
+        String[] actions = soapMessage.getMimeHeaders().getHeader("SOAPAction");
+        if (actions != null && actions.length > 0) {
+            soapAction = actions[0];
+        }
+        return lookup(SOAPUtil.getBodyElementName(soapMessage), soapAction);
+    }
+
+    /**
+     * Finds an operation.
+     * @param elementName the qualified name of the SOAP body element, may be null
+     * @param soapAction the SOAPAction, may be null
+     * @return the operation or null if it is not part of the port
+     */
+    public OperationInfo lookup(final QName elementName, final String soapAction) {
+        OperationInfo info = null;
+        if (elementName != null) {
+            info = _byElement.get(elementName);
+        }
+        if (info == null && soapAction != null) {
+            info = _bySoapAction.get(stripQuotes(soapAction));
+        }
+        if (info == null && elementName != null) {
+            info = _byName.get(elementName.getLocalPart());
+        }
+        return info;
+    }
+
+    /**
+     * Finds an operation by name.
+     * @param name the operation name
+     * @return the operation or null if it is not part of the port
+     */
+    public OperationInfo getOperation(final String name) {
+        return _byName.get(name);
+    }
+
+    private static String stripQuotes(final String soapAction) {
+        if (soapAction.length() > 1 && soapAction.startsWith("\"") && soapAction.endsWith("\"")) {
+            return soapAction.substring(1, soapAction.length() - 1);
+        }
+        return soapAction;
+    }
+
+    private static String getStyle(final List<?> extensibilityElements) {
+        for (Object ext : extensibilityElements) {
+            if (ext instanceof SOAPBinding) {
+                return ((SOAPBinding) ext).getStyle();
+            } else if (ext instanceof SOAP12Binding) {
+                return ((SOAP12Binding) ext).getStyle();
+            }
+        }
+        return null;
+    }
+
+    private static String getNamespace(final BindingInput bindingInput) {
+        if (bindingInput != null) {
+            for (Object ext : bindingInput.getExtensibilityElements()) {
+                if (ext instanceof SOAPBody && ((SOAPBody) ext).getNamespaceURI() != null) {
+                    return ((SOAPBody) ext).getNamespaceURI();
+                } else if (ext instanceof SOAP12Body && ((SOAP12Body) ext).getNamespaceURI() != null) {
+                    return ((SOAP12Body) ext).getNamespaceURI();
+                }
+            }
+        }
+        return "";
+    }
+
+    private static QName getElementName(final Input input) {
+        if (input != null && input.getMessage() != null) {
+            for (Object part : input.getMessage().getOrderedParts(null)) {
+                if (((Part) part).getElementName() != null) {
+                    return ((Part) part).getElementName();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Immutable metadata of a WSDL operation as needed on the request path.
+ */
+public class OperationInfo {
+    private final String _name;
+    private final QName _elementName;
+    private final String _soapAction;
+    private final boolean _oneWay;
+    private final long _timeout;
+    private final Throttle _throttle;
+    private final long _cacheTtl;
+
+    /**
+     * Constructor.
+     * @param name the operation name
+     * @param elementName the qualified name of the SOAP body element
+     * @param soapAction the SOAPAction, may be null
+     * @param oneWay true if no response is expected
+     * @param timeout the response timeout in milliseconds
+     * @param throttle the operation throttle, may be null
+     * @param cacheTtl the time to live of cached responses in milliseconds, 0 to disable caching
+     */
+    public OperationInfo(final String name, final QName elementName, final String soapAction,
+            final boolean oneWay, final long timeout, final Throttle throttle, final long cacheTtl) {
+        _name = name;
+        _elementName = elementName;
+        _soapAction = soapAction;
+        _oneWay = oneWay;
+        _timeout = timeout;
+        _throttle = throttle;
+        _cacheTtl = cacheTtl;
+    }
+
+    /**
+     * Returns the operation name.
+     * @return the name
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns the qualified name of the SOAP body element.
+     * @return the element name
+     */
+    public QName getElementName() {
+        return _elementName;
+    }
+
+    /**
+     * Returns the SOAPAction.
+     * @return the SOAPAction or null
+     */
+    public String getSoapAction() {
+        return _soapAction;
+    }
+
+    /**
+     * Checks if this is a one way operation.
+     * @return true if no response is expected
+     */
+    public boolean isOneWay() {
+        return _oneWay;
+    }
+
+    /**
+     * Returns the response timeout.
+     * @return the timeout in milliseconds
+     */
+    public long getTimeout() {
+        return _timeout;
+    }
+
+    /**
+     * Returns the operation throttle.
+     * @return the Throttle or null
+     */
+    public Throttle getThrottle() {
+        return _throttle;
+    }
+
+    /**
+     * Returns the time to live of cached responses.
+     * @return the time to live in milliseconds, 0 if responses are not cached
+     */
+    public long getCacheTtl() {
+        return _cacheTtl;
+    }
+
+    /**
+     * Checks if responses of this operation may be cached.
+     * @return true if the operation is request-response with a cache time to live
+     */
+    public boolean isCacheable() {
+        return !_oneWay && _cacheTtl > 0;
+    }
+}
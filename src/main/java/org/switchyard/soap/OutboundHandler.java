@@ -22,18 +22,38 @@
  
 package org.switchyard.soap;
 
-import java.net.URL;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.wsdl.Definition;
-import javax.wsdl.Port;
 import javax.xml.namespace.QName;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
-//import javax.xml.ws.BindingProvider;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.AsyncHandler;
 import javax.xml.ws.Dispatch;
-import javax.xml.ws.Service;
-import javax.xml.ws.soap.AddressingFeature;
+import javax.xml.ws.Response;
+import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.SOAPFaultException;
 
 import org.apache.log4j.Logger;
@@ -50,11 +70,67 @@ import org.switchyard.soap.util.WSDLUtil;
 public class OutboundHandler extends BaseHandler {
 
     private static final Logger LOGGER = Logger.getLogger(OutboundHandler.class);
+    private static final int DEFAULT_DISPATCH_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final long DEFAULT_BORROW_TIMEOUT = 5000;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    private static final String COALESCE_PREFIX = "coalesce.";
+    private static final String CACHE_PREFIX = "cache.";
+    private static final String HEDGE_PREFIX = "hedge.";
+    private static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    private static final double DEFAULT_HEDGE_MAX_PERCENT = 5;
+    private static final String RETRY_PREFIX = "retry.";
+    private static final String CIRCUIT_PREFIX = "circuit";
+    private static final long DEFAULT_RETRY_BACKOFF = 50;
+    private static final long DEFAULT_RETRY_MAX_BACKOFF = 1000;
+    private static final double DEFAULT_RETRY_BUDGET_PERCENT = 10;
+    private static final double MAX_RETRY_TOKENS = 10;
+    private static final long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final Map<String, List<String>> ACCEPT_GZIP_HEADERS = Collections.singletonMap(
+            "Accept-Encoding", Collections.singletonList(CompressionFilter.GZIP));
+    private static final Map<String, List<String>> GZIP_HEADERS;
+    static {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>(ACCEPT_GZIP_HEADERS);
+        headers.put("Content-Encoding", Collections.singletonList(CompressionFilter.GZIP));
+        GZIP_HEADERS = Collections.unmodifiableMap(headers);
+    }
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+    private static final long DEFAULT_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_STALE_WHILE_REVALIDATE = 30000;
+    private static final long DEFAULT_STALE_IF_ERROR = 300000;
+    private static final int DEFAULT_UNHEALTHY_AFTER = 3;
+    private static final long DEFAULT_UNHEALTHY_DURATION = 10000;
     private MessageComposer _composer;
     private MessageDecomposer _decomposer;
-    private Dispatch<SOAPMessage> _dispatcher;
-    private Port _port;
+    private volatile List<Backend> _backends;
+    private final List<String> _addresses = new ArrayList<String>();
+    private LoadBalancer _loadBalancer;
+    private int _unhealthyAfter = DEFAULT_UNHEALTHY_AFTER;
+    private long _unhealthyDuration = DEFAULT_UNHEALTHY_DURATION;
+    private int _dispatchPoolSize = DEFAULT_DISPATCH_POOL_SIZE;
+    private long _borrowTimeout = DEFAULT_BORROW_TIMEOUT;
     private String _wsdlLocation;
+    private boolean _async;
+    private Semaphore _inFlight;
+    private final Set<String> _coalescedOperations = new HashSet<String>();
+    private final SingleFlight _singleFlight = new SingleFlight();
+    private final Map<String, Long> _cacheTtls = new HashMap<String, Long>();
+    private ResponseCache _responseCache;
+    private long _staleWhileRevalidate = DEFAULT_STALE_WHILE_REVALIDATE;
+    private long _staleIfError = DEFAULT_STALE_IF_ERROR;
+    private ExecutorService _revalidator;
+    private final Map<String, HedgePolicy> _hedgePolicies = new HashMap<String, HedgePolicy>();
+    private final Map<String, RetryPolicy> _retryPolicies = new HashMap<String, RetryPolicy>();
+    private TokenBudget _retryBudget;
+    private ScheduledExecutorService _timer;
+    private final HashMap<String, String> _circuitSettings = new HashMap<String, String>();
+    private int _maxConcurrentCalls;
+    private boolean _compression;
+    private long _compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean _mtom;
+    private long _largeMessageThreshold;
+    private final StreamingMessageComposer _largeComposer = new StreamingMessageComposer();
+    private String _warmupRequest;
+    private int _warmupCount;
 
     /**
      * Constructor.
@@ -89,18 +165,339 @@ public class OutboundHandler extends BaseHandler {
 
         _decomposer = new DefaultMessageDecomposer();
         _wsdlLocation = config.get("remoteWSDL");
+        String dispatchPoolSize = config.get("dispatchPoolSize");
+        if (dispatchPoolSize != null) {
+            _dispatchPoolSize = Integer.parseInt(dispatchPoolSize);
+        }
+        String borrowTimeout = config.get("borrowTimeout");
+        if (borrowTimeout != null) {
+            _borrowTimeout = Long.parseLong(borrowTimeout);
+        }
+        _async = "true".equals(config.get("async"));
+        String maxInFlight = config.get("maxInFlight");
+        _inFlight = new Semaphore((maxInFlight != null) ? Integer.parseInt(maxInFlight) : DEFAULT_MAX_IN_FLIGHT);
+        String hedgePercentile = config.get("hedgePercentile");
+        String hedgeMaxPercent = config.get("hedgeMaxPercent");
+        String retryBackoff = config.get("retryBackoff");
+        String retryMaxBackoff = config.get("retryMaxBackoff");
+        String retryBudgetPercent = config.get("retryBudgetPercent");
+        _retryBudget = new TokenBudget(((retryBudgetPercent != null) ? Double.parseDouble(retryBudgetPercent)
+                : DEFAULT_RETRY_BUDGET_PERCENT) / 100, MAX_RETRY_TOKENS);
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            // Coalescing is opt-in, only operations known to be idempotent should be listed
+            if (entry.getKey().startsWith(COALESCE_PREFIX) && "true".equals(entry.getValue())) {
+                _coalescedOperations.add(entry.getKey().substring(COALESCE_PREFIX.length()));
+            } else if (entry.getKey().startsWith(HEDGE_PREFIX) && "true".equals(entry.getValue())) {
+                // So is hedging, a hedged request may be processed twice by the remote service
+                _hedgePolicies.put(entry.getKey().substring(HEDGE_PREFIX.length()), new HedgePolicy(
+                        (hedgePercentile != null) ? Double.parseDouble(hedgePercentile) : DEFAULT_HEDGE_PERCENTILE,
+                        (hedgeMaxPercent != null) ? Double.parseDouble(hedgeMaxPercent) : DEFAULT_HEDGE_MAX_PERCENT));
+            } else if (entry.getKey().startsWith(RETRY_PREFIX)) {
+                // And retrying, the value is the maximum number of retries
+                _retryPolicies.put(entry.getKey().substring(RETRY_PREFIX.length()), new RetryPolicy(
+                        Integer.parseInt(entry.getValue()),
+                        (retryBackoff != null) ? Long.parseLong(retryBackoff) : DEFAULT_RETRY_BACKOFF,
+                        (retryMaxBackoff != null) ? Long.parseLong(retryMaxBackoff) : DEFAULT_RETRY_MAX_BACKOFF,
+                        _retryBudget));
+            } else if (entry.getKey().startsWith(CACHE_PREFIX)) {
+                // Caching is opt-in as well
+                _cacheTtls.put(entry.getKey().substring(CACHE_PREFIX.length()), Long.valueOf(entry.getValue()));
+            }
+        }
+        String cacheSize = config.get("cacheSize");
+        String cacheMaxBytes = config.get("cacheMaxBytes");
+        _responseCache = new ResponseCache((cacheSize != null) ? Integer.parseInt(cacheSize) : DEFAULT_CACHE_SIZE,
+                (cacheMaxBytes != null) ? Long.parseLong(cacheMaxBytes) : DEFAULT_CACHE_MAX_BYTES);
+        String staleWhileRevalidate = config.get("cacheStaleWhileRevalidate");
+        if (staleWhileRevalidate != null) {
+            _staleWhileRevalidate = Long.parseLong(staleWhileRevalidate);
+        }
+        String staleIfError = config.get("cacheStaleIfError");
+        if (staleIfError != null) {
+            _staleIfError = Long.parseLong(staleIfError);
+        }
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            if (entry.getKey().startsWith(CIRCUIT_PREFIX)) {
+                // Every address gets its own breaker, created with the backend
+                _circuitSettings.put(entry.getKey(), entry.getValue());
+            }
+        }
+        String addresses = config.get("addresses");
+        if (addresses != null) {
+            for (String address : addresses.split(",")) {
+                if (address.trim().length() > 0) {
+                    _addresses.add(address.trim());
+                }
+            }
+        }
+        _loadBalancer = createLoadBalancer(config.get("loadBalancer"));
+        String unhealthyAfter = config.get("unhealthyAfter");
+        if (unhealthyAfter != null) {
+            _unhealthyAfter = Integer.parseInt(unhealthyAfter);
+        }
+        String unhealthyDuration = config.get("unhealthyDuration");
+        if (unhealthyDuration != null) {
+            _unhealthyDuration = Long.parseLong(unhealthyDuration);
+        }
+        _compression = "true".equals(config.get("compression"));
+        String compressionThreshold = config.get("compressionThreshold");
+        if (compressionThreshold != null) {
+            _compressionThreshold = Long.parseLong(compressionThreshold);
+        }
+        _mtom = "true".equals(config.get("mtom"));
+        String largeMessageThreshold = config.get("largeMessageThreshold");
+        if (largeMessageThreshold != null) {
+            _largeMessageThreshold = Long.parseLong(largeMessageThreshold);
+        }
+        _warmupRequest = config.get("warmupRequest");
+        String warmupCount = config.get("warmupCount");
+        _warmupCount = (warmupCount != null) ? Integer.parseInt(warmupCount) : _dispatchPoolSize;
+        String maxConcurrentCalls = config.get("maxConcurrentCalls");
+        if (maxConcurrentCalls != null) {
+            _maxConcurrentCalls = Integer.parseInt(maxConcurrentCalls);
+        }
+        if (!_cacheTtls.isEmpty()) {
+            final String threadName = "SOAP cache revalidation " + _wsdlLocation;
+            _revalidator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable task) {
+                    Thread thread = new Thread(task, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (!_retryPolicies.isEmpty() || (_async && !_hedgePolicies.isEmpty())) {
+            final String threadName = "SOAP outbound timer " + _wsdlLocation;
+            _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable task) {
+                    Thread thread = new Thread(task, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
     }
 
     /**
-     * Start lifecycle.
+     * Creates the load balancer from its short name or class name.
+     * @param type roundRobin, leastOutstanding, ewma or a LoadBalancer class name, null for round robin
+     * @return the LoadBalancer
      */
-    public void start() {
+    private static LoadBalancer createLoadBalancer(final String type) {
+        if (type == null || type.length() == 0 || type.equals("roundRobin")) {
+            return new RoundRobinLoadBalancer();
+        } else if (type.equals("leastOutstanding")) {
+            return new LeastOutstandingLoadBalancer();
+        } else if (type.equals("ewma")) {
+            return new EwmaLoadBalancer();
+        }
+        try {
+            return Class.forName(type).asSubclass(LoadBalancer.class).newInstance();
+        } catch (Exception cnfe) {
+            LOGGER.error("Could not instantiate load balancer, using round robin", cnfe);
+            return new RoundRobinLoadBalancer();
+        }
+    }
+
+    /**
+     * Start lifecycle. Reads the remote WSDL and builds the Dispatch pools so that the first
+     * Exchange does not pay for it, then sends the configured warm-up request.
+     * @throws SOAPException If the WSDL could not be read, the Dispatch instances created or the warm-up failed
+     */
+    public void start() throws SOAPException {
+        long start = System.currentTimeMillis();
+        List<Backend> backends = getBackends();
+        if (_warmupRequest != null) {
+            try {
+                for (Backend backend : backends) {
+                    warmUp(backend);
+                }
+            } catch (SOAPException se) {
+                // Give the shared pools back, the handler is not started
+                releaseBackends();
+                throw se;
+            } catch (RuntimeException re) {
+                releaseBackends();
+                throw re;
+            }
+        }
+        LOGGER.info("WebService client for " + _wsdlLocation + " ready in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Sends the warm-up request warmupCount times. Borrowing cycles through the idle
+     * Dispatch instances, so with the default count every pooled Dispatch builds its
+     * request pipeline and the HTTP connections to the endpoint are opened before the
+     * first Exchange. The responses go through the composer and are discarded.
+     * @param backend the address to warm up
+     * @throws SOAPException If the request could not be read or the remote endpoint could not be invoked
+     */
+    private void warmUp(final Backend backend) throws SOAPException {
+        byte[] request;
+        try {
+            InputStream in = WSDLUtil.getURL(null, _warmupRequest).openStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    out.write(buffer, 0, read);
+                }
+                request = out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new SOAPException("Unable to read warm-up request " + _warmupRequest, ioe);
+        }
+        OperationInfo operation = lookup(SOAPUtil.createMessage(request));
+        for (int i = 0; i < _warmupCount; i++) {
+            SOAPMessage response = invokeService(SOAPUtil.createMessage(request), operation, backend);
+            if (response != null) {
+                _composer.compose(response);
+            }
+        }
+        LOGGER.debug("Sent " + _warmupCount + " warm-up requests to "
+                + ((backend.getAddress() != null) ? backend.getAddress() : _wsdlLocation));
     }
 
     /**
      * Stop lifecycle.
      */
-    public void stop() {
+    public synchronized void stop() {
+        if (_revalidator != null) {
+            _revalidator.shutdown();
+        }
+        if (_timer != null) {
+            _timer.shutdown();
+        }
+        releaseBackends();
+    }
+
+    /**
+     * Releases the references to the shared Dispatch pools taken by getBackends().
+     */
+    private synchronized void releaseBackends() {
+        if (_backends != null) {
+            for (Backend backend : _backends) {
+                backend.getDispatchPool().close();
+            }
+            _backends = null;
+        }
+    }
+
+    /**
+     * Returns the addresses of the remote endpoint, acquiring a shared Dispatch pool for
+     * each on first use. Without configured addresses there is a single backend using the
+     * address in the WSDL port.
+     * @return the backends
+     * @throws SOAPException If a pool could not be created
+     */
+    public List<Backend> getBackends() throws SOAPException {
+        List<Backend> backends = _backends;
+        if (backends == null) {
+            synchronized (this) {
+                backends = _backends;
+                if (backends == null) {
+                    backends = new ArrayList<Backend>();
+                    try {
+                        if (_addresses.isEmpty()) {
+                            backends.add(createBackend(null));
+                        }
+                        for (String address : _addresses) {
+                            backends.add(createBackend(address));
+                        }
+                    } catch (SOAPException se) {
+                        for (Backend backend : backends) {
+                            backend.getDispatchPool().close();
+                        }
+                        throw se;
+                    }
+                    backends = Collections.unmodifiableList(backends);
+                    _backends = backends;
+                }
+            }
+        }
+        return backends;
+    }
+
+    /**
+     * Creates the backend of an address with its own Dispatch pool reference, circuit
+     * breaker and bulkhead, so a failing address does not reject calls to the others.
+     * @param address the endpoint address, null for the address in the WSDL port
+     * @return the Backend
+     * @throws SOAPException If the pool could not be created
+     */
+    private Backend createBackend(final String address) throws SOAPException {
+        CircuitBreaker breaker = new CircuitBreaker((address != null) ? address : _wsdlLocation);
+        if (_circuitSettings.get("circuitFailureRate") != null) {
+            breaker.setFailureRateThreshold(Double.parseDouble(_circuitSettings.get("circuitFailureRate")));
+        }
+        if (_circuitSettings.get("circuitSlowCallRate") != null) {
+            breaker.setSlowCallRateThreshold(Double.parseDouble(_circuitSettings.get("circuitSlowCallRate")));
+        }
+        if (_circuitSettings.get("circuitSlowCallDuration") != null) {
+            breaker.setSlowCallDuration(Long.parseLong(_circuitSettings.get("circuitSlowCallDuration")));
+        }
+        if (_circuitSettings.get("circuitWindowSize") != null) {
+            breaker.setWindowSize(Integer.parseInt(_circuitSettings.get("circuitWindowSize")));
+        }
+        if (_circuitSettings.get("circuitMinimumCalls") != null) {
+            breaker.setMinimumCalls(Integer.parseInt(_circuitSettings.get("circuitMinimumCalls")));
+        }
+        if (_circuitSettings.get("circuitOpenDuration") != null) {
+            breaker.setOpenDuration(Long.parseLong(_circuitSettings.get("circuitOpenDuration")));
+        }
+        if (_circuitSettings.get("circuitHalfOpenCalls") != null) {
+            breaker.setHalfOpenCalls(Integer.parseInt(_circuitSettings.get("circuitHalfOpenCalls")));
+        }
+        return new Backend(address, DispatchPool.acquire(_wsdlLocation, address, _dispatchPoolSize, _mtom),
+                breaker, new Throttle(0, _maxConcurrentCalls), _unhealthyAfter, _unhealthyDuration);
+    }
+
+    /**
+     * Returns the Dispatch pool of the first address. All pools share the WSDL metadata.
+     * @return the DispatchPool
+     * @throws SOAPException If the pool could not be created
+     */
+    public DispatchPool getDispatchPool() throws SOAPException {
+        return getBackends().get(0).getDispatchPool();
+    }
+
+    /**
+     * Selects the address for a call among the healthy ones whose circuit breaker is not open,
+     * falling back to those with a breaker that is not open, then to all of them.
+     * @return the selected backend
+     * @throws SOAPException If the pools could not be created
+     */
+    private Backend selectBackend() throws SOAPException {
+        return selectBackend(null);
+    }
+
+    /**
+     * Selects the address for a call, avoiding the address of an earlier attempt if there is another one.
+     * @param exclude the address to avoid, may be null
+     * @return the selected backend
+     * @throws SOAPException If the pools could not be created
+     */
+    private Backend selectBackend(final Backend exclude) throws SOAPException {
+        List<Backend> backends = getBackends();
+        if (backends.size() == 1) {
+            return backends.get(0);
+        }
+        List<Backend> healthy = new ArrayList<Backend>(backends.size());
+        List<Backend> closed = new ArrayList<Backend>(backends.size());
+        for (Backend backend : backends) {
+            if (backend != exclude && !backend.getCircuitBreaker().isOpen()) {
+                closed.add(backend);
+                if (backend.isHealthy()) {
+                    healthy.add(backend);
+                }
+            }
+        }
+        if (!healthy.isEmpty()) {
+            return _loadBalancer.select(healthy);
+        }
+        return _loadBalancer.select(closed.isEmpty() ? backends : closed);
     }
 
     /**
@@ -111,60 +508,900 @@ public class OutboundHandler extends BaseHandler {
      */
     @Override
     public void handleMessage(final Exchange exchange) throws HandlerException {
+        SingleFlight.Call call = null;
         try {
+            MappedContent payload = (_largeMessageThreshold > 0)
+                    ? LazyPayload.getMappedContent(exchange.getMessage().getContent()) : null;
+            if (payload != null && payload.getSize() > _largeMessageThreshold) {
+                invokeLarge(exchange, payload);
+                return;
+            }
             SOAPMessage request = _decomposer.decompose(exchange.getMessage());
-            SOAPMessage response = invokeService(request);
-            if (response != null) {
-                Message message = _composer.compose(response);
-                exchange.send(message);
+            OperationInfo operation = lookup(request);
+            boolean coalesced = !operation.isOneWay() && _coalescedOperations.contains(operation.getName());
+            boolean cached = !operation.isOneWay() && _cacheTtls.containsKey(operation.getName());
+            String key = (coalesced || cached) ? requestKey(operation, request) : null;
+            String cacheKey = cached ? key : null;
+            if (cached) {
+                ResponseCache.Entry entry = _responseCache.lookup(cacheKey);
+                if (entry != null) {
+                    exchange.send(_composer.compose(SOAPUtil.createMessage(entry.getResponse())));
+                    if (!entry.isFresh() && entry.startRevalidation()) {
+                        revalidate(request, operation, cacheKey, entry);
+                    }
+                    return;
+                }
             }
+            if (coalesced) {
+                call = _singleFlight.join(key, exchange);
+                if (call == null) {
+                    // An identical request is in flight, its response is sent to this Exchange too
+                    return;
+                }
+            }
+            SOAPMessage response;
+            try {
+                if (_async && !operation.isOneWay()) {
+                    invokeServiceAsync(exchange, request, operation, call, cacheKey);
+                    return;
+                }
+                response = invokeService(request, operation);
+                cacheResponse(operation, cacheKey, response);
+            } catch (SOAPException se) {
+                response = fallback(cacheKey, se);
+            }
+            reply(exchange, response, call);
         } catch (SOAPException se) {
             // generate fault
             LOGGER.error(se);
+            failed(call, se);
         }
     }
 
     /**
-     * Invoke Webservice via Dispatch API
+     * Builds the key identifying identical requests from the operation QName and a
+     * canonical hash of the request.
+     * @param operation the operation
+     * @param request the SOAP request
+     * @return the request key
+     * @throws SOAPException If the request could not be serialized
+     */
+    private String requestKey(final OperationInfo operation, final SOAPMessage request) throws SOAPException {
+        String namespace = getDispatchPool().getPort().getBinding().getPortType().getQName().getNamespaceURI();
+        return new QName(namespace, operation.getName()) + ":" + SOAPUtil.canonicalHash(SOAPUtil.toBytes(request), true);
+    }
+
+    /**
+     * Stores a response in the response cache unless it is a fault or has attachments.
+     * @param operation the operation
+     * @param cacheKey the cache key, null if the operation is not cached
+     * @param response the SOAP response, may be null
+     * @return true if the response was stored
+     * @throws SOAPException If the response could not be serialized
+     */
+    private boolean cacheResponse(final OperationInfo operation, final String cacheKey, final SOAPMessage response)
+        throws SOAPException {
+        if (cacheKey == null || response == null || response.countAttachments() > 0) {
+            return false;
+        }
+        byte[] bytes = SOAPUtil.toBytes(response);
+        if (SOAPUtil.isFault(bytes, true)) {
+            return false;
+        }
+        _responseCache.put(cacheKey, bytes, _cacheTtls.get(operation.getName()).longValue(),
+                _staleWhileRevalidate, _staleIfError);
+        return true;
+    }
+
+    /**
+     * Falls back to a stale cached response when the remote service could not be invoked,
+     * or to a fault when the call was rejected by the circuit breaker or bulkhead.
+     * @param cacheKey the cache key, null if the operation is not cached
+     * @param se the invocation error
+     * @return the stale SOAP response or the fault
+     * @throws SOAPException The invocation error if there is no stale response
+     */
+    private SOAPMessage fallback(final String cacheKey, final SOAPException se) throws SOAPException {
+        byte[] stale = (cacheKey != null) ? _responseCache.getIfError(cacheKey) : null;
+        if (stale != null) {
+            LOGGER.warn("Serving stale response from cache, remote service " + _wsdlLocation + " failed", se);
+            return SOAPUtil.createMessage(stale);
+        }
+        if (se instanceof RejectedException) {
+            return SOAPUtil.generateFault(se);
+        }
+        throw se;
+    }
+
+    /**
+     * Admits a call against the bulkhead and the circuit breaker of its address. Every
+     * admitted call must be followed by a call to completed() or abandoned().
+     * @param backend the address the call is sent to
+     * @throws SOAPException If the call is rejected
+     */
+    private void admit(final Backend backend) throws SOAPException {
+        Throttle bulkhead = backend.getBulkhead();
+        CircuitBreaker breaker = backend.getCircuitBreaker();
+        if (bulkhead.tryAcquire() > 0) {
+            throw new RejectedException("Too many concurrent calls to " + breaker.getName()
+                    + ", limit is " + bulkhead.getMaxInFlight());
+        }
+        if (!breaker.allowRequest()) {
+            bulkhead.release();
+            throw new RejectedException("Circuit breaker for " + breaker.getName() + " is " + breaker.getState());
+        }
+        backend.started();
+    }
+
+    /**
+     * Records the outcome of an admitted call.
+     * @param backend the address the call was sent to
+     * @param start the time the call started in milliseconds
+     * @param success false if the remote endpoint could not be invoked
+     */
+    private void completed(final Backend backend, final long start, final boolean success) {
+        long duration = System.currentTimeMillis() - start;
+        backend.getBulkhead().release();
+        backend.getCircuitBreaker().record(success, duration);
+        backend.completed(success, duration);
+        if (success) {
+            _retryBudget.deposit();
+        }
+    }
+
+    /**
+     * Releases an admitted call that was cancelled before it completed. The outcome of
+     * the call is unknown, so it is not recorded.
+     * @param backend the address the call was sent to
+     */
+    private void abandoned(final Backend backend) {
+        backend.getBulkhead().release();
+        backend.getCircuitBreaker().cancelled();
+        backend.cancelled();
+    }
+
+    /**
+     * Returns the hedge policy of an operation.
+     * @param operationName the operation name
+     * @return the HedgePolicy, null if the operation is not hedged
+     */
+    public HedgePolicy getHedgePolicy(final String operationName) {
+        return _hedgePolicies.get(operationName);
+    }
+
+    /**
+     * Returns the retry policy of an operation.
+     * @param operationName the operation name
+     * @return the RetryPolicy, null if the operation is not retried
+     */
+    public RetryPolicy getRetryPolicy(final String operationName) {
+        return _retryPolicies.get(operationName);
+    }
+
+    /**
+     * Refreshes a stale cache entry in the background. The entry keeps being served until
+     * the refresh succeeds, a failed refresh allows the next request to try again.
+     * @param request the SOAP request
+     * @param operation the operation
+     * @param cacheKey the cache key
+     * @param entry the stale entry
+     */
+    private void revalidate(final SOAPMessage request, final OperationInfo operation, final String cacheKey,
+            final ResponseCache.Entry entry) {
+        try {
+            _revalidator.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!cacheResponse(operation, cacheKey, invokeService(request, operation))) {
+                            entry.endRevalidation();
+                        }
+                    } catch (SOAPException se) {
+                        LOGGER.warn("Could not revalidate cached response of " + operation.getName(), se);
+                        entry.endRevalidation();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            entry.endRevalidation();
+        }
+    }
+
+    /**
+     * Returns the outbound response cache, exposing hit ratio and entry counts.
+     * @return the ResponseCache
+     */
+    public ResponseCache getResponseCache() {
+        return _responseCache;
+    }
+
+    /**
+     * Sends the response on the Exchange and on every Exchange coalesced with it. Each
+     * Exchange gets its own Message composed from a copy of the response.
+     * @param exchange the Exchange
+     * @param response the SOAP response, may be null
+     * @param call the coalesced call led by the Exchange, may be null
+     * @throws SOAPException If the response could not be composed
+     */
+    private void reply(final Exchange exchange, final SOAPMessage response, final SingleFlight.Call call)
+        throws SOAPException {
+        List<Exchange> followers = (call != null) ? _singleFlight.complete(call) : null;
+        if (response == null) {
+            return;
+        }
+        if (followers == null || followers.isEmpty()) {
+            exchange.send(_composer.compose(response));
+            return;
+        }
+        byte[] bytes = SOAPUtil.toBytes(response);
+        exchange.send(_composer.compose(response));
+        for (Exchange follower : followers) {
+            follower.send(_composer.compose(SOAPUtil.createMessage(bytes)));
+        }
+    }
+
+    /**
+     * Completes a coalesced call that failed, the Exchanges that joined it share the failure
+     * and are each sent a fault for it.
+     * @param call the coalesced call, may be null
+     * @param error the failure of the call
+     */
+    private void failed(final SingleFlight.Call call, final SOAPException error) {
+        if (call == null) {
+            return;
+        }
+        List<Exchange> followers = _singleFlight.complete(call);
+        if (followers.isEmpty()) {
+            return;
+        }
+        byte[] fault;
+        try {
+            fault = SOAPUtil.toBytes(SOAPUtil.generateFault(error));
+        } catch (SOAPException se) {
+            LOGGER.error("Unable to send the fault to " + followers.size() + " coalesced exchanges", se);
+            return;
+        }
+        for (Exchange follower : followers) {
+            try {
+                follower.send(_composer.compose(SOAPUtil.createMessage(fault)));
+            } catch (SOAPException se) {
+                LOGGER.error(se);
+            }
+        }
+    }
+
+    /**
+     * Returns the coalescing state of this endpoint, exposing the number of coalesced Exchanges.
+     * @return the SingleFlight
+     */
+    public SingleFlight getSingleFlight() {
+        return _singleFlight;
+    }
+
+    /**
+     * Looks up the WSDL operation of a request.
+     * @param soapMessage the SOAP request
+     * @return the operation
+     * @throws SOAPException If the operation is not in the WSDL
+     */
+    private OperationInfo lookup(final SOAPMessage soapMessage) throws SOAPException {
+        OperationInfo operation = getDispatchPool().getOperations().lookup(soapMessage);
+        if (operation == null) {
+            throw new SOAPException("Operation not found in WSDL " + _wsdlLocation);
+        }
+        return operation;
+    }
+
+    /**
+     * Invoke Webservice via Dispatch API on the address chosen by the load balancer.
      * @param soapMessage the SOAP request
+     * @param operation the WSDL operation
      * @return the SOAP response
      * @throws SOAPException If a Dispatch could not be created based on the SOAP message.
      */
-    private SOAPMessage invokeService(final SOAPMessage soapMessage) throws SOAPException {
-        if (_dispatcher == null) {
-            try {
-                Definition definition = WSDLUtil.readWSDL(_wsdlLocation);
-                javax.wsdl.Service wsdlService = (javax.wsdl.Service) definition.getServices().values().iterator().next();
-                QName serviceName = wsdlService.getQName();
-                _port = (Port) wsdlService.getPorts().values().iterator().next();
-                QName portName = new QName(definition.getTargetNamespace(), _port.getName());
-
-                URL wsdlUrl = new URL(_wsdlLocation);
-                Service service = Service.create(wsdlUrl, serviceName);
-                _dispatcher = service.createDispatch(portName, SOAPMessage.class, Service.Mode.MESSAGE, new AddressingFeature(false, false));
-                // this does not return a proper qualified Fault element and has no Detail so defering for now
-                // BindingProvider bp = (BindingProvider) _dispatcher;
-                // bp.getRequestContext().put("jaxws.response.throwExceptionIfSOAPFault", Boolean.FALSE);
+    private SOAPMessage invokeService(final SOAPMessage soapMessage, final OperationInfo operation) throws SOAPException {
+        HedgePolicy hedgePolicy = _hedgePolicies.get(operation.getName());
+        RetryPolicy retryPolicy = _retryPolicies.get(operation.getName());
+        if ((hedgePolicy != null || retryPolicy != null) && !operation.isOneWay()) {
+            return invokeAndWait(soapMessage, hedgePolicy, retryPolicy);
+        }
+        return invokeService(soapMessage, operation, selectBackend());
+    }
 
-            } catch (Exception e) {
-                throw new SOAPException(e);
+    /**
+     * Invoke a request-response Webservice through an Invocation and wait for the result.
+     * A second request is sent to another address if the first has not answered within
+     * the hedge delay, failed requests are retried after a backoff.
+     * @param soapMessage the SOAP request
+     * @param hedgePolicy the hedge policy of the operation, may be null
+     * @param retryPolicy the retry policy of the operation, may be null
+     * @return the first SOAP response
+     * @throws SOAPException If no attempt could be sent or all attempts failed
+     */
+    private SOAPMessage invokeAndWait(final SOAPMessage soapMessage, final HedgePolicy hedgePolicy,
+            final RetryPolicy retryPolicy) throws SOAPException {
+        final BlockingQueue<Response<SOAPMessage>> result = new ArrayBlockingQueue<Response<SOAPMessage>>(1);
+        Invocation invocation = new Invocation(soapMessage, hedgePolicy, retryPolicy, new AsyncHandler<SOAPMessage>() {
+            public void handleResponse(final Response<SOAPMessage> res) {
+                result.offer(res);
+            }
+        });
+        invocation.start();
+        long delay = (hedgePolicy != null) ? hedgePolicy.getDelay() : -1;
+        try {
+            Response<SOAPMessage> res = (delay >= 0) ? result.poll(delay, TimeUnit.MILLISECONDS) : null;
+            if (res == null) {
+                if (delay >= 0) {
+                    invocation.hedge();
+                }
+                res = result.take();
             }
+            return responseOf(res);
+        } catch (InterruptedException ie) {
+            invocation.cancel();
+            Thread.currentThread().interrupt();
+            throw new SOAPException("Interrupted while waiting for the SOAP response", ie);
         }
+    }
 
+    /**
+     * Invoke Webservice via Dispatch API
+     * @param soapMessage the SOAP request
+     * @param operation the WSDL operation
+     * @param backend the address to invoke
+     * @return the SOAP response
+     * @throws SOAPException If a Dispatch could not be created based on the SOAP message.
+     */
+    private SOAPMessage invokeService(final SOAPMessage soapMessage, final OperationInfo operation, final Backend backend)
+        throws SOAPException {
+        DispatchPool pool = backend.getDispatchPool();
         SOAPMessage response = null;
+        Dispatch<SOAPMessage> dispatcher = pool.borrow(_borrowTimeout);
         try {
-            if (SOAPUtil.isMessageOneWay(_port, soapMessage)) {
-                _dispatcher.invokeOneWay(soapMessage);
-                //return empty response
+            negotiateCompression(dispatcher, soapMessage);
+            admit(backend);
+            long start = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                if (operation.isOneWay()) {
+                    dispatcher.invokeOneWay(soapMessage);
+                    //return empty response
+                } else {
+                    response = dispatcher.invoke(soapMessage);
+                }
+                success = true;
+            } catch (SOAPFaultException sfex) {
+                // The endpoint answered, a fault does not count against the circuit breaker
+                success = true;
+                response = SOAPUtil.generateFault(sfex);
+            } catch (Exception ex) {
+                throw new SOAPException("Cannot process SOAP request", ex);
+            } finally {
+                completed(backend, start, success);
+            }
+        } finally {
+            pool.giveBack(dispatcher);
+        }
+
+        return response;
+    }
+
+    /**
+     * Invokes the Webservice with a request payload held in a memory-mapped file, e.g. one
+     * received by a large message endpoint. The envelope is streamed from the mapping with
+     * chunked transfer encoding and responses above the threshold are spooled to a
+     * memory-mapped file, so neither is built as a SAAJ tree. Large requests bypass the
+     * response cache, coalescing, hedging and retries.
+     * @param exchange the Exchange
+     * @param payload the serialized request payload
+     * @throws SOAPException If the operation is unknown, the call was rejected or failed
+     */
+    private void invokeLarge(final Exchange exchange, final MappedContent payload) throws SOAPException {
+        OperationInfo operation = getDispatchPool().getOperations().lookup(
+                SOAPUtil.peekRootElementName(payload.getInputStream()), null);
+        if (operation == null) {
+            throw new SOAPException("Operation not found in WSDL " + _wsdlLocation);
+        }
+        Backend backend = selectBackend();
+        Dispatch<Source> dispatcher = backend.getDispatchPool().createStreamingDispatch();
+        if (_compression) {
+            dispatcher.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS,
+                    (payload.getSize() > _compressionThreshold) ? GZIP_HEADERS : ACCEPT_GZIP_HEADERS);
+        }
+        Source request = new StreamSource(DefaultMessageDecomposer.envelope(payload.getInputStream()));
+        Message response = null;
+        admit(backend);
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            if (operation.isOneWay()) {
+                dispatcher.invokeOneWay(request);
             } else {
-                response = _dispatcher.invoke(soapMessage);
+                response = composeLarge(dispatcher.invoke(request));
             }
+            success = true;
         } catch (SOAPFaultException sfex) {
-            response = SOAPUtil.generateFault(sfex);
+            // The endpoint answered, a fault does not count against the circuit breaker
+            success = true;
+            response = _composer.compose(SOAPUtil.generateFault(sfex));
         } catch (Exception ex) {
             throw new SOAPException("Cannot process SOAP request", ex);
+        } finally {
+            completed(backend, start, success);
+        }
+        if (response != null) {
+            exchange.send(response);
         }
+    }
 
-        return response;
+    /**
+     * Composes the response of a large request. Responses below the threshold are composed
+     * as usual, larger ones get their body payload in a memory-mapped file that is deleted
+     * once the Message is no longer reachable.
+     * @param response the SOAP response envelope
+     * @return the response Message
+     * @throws SOAPException If the response could not be read or composed
+     */
+    private Message composeLarge(final Source response) throws SOAPException {
+        SpillOutputStream out = new SpillOutputStream(_largeMessageThreshold);
+        MappedContent envelope;
+        try {
+            SOAPUtil.copy(response, out);
+            out.close();
+            if (!out.isSpilled()) {
+                return _composer.compose(SOAPUtil.createMessage(out.toByteArray()));
+            }
+            envelope = out.toMappedContent();
+        } catch (IOException ioe) {
+            out.discard();
+            throw new SOAPException("Unable to spool SOAP response", ioe);
+        } catch (SOAPException se) {
+            out.discard();
+            throw se;
+        }
+        try {
+            return _largeComposer.compose(envelope);
+        } finally {
+            envelope.delete();
+        }
+    }
+
+    /**
+     * Sets the HTTP headers of the next request of a Dispatch. When compression is enabled
+     * a gzip response is accepted and requests larger than the threshold are sent gzipped.
+     * Otherwise the headers are cleared, the Dispatch is pooled and may have been used by
+     * a handler with compression enabled before.
+     * @param dispatcher the Dispatch
+     * @param soapMessage the SOAP request
+     * @throws SOAPException If the request could not be measured
+     */
+    private void negotiateCompression(final Dispatch<SOAPMessage> dispatcher, final SOAPMessage soapMessage)
+        throws SOAPException {
+        if (_compression) {
+            dispatcher.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS,
+                    SOAPUtil.isLargerThan(soapMessage, _compressionThreshold) ? GZIP_HEADERS : ACCEPT_GZIP_HEADERS);
+        } else {
+            dispatcher.getRequestContext().remove(MessageContext.HTTP_REQUEST_HEADERS);
+        }
+    }
+
+    /**
+     * Invoke a request-response Webservice via the asynchronous Dispatch API. Returns once
+     * the request is sent, the response is composed and sent on the Exchange from the
+     * JAX-WS callback. The Dispatch goes back to the pool right away, only the in-flight
+     * permit is held until the response arrives.
+     * @param exchange the Exchange
+     * @param soapMessage the SOAP request
+     * @param operation the WSDL operation
+     * @param call the coalesced call led by the Exchange, may be null
+     * @param cacheKey the cache key, null if the operation is not cached
+     * @throws SOAPException If the in-flight limit stayed exhausted or the request could not be sent
+     */
+    private void invokeServiceAsync(final Exchange exchange, final SOAPMessage soapMessage, final OperationInfo operation,
+            final SingleFlight.Call call, final String cacheKey) throws SOAPException {
+        try {
+            if (!_inFlight.tryAcquire(_borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SOAPException("Timed out after " + _borrowTimeout + "ms waiting for an in-flight slot to "
+                        + _wsdlLocation);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SOAPException("Interrupted while waiting for an in-flight slot to " + _wsdlLocation);
+        }
+        boolean sent = false;
+        try {
+            final HedgePolicy policy = _hedgePolicies.get(operation.getName());
+            final Invocation invocation = new Invocation(soapMessage, policy, _retryPolicies.get(operation.getName()),
+                    new AsyncHandler<SOAPMessage>() {
+                public void handleResponse(final Response<SOAPMessage> res) {
+                    try {
+                        SOAPMessage response;
+                        try {
+                            response = responseOf(res);
+                        } catch (SOAPException se) {
+                            reply(exchange, fallback(cacheKey, se), call);
+                            return;
+                        }
+                        cacheResponse(operation, cacheKey, response);
+                        reply(exchange, response, call);
+                    } catch (SOAPException se) {
+                        // generate fault
+                        LOGGER.error(se);
+                        failed(call, se);
+                    } finally {
+                        _inFlight.release();
+                    }
+                }
+            });
+            invocation.start();
+            sent = true;
+            long delay = (policy != null) ? policy.getDelay() : -1;
+            if (delay >= 0) {
+                try {
+                    _timer.schedule(new Runnable() {
+                        public void run() {
+                            invocation.hedge();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    LOGGER.debug("Handler stopped, request to " + _wsdlLocation + " is not hedged");
+                }
+            }
+        } finally {
+            if (!sent) {
+                _inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Unwraps the result of an asynchronous invocation.
+     * @param res the JAX-WS response
+     * @return the SOAP response or a fault generated from a SOAPFaultException
+     * @throws SOAPException If the invocation failed otherwise
+     */
+    private static SOAPMessage responseOf(final Response<SOAPMessage> res) throws SOAPException {
+        try {
+            return res.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof SOAPFaultException) {
+                return SOAPUtil.generateFault(ee.getCause());
+            }
+            throw new SOAPException("Cannot process SOAP request", ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SOAPException("Interrupted while reading SOAP response", ie);
+        }
+    }
+
+    /**
+     * Returns the number of asynchronous requests that can still be sent before the
+     * in-flight limit is reached.
+     * @return the available permits
+     */
+    public int getAvailableInFlight() {
+        return _inFlight.availablePermits();
+    }
+
+    /**
+     * A request to the remote service that may be sent to more than one address. The
+     * first response wins and is handed to the handler, the other attempts are cancelled.
+     * A failed attempt only wins if no other attempt is pending and it may not be retried.
+     */
+    private final class Invocation {
+        private final SOAPMessage _request;
+        private final byte[] _bytes;
+        private final HedgePolicy _hedgePolicy;
+        private final RetryPolicy _retryPolicy;
+        private final AsyncHandler<SOAPMessage> _handler;
+        private final List<Attempt> _attempts = new ArrayList<Attempt>(2);
+        private Backend _first;
+        private boolean _hedged;
+        private int _retries;
+        private boolean _settled;
+
+        /**
+         * Constructor.
+         * @param request the SOAP request
+         * @param hedgePolicy the hedge policy, null if the request is not hedged
+         * @param retryPolicy the retry policy, null if the request is not retried
+         * @param handler receives the response of the winning attempt
+         * @throws SOAPException If the request could not be serialized for a hedge or retry
+         */
+        private Invocation(final SOAPMessage request, final HedgePolicy hedgePolicy, final RetryPolicy retryPolicy,
+                final AsyncHandler<SOAPMessage> handler) throws SOAPException {
+            _request = request;
+            // Hedges and retries get their own copy, SAAJ messages must not be serialized by two threads at once
+            _bytes = (hedgePolicy != null || retryPolicy != null) ? SOAPUtil.toBytes(request) : null;
+            _hedgePolicy = hedgePolicy;
+            _retryPolicy = retryPolicy;
+            _handler = handler;
+        }
+
+        /**
+         * Sends the request to the address chosen by the load balancer.
+         * @throws SOAPException If the request could not be sent
+         */
+        private void start() throws SOAPException {
+            if (_hedgePolicy != null) {
+                _hedgePolicy.requested();
+            }
+            Backend backend = selectBackend();
+            synchronized (this) {
+                _first = backend;
+            }
+            send(_request, backend, _borrowTimeout, false);
+        }
+
+        /**
+         * Sends the request to another address unless a response has arrived, the request
+         * was hedged already or the hedge budget is exhausted. A hedge that cannot get a
+         * Dispatch or is rejected is skipped.
+         */
+        private void hedge() {
+            Backend first;
+            synchronized (this) {
+                if (_settled || _hedged) {
+                    return;
+                }
+                _hedged = true;
+                first = _first;
+            }
+            if (!_hedgePolicy.tryHedge()) {
+                return;
+            }
+            try {
+                send(SOAPUtil.createMessage(_bytes), selectBackend(first), 0, true);
+            } catch (SOAPException se) {
+                LOGGER.debug("Could not send hedged request to " + _wsdlLocation, se);
+            }
+        }
+
+        /**
+         * Sends one attempt.
+         * @param request the SOAP request
+         * @param backend the address
+         * @param borrowTimeout the maximum time to wait for a Dispatch in milliseconds
+         * @param hedge true for the hedged attempt
+         * @throws SOAPException If the attempt could not be sent
+         */
+        private void send(final SOAPMessage request, final Backend backend, final long borrowTimeout, final boolean hedge)
+            throws SOAPException {
+            DispatchPool pool = backend.getDispatchPool();
+            Dispatch<SOAPMessage> dispatcher = pool.borrow(borrowTimeout);
+            try {
+                negotiateCompression(dispatcher, request);
+                admit(backend);
+                Attempt attempt = new Attempt(this, backend, hedge);
+                synchronized (this) {
+                    _attempts.add(attempt);
+                }
+                try {
+                    attempt.setFuture(dispatcher.invokeAsync(request, attempt));
+                } catch (Exception ex) {
+                    synchronized (this) {
+                        _attempts.remove(attempt);
+                    }
+                    attempt.failed();
+                    throw new SOAPException("Cannot process SOAP request", ex);
+                }
+                boolean cancel;
+                synchronized (this) {
+                    cancel = _settled && !attempt.isDone();
+                }
+                if (cancel) {
+                    attempt.cancel();
+                }
+            } finally {
+                pool.giveBack(dispatcher);
+            }
+        }
+
+        /**
+         * Called when an attempt has completed.
+         * @param attempt the attempt
+         * @param res the JAX-WS response of the attempt
+         * @param success false if the attempt failed
+         */
+        private void done(final Attempt attempt, final Response<SOAPMessage> res, final boolean success) {
+            int retry;
+            synchronized (this) {
+                _attempts.remove(attempt);
+                if (_settled || (!success && !_attempts.isEmpty())) {
+                    return;
+                }
+                retry = _retries;
+                if (!success && _retryPolicy != null && _retryPolicy.tryRetry(retry)) {
+                    _retries++;
+                } else {
+                    retry = -1;
+                }
+            }
+            if (retry < 0) {
+                settle(attempt, res, success);
+                return;
+            }
+            try {
+                _timer.schedule(new Runnable() {
+                    public void run() {
+                        retry(attempt, res);
+                    }
+                }, _retryPolicy.getBackoff(retry), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                settle(attempt, res, false);
+            }
+        }
+
+        /**
+         * Retries after a failed attempt, preferring another address. If the retry cannot
+         * be sent, e.g. because the circuit breaker is open, the failure is final.
+         * @param failed the failed attempt
+         * @param res the JAX-WS response of the failed attempt
+         */
+        private void retry(final Attempt failed, final Response<SOAPMessage> res) {
+            synchronized (this) {
+                // A hedge sent during the backoff takes the place of the retry
+                if (_settled || !_attempts.isEmpty()) {
+                    return;
+                }
+            }
+            try {
+                send(SOAPUtil.createMessage(_bytes), selectBackend(failed.getBackend()), _borrowTimeout, false);
+            } catch (SOAPException se) {
+                LOGGER.debug("Could not retry request to " + _wsdlLocation, se);
+                settle(failed, res, false);
+            }
+        }
+
+        /**
+         * Hands the response of an attempt to the handler and cancels the other attempts.
+         * @param attempt the winning attempt
+         * @param res the JAX-WS response of the attempt
+         * @param success false if the attempt failed
+         */
+        private void settle(final Attempt attempt, final Response<SOAPMessage> res, final boolean success) {
+            List<Attempt> losers;
+            synchronized (this) {
+                if (_settled) {
+                    return;
+                }
+                _settled = true;
+                losers = new ArrayList<Attempt>(_attempts);
+            }
+            for (Attempt loser : losers) {
+                loser.cancel();
+            }
+            if (attempt.isHedge() && success) {
+                _hedgePolicy.won();
+            }
+            _handler.handleResponse(res);
+        }
+
+        /**
+         * Cancels all pending attempts, the handler is not called.
+         */
+        private void cancel() {
+            List<Attempt> attempts;
+            synchronized (this) {
+                _settled = true;
+                attempts = new ArrayList<Attempt>(_attempts);
+            }
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    /**
+     * One attempt of an Invocation, admitted against the bulkhead and circuit breaker of
+     * its address. Exactly one of completion and cancellation is recorded.
+     */
+    private final class Attempt implements AsyncHandler<SOAPMessage> {
+        private final Invocation _invocation;
+        private final Backend _backend;
+        private final boolean _hedge;
+        private final long _start = System.currentTimeMillis();
+        private final AtomicBoolean _done = new AtomicBoolean();
+        private Future<?> _future;
+
+        /**
+         * Constructor.
+         * @param invocation the Invocation
+         * @param backend the address
+         * @param hedge true for the hedged attempt
+         */
+        private Attempt(final Invocation invocation, final Backend backend, final boolean hedge) {
+            _invocation = invocation;
+            _backend = backend;
+            _hedge = hedge;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void handleResponse(final Response<SOAPMessage> res) {
+            if (!_done.compareAndSet(false, true)) {
+                return;
+            }
+            boolean success = true;
+            try {
+                responseOf(res);
+            } catch (SOAPException se) {
+                success = false;
+            }
+            long duration = System.currentTimeMillis() - _start;
+            completed(_backend, _start, success);
+            if (success && _invocation._hedgePolicy != null) {
+                _invocation._hedgePolicy.record(duration);
+            }
+            _invocation.done(this, res, success);
+        }
+
+        /**
+         * Records an attempt that could not be sent.
+         */
+        private void failed() {
+            if (_done.compareAndSet(false, true)) {
+                completed(_backend, _start, false);
+            }
+        }
+
+        /**
+         * Cancels the attempt unless it has completed.
+         */
+        private void cancel() {
+            if (_done.compareAndSet(false, true)) {
+                Future<?> future;
+                synchronized (this) {
+                    future = _future;
+                }
+                if (future != null) {
+                    future.cancel(true);
+                }
+                abandoned(_backend);
+            }
+        }
+
+        /**
+         * Sets the future of the sent request.
+         * @param future the future returned by the Dispatch
+         */
+        private synchronized void setFuture(final Future<?> future) {
+            _future = future;
+        }
+
+        /**
+         * Checks if the attempt has completed or was cancelled.
+         * @return true if done
+         */
+        private boolean isDone() {
+            return _done.get();
+        }
+
+        /**
+         * Returns the address of the attempt.
+         * @return the backend
+         */
+        private Backend getBackend() {
+            return _backend;
+        }
+
+        /**
+         * Checks if this is the hedged attempt.
+         * @return true for the hedge
+         */
+        private boolean isHedge() {
+            return _hedge;
+        }
+    }
+
+    /**
+     * Signals a call rejected by the circuit breaker or bulkhead, answered with a fault.
+     */
+    private static final class RejectedException extends SOAPException {
+        private static final long serialVersionUID = 1L;
+
+        private RejectedException(final String message) {
+            super(message);
+        }
     }
 }
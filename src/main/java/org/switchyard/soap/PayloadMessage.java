@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.util.Map;
+
+import javax.activation.DataSource;
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+
+import org.switchyard.Message;
+import org.w3c.dom.Element;
+
+/**
+ * A Message whose content may be a PayloadSource that is only parsed on demand. Asking
+ * for the content as an Element parses the payload once and replaces the content with
+ * the resulting DOM, so services get a real Element. Asking for a Source or an
+ * XMLStreamReader streams the payload without building a DOM. Attachments are kept by
+ * the wrapped Message.
+ */
+public class PayloadMessage implements Message {
+    private final Message _message;
+    private Object _content;
+
+    /**
+     * Constructor.
+     * @param message the Message holding the attachments
+     */
+    public PayloadMessage(final Message message) {
+        _message = message;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized Object getContent() {
+        return _content;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized <T> T getContent(final Class<T> type) {
+        if (_content instanceof PayloadSource && !type.isInstance(_content)) {
+            PayloadSource payload = (PayloadSource) _content;
+            try {
+                if (type.isAssignableFrom(Element.class)) {
+                    _content = payload.toElement();
+                } else if (type == Source.class) {
+                    return type.cast(payload.getSource());
+                } else if (type == XMLStreamReader.class) {
+                    return type.cast(payload.getXMLStreamReader());
+                }
+            } catch (SOAPException se) {
+                throw new IllegalStateException(se);
+            } catch (XMLStreamException xse) {
+                throw new IllegalStateException(xse);
+            }
+        }
+        return type.cast(_content);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized Message setContent(final Object content) {
+        _content = content;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message addAttachment(final String name, final DataSource attachment) {
+        _message.addAttachment(name, attachment);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DataSource getAttachment(final String name) {
+        return _message.getAttachment(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Message removeAttachment(final String name) {
+        _message.removeAttachment(name);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, DataSource> getAttachmentMap() {
+        return _message.getAttachmentMap();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+
+import org.w3c.dom.Element;
+
+/**
+ * Streaming view of a SOAP body payload. Message content created by the
+ * StreamingMessageComposer implements this interface, so services that only forward
+ * or stream the payload never cause a DOM to be built.
+ */
+public interface PayloadSource {
+
+    /**
+     * Returns a new Source over the payload, may be called any number of times.
+     * @return the Source
+     */
+    Source getSource();
+
+    /**
+     * Returns a new XMLStreamReader over the payload, may be called any number of times.
+     * @return the XMLStreamReader
+     * @throws XMLStreamException If the reader could not be created
+     */
+    XMLStreamReader getXMLStreamReader() throws XMLStreamException;
+
+    /**
+     * Returns the serialized payload.
+     * @return the payload bytes
+     */
+    byte[] getBytes();
+
+    /**
+     * Parses the payload into a new DOM.
+     * @return the payload Element
+     * @throws SOAPException If the payload could not be parsed
+     */
+    Element toElement() throws SOAPException;
+}
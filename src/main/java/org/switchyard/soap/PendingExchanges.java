@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.switchyard.Exchange;
+
+/**
+ * Bounded table of IN_OUT Exchanges awaiting a reply. Capacity is reserved with a CAS
+ * on a counter so admission never takes a lock, and each Exchange can be removed
+ * exactly once, either by its reply or by its timeout.
+ */
+public class PendingExchanges {
+    private final ConcurrentHashMap<Exchange, ResponseFuture<?>> _exchanges;
+    private final AtomicInteger _count = new AtomicInteger();
+    private final int _limit;
+
+    /**
+     * Constructor.
+     * @param limit the maximum number of pending Exchanges
+     */
+    public PendingExchanges(final int limit) {
+        _limit = limit;
+        _exchanges = new ConcurrentHashMap<Exchange, ResponseFuture<?>>(Math.min(limit, 1024), 0.75f, 64);
+    }
+
+    /**
+     * Registers an Exchange if the table has room.
+     * @param exchange the Exchange
+     * @param future the future to complete when the reply arrives
+     * @return false if the table is full
+     */
+    public boolean add(final Exchange exchange, final ResponseFuture<?> future) {
+        int count;
+        do {
+            count = _count.get();
+            if (count >= _limit) {
+                return false;
+            }
+        } while (!_count.compareAndSet(count, count + 1));
+        _exchanges.put(exchange, future);
+        return true;
+    }
+
+    /**
+     * Removes an Exchange.
+     * @param exchange the Exchange
+     * @return the pending future or null if it has already been removed
+     */
+    public ResponseFuture<?> remove(final Exchange exchange) {
+        ResponseFuture<?> future = _exchanges.remove(exchange);
+        if (future != null) {
+            _count.decrementAndGet();
+        }
+        return future;
+    }
+
+    /**
+     * Removes all Exchanges, each one is only returned if it had not been removed yet.
+     * @return the pending futures
+     */
+    public List<ResponseFuture<?>> removeAll() {
+        List<ResponseFuture<?>> futures = new ArrayList<ResponseFuture<?>>();
+        for (Exchange exchange : _exchanges.keySet()) {
+            ResponseFuture<?> future = remove(exchange);
+            if (future != null) {
+                futures.add(future);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Returns the number of pending Exchanges.
+     * @return the count
+     */
+    public int size() {
+        return _count.get();
+    }
+
+    /**
+     * Returns the maximum number of pending Exchanges.
+     * @return the limit
+     */
+    public int getLimit() {
+        return _limit;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of serialized SOAP responses keyed by operation and request hash. Entries
+ * are fresh for their time to live, may then be served stale while they are being
+ * revalidated or when the remote service fails, and are dropped once both stale
+ * windows have passed. The least recently used entries are evicted once either the
+ * entry or the byte limit is exceeded.
+ */
+public class ResponseCache {
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _staleHits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final int _maxEntries;
+    private final long _maxBytes;
+    private long _bytes;
+
+    /**
+     * Constructor.
+     * @param maxEntries the maximum number of cached responses
+     * @param maxBytes the maximum total size of the cached responses
+     */
+    public ResponseCache(final int maxEntries, final long maxBytes) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a fresh response.
+     * @param key the cache key
+     * @return the serialized response or null if there is no fresh entry
+     */
+    public byte[] get(final String key) {
+        Entry entry = lookup(key);
+        return (entry != null && entry.isFresh()) ? entry._response : null;
+    }
+
+    /**
+     * Looks up an entry that is either fresh or within its stale-while-revalidate window.
+     * @param key the cache key
+     * @return the entry or null if there is none that may be served
+     */
+    public Entry lookup(final String key) {
+        long now = System.currentTimeMillis();
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry != null) {
+                if (now < entry._freshUntil) {
+                    _hits.incrementAndGet();
+                    return entry;
+                } else if (now < entry._staleUntil) {
+                    _staleHits.incrementAndGet();
+                    return entry;
+                } else if (now >= entry._expires) {
+                    remove(key, entry);
+                }
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Looks up a response that may be served because the remote service failed.
+     * @param key the cache key
+     * @return the serialized response or null if there is none within its stale-if-error window
+     */
+    public byte[] getIfError(final String key) {
+        long now = System.currentTimeMillis();
+        synchronized (_entries) {
+            Entry entry = _entries.get(key);
+            if (entry != null && now < entry._expires) {
+                _staleHits.incrementAndGet();
+                return entry._response;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a response, evicting the least recently used entries as needed. Responses
+     * larger than the byte limit are not cached.
+     * @param key the cache key
+     * @param response the serialized response
+     * @param ttl the time to live in milliseconds
+     */
+    public void put(final String key, final byte[] response, final long ttl) {
+        put(key, response, ttl, 0, 0);
+    }
+
+    /**
+     * Stores a response that may be served stale, evicting the least recently used entries
+     * as needed. Responses larger than the byte limit are not cached.
+     * @param key the cache key
+     * @param response the serialized response
+     * @param ttl the time to live in milliseconds
+     * @param staleWhileRevalidate how long after the time to live the entry is served while it is refreshed
+     * @param staleIfError how long after the time to live the entry is served when the refresh fails
+     */
+    public void put(final String key, final byte[] response, final long ttl,
+            final long staleWhileRevalidate, final long staleIfError) {
+        if (response.length > _maxBytes || _maxEntries <= 0) {
+            return;
+        }
+        long freshUntil = System.currentTimeMillis() + ttl;
+        Entry entry = new Entry(response, freshUntil, freshUntil + staleWhileRevalidate,
+                freshUntil + Math.max(staleWhileRevalidate, staleIfError));
+        synchronized (_entries) {
+            Entry previous = _entries.put(key, entry);
+            if (previous != null) {
+                _bytes -= previous._response.length;
+            }
+            _bytes += response.length;
+            Iterator<Map.Entry<String, Entry>> eldest = _entries.entrySet().iterator();
+            while (_entries.size() > _maxEntries || _bytes > _maxBytes) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                _bytes -= evicted._response.length;
+                _evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(final String key, final Entry entry) {
+        _entries.remove(key);
+        _bytes -= entry._response.length;
+        _evictions.incrementAndGet();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+            _bytes = 0;
+        }
+    }
+
+    /**
+     * Returns the number of cached responses.
+     * @return the size
+     */
+    public int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    /**
+     * Returns the total size of the cached responses.
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        synchronized (_entries) {
+            return _bytes;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found a live entry.
+     * @return the hit count
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were served a stale entry.
+     * @return the stale hit count
+     */
+    public long getStaleHits() {
+        return _staleHits.get();
+    }
+
+    /**
+     * Returns the share of lookups that were served from the cache, fresh or stale.
+     * @return the hit ratio between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = _hits.get() + _staleHits.get();
+        long total = hits + _misses.get();
+        return (total > 0) ? (double) hits / total : 0;
+    }
+
+    /**
+     * Returns the number of lookups that found no live entry.
+     * @return the miss count
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * Returns the number of entries removed because they expired or to make room.
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    /**
+     * A cached response.
+     */
+    public static final class Entry {
+        private final byte[] _response;
+        private final long _freshUntil;
+        private final long _staleUntil;
+        private final long _expires;
+        private final AtomicBoolean _revalidating = new AtomicBoolean();
+
+        private Entry(final byte[] response, final long freshUntil, final long staleUntil, final long expires) {
+            _response = response;
+            _freshUntil = freshUntil;
+            _staleUntil = staleUntil;
+            _expires = expires;
+        }
+
+        /**
+         * Returns the serialized response.
+         * @return the response
+         */
+        public byte[] getResponse() {
+            return _response;
+        }
+
+        /**
+         * Checks if the time to live has not passed yet.
+         * @return true if the entry is fresh
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < _freshUntil;
+        }
+
+        /**
+         * Marks the entry as being revalidated, only one caller succeeds until
+         * endRevalidation() is called.
+         * @return true if the caller should refresh the entry
+         */
+        public boolean startRevalidation() {
+            return _revalidating.compareAndSet(false, true);
+        }
+
+        /**
+         * Allows another revalidation after a failed one.
+         */
+        public void endRevalidation() {
+            _revalidating.set(false);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the pending SOAP response for a single IN_OUT Exchange. The request thread
+ * either waits on it or, for asynchronous endpoints, overrides done() to write the
+ * response, and the handler completes it from whichever thread delivers the reply.
+ * @param <T> the response type, a SOAPMessage or a payload Source
+ */
+public class ResponseFuture<T> {
+    private final CountDownLatch _latch = new CountDownLatch(1);
+    private volatile T _response;
+    private volatile TimingWheel.Timeout _timeout;
+    private Runnable _completionTask;
+
+    /**
+     * Completes this future with a response and wakes up the waiting thread.
+     * Only the first call has any effect.
+     * @param response the SOAP response or fault
+     * @return true if this call completed the future
+     */
+    public boolean complete(final T response) {
+        Runnable task;
+        synchronized (_latch) {
+            if (_latch.getCount() == 0) {
+                return false;
+            }
+            _response = response;
+            _latch.countDown();
+            task = _completionTask;
+        }
+        TimingWheel.Timeout timeout = _timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        try {
+            done(response);
+        } finally {
+            if (task != null) {
+                task.run();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a task to run once the future is completed, or right away if it already is.
+     * @param task the task
+     */
+    public void onCompletion(final Runnable task) {
+        synchronized (_latch) {
+            if (_latch.getCount() != 0) {
+                _completionTask = task;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Called once when the future is completed.
+     * @param response the SOAP response or fault
+     */
+    protected void done(final T response) {
+    }
+
+    /**
+     * Associates the scheduled timeout so it is cancelled on completion.
+     * @param timeout the Timeout handle
+     */
+    public void setTimeout(final TimingWheel.Timeout timeout) {
+        _timeout = timeout;
+        if (isDone()) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Checks if a response has been set.
+     * @return true if completed
+     */
+    public boolean isDone() {
+        return _latch.getCount() == 0;
+    }
+
+    /**
+     * Waits for the response.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the SOAP response or null if the timeout elapsed
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public T get(final long timeout) throws InterruptedException {
+        _latch.await(timeout, TimeUnit.MILLISECONDS);
+        // Set before the latch is released, so a response that raced the timeout is seen
+        return _response;
+    }
+}
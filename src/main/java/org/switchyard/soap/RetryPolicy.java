@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if and when a failed call of an idempotent operation is retried. Retries wait
+ * for an exponential backoff with full jitter and draw from a TokenBudget that only
+ * grows with successful calls, so a failing remote service gets no extra load.
+ */
+public class RetryPolicy {
+    private static final int MAX_SHIFT = 20;
+    private static final Random RANDOM = new Random();
+
+    private final int _maxRetries;
+    private final long _backoff;
+    private final long _maxBackoff;
+    private final TokenBudget _budget;
+    private final AtomicLong _retries = new AtomicLong();
+    private final AtomicLong _exhausted = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param maxRetries the maximum number of retries of a call
+     * @param backoff the backoff before the first retry in milliseconds
+     * @param maxBackoff the maximum backoff in milliseconds
+     * @param budget the retry budget, shared by the operations of an endpoint
+     */
+    public RetryPolicy(final int maxRetries, final long backoff, final long maxBackoff, final TokenBudget budget) {
+        _maxRetries = maxRetries;
+        _backoff = backoff;
+        _maxBackoff = maxBackoff;
+        _budget = budget;
+    }
+
+    /**
+     * Returns the maximum number of retries of a call.
+     * @return the retry limit
+     */
+    public int getMaxRetries() {
+        return _maxRetries;
+    }
+
+    /**
+     * Returns a random backoff between zero and the exponential backoff of a retry.
+     * @param retry the number of retries already made
+     * @return the backoff in milliseconds
+     */
+    public long getBackoff(final int retry) {
+        long backoff = Math.min(_maxBackoff, _backoff << Math.min(retry, MAX_SHIFT));
+        return (long) (RANDOM.nextDouble() * backoff);
+    }
+
+    /**
+     * Asks for permission to retry a failed call.
+     * @param retry the number of retries already made
+     * @return true if the retry limit and the budget allow it
+     */
+    public boolean tryRetry(final int retry) {
+        if (retry >= _maxRetries) {
+            return false;
+        }
+        if (!_budget.tryWithdraw()) {
+            _exhausted.incrementAndGet();
+            return false;
+        }
+        _retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of retries made.
+     * @return the retry count
+     */
+    public long getRetryCount() {
+        return _retries.get();
+    }
+
+    /**
+     * Returns the number of retries refused because the budget was exhausted.
+     * @return the refused count
+     */
+    public long getBudgetExhaustedCount() {
+        return _exhausted.get();
+    }
+}
@@ -79,7 +79,12 @@ public class SOAPGateway {
             }
         }
         if (_wsConsumer != null) {
-            _wsConsumer.start();
+            try {
+                _wsConsumer.start();
+            } catch (Exception e) {
+                LOGGER.error(e);
+                throw new RuntimeException("WebService client could not be initialized!");
+            }
         }
     }
 
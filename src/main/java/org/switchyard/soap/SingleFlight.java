@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.switchyard.Exchange;
+
+/**
+ * Coalesces identical concurrent requests. The first Exchange for a key leads the call,
+ * Exchanges arriving with the same key while it is in flight join it and are handed the
+ * leader's response instead of calling the remote service themselves.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, Call> _calls = new ConcurrentHashMap<String, Call>();
+    private final AtomicLong _coalesced = new AtomicLong();
+
+    /**
+     * Joins the call in flight for a key or starts a new one.
+     * @param key the request key
+     * @param exchange the Exchange
+     * @return the Call to lead, or null if the Exchange joined a call in flight
+     */
+    public Call join(final String key, final Exchange exchange) {
+        Call call = new Call(key);
+        while (true) {
+            Call current = _calls.putIfAbsent(key, call);
+            if (current == null) {
+                return call;
+            }
+            if (current.join(exchange)) {
+                _coalesced.incrementAndGet();
+                return null;
+            }
+            // The call completed between lookup and join
+            _calls.remove(key, current);
+        }
+    }
+
+    /**
+     * Completes a call so that later requests with the same key start a new one.
+     * Completing a call twice is harmless.
+     * @param call the Call returned by join()
+     * @return the Exchanges waiting for the response of the call
+     */
+    public List<Exchange> complete(final Call call) {
+        _calls.remove(call._key, call);
+        return call.close();
+    }
+
+    /**
+     * Returns the number of calls in flight.
+     * @return the call count
+     */
+    public int getInFlight() {
+        return _calls.size();
+    }
+
+    /**
+     * Returns the number of Exchanges that were served by another Exchange's call.
+     * @return the coalesced count
+     */
+    public long getCoalescedCount() {
+        return _coalesced.get();
+    }
+
+    /**
+     * A request in flight and the Exchanges waiting on it.
+     */
+    public static final class Call {
+        private final String _key;
+        private List<Exchange> _followers = new ArrayList<Exchange>();
+
+        private Call(final String key) {
+            _key = key;
+        }
+
+        private synchronized boolean join(final Exchange exchange) {
+            if (_followers == null) {
+                return false;
+            }
+            _followers.add(exchange);
+            return true;
+        }
+
+        private synchronized List<Exchange> close() {
+            List<Exchange> followers = _followers;
+            _followers = null;
+            return (followers != null) ? followers : Collections.<Exchange>emptyList();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects a message in memory up to a threshold and in a temporary file beyond it.
+ * Once written, the content is taken either as a byte array or, if it spilled, as
+ * MappedContent that then owns the file.
+ */
+public class SpillOutputStream extends OutputStream {
+    private static final Logger LOGGER = Logger.getLogger(SpillOutputStream.class);
+    private static final int BUFFER_SIZE = 65536;
+
+    private final long _threshold;
+    private ByteArrayOutputStream _memory = new ByteArrayOutputStream();
+    private OutputStream _out = _memory;
+    private File _file;
+    private long _size;
+    private boolean _closed;
+    private boolean _mapped;
+
+    /**
+     * Constructor.
+     * @param threshold the number of bytes kept in memory, 0 to write to a file right away
+     */
+    public SpillOutputStream(final long threshold) {
+        _threshold = threshold;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        spillIfNeeded(1);
+        _out.write(b);
+        _size++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        spillIfNeeded(len);
+        _out.write(b, off, len);
+        _size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!_closed) {
+            _closed = true;
+            _out.close();
+        }
+    }
+
+    /**
+     * Moves the content to a temporary file when the next write would exceed the threshold.
+     * @param len the number of bytes about to be written
+     * @throws IOException If the file could not be created
+     */
+    private void spillIfNeeded(final int len) throws IOException {
+        if (_closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (_file == null && _size + len > _threshold) {
+            _file = File.createTempFile("switchyard-message", ".xml");
+            _out = new BufferedOutputStream(new FileOutputStream(_file), BUFFER_SIZE);
+            _memory.writeTo(_out);
+            _memory = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written.
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * Checks if the content exceeded the threshold and went to a file.
+     * @return true if the content is in a file
+     */
+    public boolean isSpilled() {
+        return _file != null;
+    }
+
+    /**
+     * Returns the content kept in memory.
+     * @return the content
+     * @throws IOException If the content spilled to a file
+     */
+    public byte[] toByteArray() throws IOException {
+        if (_file != null) {
+            throw new IOException("Content of " + _size + " bytes spilled to " + _file);
+        }
+        return _memory.toByteArray();
+    }
+
+    /**
+     * Closes the stream and maps the content, the returned MappedContent owns the file.
+     * @return the mapped content
+     * @throws IOException If the content is in memory or could not be mapped
+     */
+    public MappedContent toMappedContent() throws IOException {
+        if (_file == null) {
+            throw new IOException("Content of " + _size + " bytes is held in memory");
+        }
+        close();
+        try {
+            MappedContent content = new MappedContent(_file);
+            _mapped = true;
+            return content;
+        } catch (IOException ioe) {
+            discard();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Closes the stream and removes the temporary file, for content that is not needed.
+     * Content already taken as MappedContent is left to it.
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException ioe) {
+            LOGGER.debug("Could not close " + _file, ioe);
+        }
+        if (_file != null && !_mapped && !_file.delete()) {
+            _file.deleteOnExit();
+        }
+        _memory = null;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * A read-only DataSource holding the content of a stream in memory up to a threshold
+ * and in a temporary file above it, so that large attachments never sit on the heap.
+ * The temporary file is removed by delete(), or at the latest once the DataSource has
+ * been garbage collected.
+ */
+public class SpooledDataSource implements DataSource {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String _name;
+    private final String _contentType;
+    private byte[] _bytes;
+    private TempFile _file;
+    private long _size;
+
+    /**
+     * Constructor, reads the stream to its end.
+     * @param name the name, e.g. the Content-ID of an attachment
+     * @param contentType the MIME type
+     * @param in the content, not closed
+     * @param threshold the number of bytes kept in memory before spilling to a file
+     * @throws IOException If the stream could not be read or the file written
+     */
+    public SpooledDataSource(final String name, final String contentType, final InputStream in, final long threshold)
+        throws IOException {
+        _name = name;
+        _contentType = (contentType != null) ? contentType : "application/octet-stream";
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        OutputStream out = memory;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+                if (_file == null && _size + len > threshold) {
+                    _file = TempFile.track(this, File.createTempFile("switchyard-attachment", ".bin"));
+                    out = new FileOutputStream(_file.getFile());
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, len);
+                _size += len;
+            }
+        } catch (IOException ioe) {
+            out.close();
+            delete();
+            throw ioe;
+        }
+        out.close();
+        if (_file == null) {
+            _bytes = memory.toByteArray();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getContentType() {
+        return _contentType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns a new stream over the content.
+     * @return the stream
+     * @throws IOException If the content was deleted
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (_bytes != null) {
+            return new ByteArrayInputStream(_bytes);
+        } else if (_file != null) {
+            return new FileInputStream(_file.getFile());
+        }
+        throw new IOException("Content of " + _name + " has been deleted");
+    }
+
+    /**
+     * Not supported, the content is read-only.
+     * @return never
+     * @throws IOException always
+     */
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Content of " + _name + " is read-only");
+    }
+
+    /**
+     * Returns the size of the content.
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    /**
+     * Checks if the content was spilled to a temporary file.
+     * @return true if the content is in a file
+     */
+    public synchronized boolean isSpooled() {
+        return _file != null;
+    }
+
+    /**
+     * Releases the content and removes the temporary file. Streams that are open keep
+     * working on platforms that allow deleting open files.
+     */
+    public synchronized void delete() {
+        _bytes = null;
+        if (_file != null) {
+            _file.delete();
+            _file = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.IOException;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.transform.Source;
+
+import org.switchyard.Message;
+import org.switchyard.MessageBuilder;
+import org.switchyard.soap.util.SOAPUtil;
+
+/**
+ * A MessageComposer that keeps the SOAP body payload in its serialized form. The
+ * Message is a PayloadMessage with a LazyPayload as content, a DOM is only built when
+ * the content is requested as an Element and the payload can otherwise be streamed
+ * through PayloadSource.
+ */
+public class StreamingMessageComposer implements MessageComposer, PayloadMessageComposer {
+
+    /**
+     * Create a Message from a serialized SOAP envelope without building a SAAJ tree.
+     * @param envelope the serialized SOAP envelope
+     * @return a Message
+     * @throws SOAPException If the SOAP message is not correct.
+     */
+    public Message compose(final byte[] envelope) throws SOAPException {
+        Message message = new PayloadMessage(MessageBuilder.newInstance().buildMessage());
+        message.setContent(new LazyPayload(SOAPUtil.extractBodyPayload(envelope)));
+        return message;
+    }
+
+    /**
+     * Create a Message from a large SOAP envelope in a memory-mapped file. The body payload
+     * is streamed into a memory-mapped file of its own, which the caller deletes once the
+     * Message is no longer used. The envelope is left to the caller.
+     * @param envelope the serialized SOAP envelope
+     * @return a Message
+     * @throws SOAPException If the SOAP message is not correct or the payload could not be written.
+     */
+    public Message compose(final MappedContent envelope) throws SOAPException {
+        SpillOutputStream out = new SpillOutputStream(0);
+        MappedContent payload;
+        try {
+            SOAPUtil.extractBodyPayload(envelope.getInputStream(), out);
+            payload = out.toMappedContent();
+        } catch (IOException ioe) {
+            out.discard();
+            throw new SOAPException("Unable to spool SOAP body", ioe);
+        } catch (SOAPException se) {
+            out.discard();
+            throw se;
+        }
+        Message message = new PayloadMessage(MessageBuilder.newInstance().buildMessage());
+        message.setContent(new LazyPayload(payload));
+        return message;
+    }
+
+    /**
+     * Create a Message from a SOAP body payload.
+     * @param payload the SOAP body payload
+     * @return a Message
+     * @throws SOAPException If the payload is not correct.
+     */
+    public Message composePayload(final Source payload) throws SOAPException {
+        Message message = new PayloadMessage(MessageBuilder.newInstance().buildMessage());
+        message.setContent(new LazyPayload(SOAPUtil.extractPayload(SOAPUtil.toBytes(payload))));
+        return message;
+    }
+
+    /**
+     * Create a Message from the given SOAP message. The SAAJ tree is already built, so
+     * the body payload is used as DOM content as by the DefaultMessageComposer.
+     * @param soapMessage the SOAP message to be converted
+     * @return a Message
+     * @throws SOAPException If the SOAP message is not correct.
+     */
+    public Message compose(final SOAPMessage soapMessage) throws SOAPException {
+        return new DefaultMessageComposer().compose(soapMessage);
+    }
+}
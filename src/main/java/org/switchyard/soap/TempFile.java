@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A temporary file owned by another object. The file is removed by delete(), or by a
+ * daemon thread once the owner has been garbage collected without being released, so
+ * the files of lost messages do not pile up until the JVM exits.
+ */
+final class TempFile extends PhantomReference<Object> {
+    private static final Logger LOGGER = Logger.getLogger(TempFile.class);
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+    // A phantom reference is only enqueued while it is reachable itself
+    private static final Set<TempFile> TRACKED = Collections.newSetFromMap(new ConcurrentHashMap<TempFile, Boolean>());
+
+    static {
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        ((TempFile) QUEUE.remove()).delete();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }, "SOAP temporary file reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private final File _file;
+    private final AtomicBoolean _deleted = new AtomicBoolean();
+
+    private TempFile(final Object owner, final File file) {
+        super(owner, QUEUE);
+        _file = file;
+    }
+
+    /**
+     * Removes a file once its owner is garbage collected, unless delete() is called first.
+     * @param owner the object the file belongs to
+     * @param file the file
+     * @return the TempFile
+     */
+    static TempFile track(final Object owner, final File file) {
+        TempFile tempFile = new TempFile(owner, file);
+        TRACKED.add(tempFile);
+        return tempFile;
+    }
+
+    /**
+     * Returns the file.
+     * @return the file
+     */
+    File getFile() {
+        return _file;
+    }
+
+    /**
+     * Removes the file, platforms that do not allow removing a file that is open or mapped
+     * remove it when the JVM exits. Deleting twice is harmless.
+     */
+    void delete() {
+        if (_deleted.compareAndSet(false, true)) {
+            TRACKED.remove(this);
+            clear();
+            if (!_file.delete() && _file.exists()) {
+                LOGGER.debug("Could not delete " + _file + " yet, deleting it on exit");
+                _file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for an endpoint or a single operation, combining a token bucket
+ * rate limit with a maximum number of requests in flight. Limits can be changed at
+ * runtime, a value of zero or less disables the corresponding check.
+ */
+public class Throttle {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long DEFAULT_RETRY_AFTER = 1000;
+
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private volatile int _maxInFlight;
+    private volatile double _rate;
+    private volatile double _burst;
+    private double _tokens;
+    private long _lastRefill = System.nanoTime();
+
+    /**
+     * Constructor.
+     * @param rate the allowed requests per second
+     * @param maxInFlight the maximum number of concurrent requests
+     */
+    public Throttle(final double rate, final int maxInFlight) {
+        setRate(rate);
+        _maxInFlight = maxInFlight;
+        _tokens = _burst;
+    }
+
+    /**
+     * Sets the allowed requests per second, the burst size is one second worth of requests.
+     * @param rate the rate
+     */
+    public synchronized void setRate(final double rate) {
+        _rate = rate;
+        _burst = Math.max(rate, 1);
+        _tokens = Math.min(_tokens, _burst);
+    }
+
+    /**
+     * Returns the allowed requests per second.
+     * @return the rate
+     */
+    public double getRate() {
+        return _rate;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests.
+     * @param maxInFlight the limit
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        _maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests.
+     * @return the limit
+     */
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    /**
+     * Returns the number of requests currently in flight.
+     * @return the count
+     */
+    public int getInFlight() {
+        return _inFlight.get();
+    }
+
+    /**
+     * Tries to admit a request. Every successful call must be paired with release().
+     * @return 0 if admitted, otherwise the suggested retry delay in milliseconds
+     */
+    public long tryAcquire() {
+        int count;
+        do {
+            count = _inFlight.get();
+            int max = _maxInFlight;
+            if (max > 0 && count >= max) {
+                return DEFAULT_RETRY_AFTER;
+            }
+        } while (!_inFlight.compareAndSet(count, count + 1));
+
+        long retryAfter = takeToken();
+        if (retryAfter > 0) {
+            _inFlight.decrementAndGet();
+        }
+        return retryAfter;
+    }
+
+    /**
+     * Releases a request admitted by tryAcquire().
+     */
+    public void release() {
+        _inFlight.decrementAndGet();
+    }
+
+    private synchronized long takeToken() {
+        double rate = _rate;
+        if (rate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        _tokens = Math.min(_burst, _tokens + (now - _lastRefill) * rate / NANOS_PER_SECOND);
+        _lastRefill = now;
+        if (_tokens >= 1) {
+            _tokens--;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - _tokens) * 1000 / rate));
+    }
+}
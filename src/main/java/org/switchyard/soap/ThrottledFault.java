@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.handler.MessageContext;
+
+/**
+ * The pre-serialized SOAP fault returned for a throttled request. The fault bytes are
+ * shared, each rejection reads them through its own stream. The endpoint passes the
+ * suggested retry delay on to the client as Retry-After HTTP header.
+ */
+final class ThrottledFault extends StreamSource {
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final long _retryAfter;
+
+    /**
+     * Constructor.
+     * @param fault the serialized SOAP fault
+     * @param retryAfter the suggested retry delay in seconds
+     */
+    ThrottledFault(final byte[] fault, final long retryAfter) {
+        super(new ByteArrayInputStream(fault));
+        _retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the suggested retry delay.
+     * @return the delay in seconds
+     */
+    long getRetryAfter() {
+        return _retryAfter;
+    }
+
+    /**
+     * Adds the Retry-After HTTP header to the response of a request if it was throttled.
+     * @param context the MessageContext of the request, may be null
+     * @param response the response returned by the InboundHandler, may be null
+     */
+    @SuppressWarnings("unchecked")
+    static void addRetryAfter(final MessageContext context, final Source response) {
+        if (context == null || !(response instanceof ThrottledFault)) {
+            return;
+        }
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        Map<String, List<String>> existing = (Map<String, List<String>>) context.get(MessageContext.HTTP_RESPONSE_HEADERS);
+        if (existing != null) {
+            headers.putAll(existing);
+        }
+        headers.put(RETRY_AFTER, Collections.singletonList(String.valueOf(((ThrottledFault) response).getRetryAfter())));
+        context.put(MessageContext.HTTP_RESPONSE_HEADERS, headers);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timing wheel used to expire pending exchanges. Scheduling and cancelling
+ * are lock-free and O(1), and a single daemon thread advances the wheel one bucket
+ * per tick, so tens of thousands of timeouts cost neither threads nor a shared lock.
+ */
+public class TimingWheel {
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class);
+    private static final long DEFAULT_TICK = 100;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long _tickDuration;
+    private final int _mask;
+    private final Queue<Timeout>[] _wheel;
+    private final Queue<Timeout> _newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final String _name;
+    private volatile Thread _worker;
+    private volatile long _startTime;
+    private long _tick;
+
+    /**
+     * A scheduled task that can be cancelled.
+     */
+    public static final class Timeout {
+        private final long _deadline;
+        private volatile Runnable _task;
+        private long _remainingRounds;
+
+        private Timeout(final Runnable task, final long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        /**
+         * Cancels the task. The slot is reclaimed lazily when the wheel reaches it but the
+         * task reference is released right away.
+         */
+        public void cancel() {
+            _task = null;
+        }
+
+        /**
+         * Checks if the task was cancelled or has already run.
+         * @return true if the task will not run
+         */
+        public boolean isCancelled() {
+            return _task == null;
+        }
+    }
+
+    /**
+     * Constructor with a 100ms tick and 512 buckets.
+     * @param name the name of the worker thread
+     */
+    public TimingWheel(final String name) {
+        this(name, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the worker thread
+     * @param tickDuration the tick duration in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(final String name, final long tickDuration, final int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        _name = name;
+        _tickDuration = tickDuration;
+        _mask = size - 1;
+        _wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new ConcurrentLinkedQueue<Timeout>();
+        }
+    }
+
+    /**
+     * Starts the worker thread.
+     */
+    public synchronized void start() {
+        if (_worker == null) {
+            _startTime = System.nanoTime();
+            _worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, _name);
+            _worker.setDaemon(true);
+            _worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker thread, pending tasks are dropped.
+     */
+    public synchronized void stop() {
+        Thread worker = _worker;
+        _worker = null;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Schedules a task to run once the delay has elapsed.
+     * @param task the task
+     * @param delay the delay in milliseconds
+     * @return the Timeout handle
+     */
+    public Timeout schedule(final Runnable task, final long delay) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        _newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        while (_worker == Thread.currentThread()) {
+            long deadline = _startTime + TimeUnit.MILLISECONDS.toNanos(_tickDuration * (_tick + 1));
+            long sleep = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+            }
+            transferNewTimeouts();
+            expire(_wheel[(int) (_tick & _mask)]);
+            _tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout = _newTimeouts.poll();
+        while (timeout != null) {
+            if (!timeout.isCancelled()) {
+                long ticks = (timeout._deadline - _startTime) / TimeUnit.MILLISECONDS.toNanos(_tickDuration);
+                long target = Math.max(ticks, _tick);
+                timeout._remainingRounds = (target - _tick) / _wheel.length;
+                _wheel[(int) (target & _mask)].add(timeout);
+            }
+            timeout = _newTimeouts.poll();
+        }
+    }
+
+    private void expire(final Queue<Timeout> bucket) {
+        for (Iterator<Timeout> i = bucket.iterator(); i.hasNext();) {
+            Timeout timeout = i.next();
+            if (timeout.isCancelled()) {
+                i.remove();
+            } else if (timeout._remainingRounds > 0) {
+                timeout._remainingRounds--;
+            } else {
+                i.remove();
+                Runnable task = timeout._task;
+                timeout._task = null;
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable th) {
+                        LOGGER.error("Timeout task failed", th);
+                    }
+                }
+            }
+        }
+    }
+}
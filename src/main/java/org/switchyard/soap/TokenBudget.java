@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+/**
+ * A budget for extra requests such as hedges or retries. Every regular request deposits
+ * a fraction of a token and every extra request withdraws a whole one, so extra requests
+ * stay below that fraction of the traffic however slow or unreliable the remote side gets.
+ */
+public class TokenBudget {
+    private final double _ratio;
+    private final double _maxTokens;
+    private double _tokens;
+
+    /**
+     * Constructor. The budget starts full.
+     * @param ratio the tokens deposited per regular request, e.g. 0.1 for 10 percent
+     * @param maxTokens the maximum number of tokens saved up for bursts
+     */
+    public TokenBudget(final double ratio, final double maxTokens) {
+        _ratio = ratio;
+        _maxTokens = maxTokens;
+        _tokens = maxTokens;
+    }
+
+    /**
+     * Deposits the tokens for a regular request.
+     */
+    public synchronized void deposit() {
+        _tokens = Math.min(_tokens + _ratio, _maxTokens);
+    }
+
+    /**
+     * Withdraws a token for an extra request.
+     * @return true if the budget allows the extra request
+     */
+    public synchronized boolean tryWithdraw() {
+        if (_tokens < 1) {
+            return false;
+        }
+        _tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Returns the tokens available.
+     * @return the token count
+     */
+    public synchronized double getTokens() {
+        return _tokens;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.activation.DataSource;
+import javax.xml.soap.AttachmentPart;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.handler.MessageContext;
+
+import org.apache.log4j.Logger;
+import org.switchyard.soap.util.SOAPUtil;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Decodes MTOM/XOP and SOAP with Attachments requests before they reach the JAX-WS
+ * endpoint and encodes responses with attachments as an XOP package. JAX-WS inlines
+ * binary parts as base64 into the envelope, so the filter takes the MIME parts off the
+ * request instead: the root part is handed on as a plain SOAP request with its
+ * xop:Include elements untouched, the other parts are spooled to SpooledDataSources that
+ * the Webservice implementations pass on to SwitchYard by Content-ID.
+ */
+public class XopFilter extends Filter {
+    private static final Logger LOGGER = Logger.getLogger(XopFilter.class);
+    /** The media type of the root part of an XOP package. */
+    public static final String XOP_CONTENT_TYPE = "application/xop+xml";
+    private static final String MULTIPART_RELATED = "multipart/related";
+    // The HttpExchange property of the standalone and the JDK internal JAX-WS RI
+    private static final String[] EXCHANGE_PROPERTIES = {"com.sun.xml.ws.http.exchange", "com.sun.xml.internal.ws.http.exchange"};
+    private static final String ROOT_CONTENT_ID = "root.message@switchyard";
+    private static final String CRLF = "\r\n";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_ACCEPTED = 202;
+
+    private final long _threshold;
+
+    /**
+     * Constructor.
+     * @param threshold the attachment size in bytes above which attachments are spooled to temporary files
+     */
+    public XopFilter(final long threshold) {
+        _threshold = threshold;
+    }
+
+    @Override
+    public String description() {
+        return "Decodes MTOM/XOP requests and encodes responses with attachments";
+    }
+
+    @Override
+    public void doFilter(final HttpExchange exchange, final Chain chain) throws IOException {
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            chain.doFilter(exchange);
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.trim().toLowerCase(Locale.ENGLISH).startsWith(MULTIPART_RELATED)) {
+            chain.doFilter(new XopExchange(exchange));
+            return;
+        }
+        XopExchange xop = new XopExchange(exchange);
+        try {
+            xop.decode(parseParameters(contentType), _threshold);
+        } catch (IOException ioe) {
+            LOGGER.warn("Rejecting malformed multipart request: " + ioe.getMessage());
+            xop.deleteAttachments();
+            exchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+            exchange.close();
+            return;
+        }
+        chain.doFilter(xop);
+    }
+
+    /**
+     * Returns the XOP exchange a JAX-WS request was received on.
+     * @param context the MessageContext of the request, may be null
+     * @return the exchange or null if the endpoint has no XopFilter
+     */
+    static XopExchange getExchange(final MessageContext context) {
+        if (context != null) {
+            for (String property : EXCHANGE_PROPERTIES) {
+                Object exchange = context.get(property);
+                if (exchange instanceof XopExchange) {
+                    return (XopExchange) exchange;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the parameters of a Content-Type header, quoted values may contain semicolons.
+     * @param contentType the header value
+     * @return the parameter names in lower case mapped to their unquoted values
+     */
+    static Map<String, String> parseParameters(final String contentType) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        int pos = contentType.indexOf(';');
+        while (pos > -1 && pos < contentType.length()) {
+            int eq = contentType.indexOf('=', pos);
+            if (eq < 0) {
+                break;
+            }
+            String name = contentType.substring(pos + 1, eq).trim().toLowerCase(Locale.ENGLISH);
+            StringBuilder value = new StringBuilder();
+            int i = eq + 1;
+            while (i < contentType.length() && contentType.charAt(i) == ' ') {
+                i++;
+            }
+            if (i < contentType.length() && contentType.charAt(i) == '"') {
+                for (i++; i < contentType.length() && contentType.charAt(i) != '"'; i++) {
+                    if (contentType.charAt(i) == '\\' && i + 1 < contentType.length()) {
+                        i++;
+                    }
+                    value.append(contentType.charAt(i));
+                }
+                pos = contentType.indexOf(';', i);
+            } else {
+                pos = contentType.indexOf(';', i);
+                value.append(contentType.substring(i, (pos > -1) ? pos : contentType.length()).trim());
+            }
+            parameters.put(name, value.toString());
+        }
+        return parameters;
+    }
+
+    /**
+     * Copies a stream.
+     * @param in the source, not closed
+     * @param out the target, not closed
+     * @throws IOException If a stream could not be read or written
+     */
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            out.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * An exchange carrying the attachments of the request and of the response. The
+     * spooled request attachments are deleted when the exchange is closed, unless the
+     * request was one way and is still processed after the response was sent.
+     */
+    static final class XopExchange extends HttpExchangeWrapper {
+        private final Map<String, DataSource> _attachments = new LinkedHashMap<String, DataSource>();
+        private final Map<String, DataSource> _responseAttachments =
+            Collections.synchronizedMap(new LinkedHashMap<String, DataSource>());
+        private Headers _requestHeaders;
+        private InputStream _in;
+        private OutputStream _out;
+        private String _boundary;
+        private boolean _finished;
+        private final OutputStream _body = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                target().write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                target().write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                target().flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                finish();
+                target().close();
+            }
+        };
+
+        /**
+         * Constructor.
+         * @param exchange the exchange
+         */
+        private XopExchange(final HttpExchange exchange) {
+            super(exchange);
+        }
+
+        /**
+         * Reads a multipart/related request, the root part becomes the request body and
+         * the other parts are spooled as attachments.
+         * @param parameters the parameters of the request Content-Type
+         * @param threshold the attachment size above which attachments are spooled to files
+         * @throws IOException If the request is malformed or could not be read
+         */
+        private void decode(final Map<String, String> parameters, final long threshold) throws IOException {
+            String boundary = parameters.get("boundary");
+            if (boundary == null) {
+                throw new IOException("Missing boundary parameter");
+            }
+            String start = SOAPUtil.stripContentId(parameters.get("start"));
+            MultipartReader reader = new MultipartReader(getExchange().getRequestBody(), boundary);
+            byte[] root = null;
+            String rootType = null;
+            for (Map<String, String> headers = reader.nextPart(); headers != null; headers = reader.nextPart()) {
+                String contentId = SOAPUtil.stripContentId(headers.get("content-id"));
+                if (root == null && (start == null || start.equals(contentId))) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    copy(reader.getPartStream(), out);
+                    root = out.toByteArray();
+                    rootType = headers.get("content-type");
+                } else {
+                    if (contentId == null) {
+                        contentId = "attachment" + _attachments.size();
+                    }
+                    _attachments.put(contentId, new SpooledDataSource(contentId, headers.get("content-type"),
+                            reader.getPartStream(), threshold));
+                }
+            }
+            if (root == null) {
+                throw new IOException("Missing root part " + ((start != null) ? start : ""));
+            }
+            _in = new ByteArrayInputStream(root);
+            _requestHeaders = new Headers();
+            _requestHeaders.putAll(getExchange().getRequestHeaders());
+            _requestHeaders.remove("Content-Length");
+            _requestHeaders.set("Content-Type", rootContentType(rootType, parameters.get("start-info")));
+        }
+
+        /**
+         * Returns the Content-Type of the SOAP envelope in the root part.
+         * @param rootType the Content-Type of the root part, may be null
+         * @param startInfo the start-info parameter of the request, may be null
+         * @return the Content-Type
+         */
+        private static String rootContentType(final String rootType, final String startInfo) {
+            if (rootType == null) {
+                return (startInfo != null) ? startInfo : "text/xml";
+            }
+            if (!rootType.trim().toLowerCase(Locale.ENGLISH).startsWith(XOP_CONTENT_TYPE)) {
+                return rootType;
+            }
+            Map<String, String> parameters = parseParameters(rootType);
+            String type = (startInfo != null) ? startInfo : parameters.get("type");
+            String charset = parameters.get("charset");
+            return ((type != null) ? type : "text/xml") + ((charset != null) ? "; charset=" + charset : "");
+        }
+
+        /**
+         * Returns the attachments of the request.
+         * @return the attachments by Content-ID
+         */
+        Map<String, DataSource> getAttachments() {
+            return _attachments;
+        }
+
+        /**
+         * Moves the attachments of a SOAP response to this exchange, the response is then
+         * sent as an XOP package.
+         * @param response the SOAP response, may be null
+         * @throws SOAPException If the attachments could not be read
+         */
+        void addResponseAttachments(final SOAPMessage response) throws SOAPException {
+            if (response == null || response.countAttachments() == 0) {
+                return;
+            }
+            Iterator<?> parts = response.getAttachments();
+            while (parts.hasNext()) {
+                AttachmentPart part = (AttachmentPart) parts.next();
+                String contentId = SOAPUtil.stripContentId(part.getContentId());
+                if (contentId == null) {
+                    contentId = "attachment" + _responseAttachments.size();
+                }
+                _responseAttachments.put(contentId, part.getDataHandler().getDataSource());
+            }
+            response.removeAllAttachments();
+        }
+
+        /**
+         * Adds the attachments of a response Message to this exchange, the response is then
+         * sent as an XOP package.
+         * @param attachments the attachments by Content-ID, may be null
+         */
+        void addResponseAttachments(final Map<String, DataSource> attachments) {
+            if (attachments != null) {
+                _responseAttachments.putAll(attachments);
+            }
+        }
+
+        /**
+         * Deletes the spooled request attachments.
+         */
+        private void deleteAttachments() {
+            for (DataSource attachment : _attachments.values()) {
+                if (attachment instanceof SpooledDataSource) {
+                    ((SpooledDataSource) attachment).delete();
+                }
+            }
+        }
+
+        /**
+         * Returns the stream the response body is written to.
+         * @return the stream
+         */
+        private OutputStream target() {
+            return (_out != null) ? _out : getExchange().getResponseBody();
+        }
+
+        @Override
+        public void sendResponseHeaders(final int code, final long length) throws IOException {
+            if (_responseAttachments.isEmpty()) {
+                getExchange().sendResponseHeaders(code, length);
+                return;
+            }
+            Headers headers = getResponseHeaders();
+            String contentType = headers.getFirst("Content-Type");
+            String type = "text/xml";
+            String charset = "utf-8";
+            if (contentType != null) {
+                int semicolon = contentType.indexOf(';');
+                type = ((semicolon > -1) ? contentType.substring(0, semicolon) : contentType).trim();
+                String parameter = parseParameters(contentType).get("charset");
+                if (parameter != null) {
+                    charset = parameter;
+                }
+            }
+            _boundary = "uuid:" + UUID.randomUUID();
+            headers.set("Content-Type", MULTIPART_RELATED + "; type=\"" + XOP_CONTENT_TYPE + "\"; boundary=\""
+                    + _boundary + "\"; start=\"<" + ROOT_CONTENT_ID + ">\"; start-info=\"" + type + "\"");
+            getExchange().sendResponseHeaders(code, 0);
+            writeAscii("--" + _boundary + CRLF
+                    + "Content-Type: " + XOP_CONTENT_TYPE + "; charset=" + charset + "; type=\"" + type + "\"" + CRLF
+                    + "Content-Transfer-Encoding: binary" + CRLF
+                    + "Content-ID: <" + ROOT_CONTENT_ID + ">" + CRLF + CRLF);
+        }
+
+        /**
+         * Writes the attachment parts and the closing boundary after the root part.
+         * @throws IOException If an attachment could not be read or the response written
+         */
+        private synchronized void finish() throws IOException {
+            if (_finished || _boundary == null) {
+                return;
+            }
+            _finished = true;
+            synchronized (_responseAttachments) {
+                for (Map.Entry<String, DataSource> attachment : _responseAttachments.entrySet()) {
+                    writeAscii(CRLF + "--" + _boundary + CRLF
+                            + "Content-Type: " + attachment.getValue().getContentType() + CRLF
+                            + "Content-Transfer-Encoding: binary" + CRLF
+                            + "Content-ID: <" + attachment.getKey() + ">" + CRLF + CRLF);
+                    InputStream in = attachment.getValue().getInputStream();
+                    try {
+                        copy(in, target());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+            writeAscii(CRLF + "--" + _boundary + "--" + CRLF);
+        }
+
+        /**
+         * Writes MIME headers or boundaries to the response body.
+         * @param text the ASCII text
+         * @throws IOException If the response could not be written
+         */
+        private void writeAscii(final String text) throws IOException {
+            target().write(text.getBytes("US-ASCII"));
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return (_requestHeaders != null) ? _requestHeaders : getExchange().getRequestHeaders();
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return (_in != null) ? _in : getExchange().getRequestBody();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return _body;
+        }
+
+        @Override
+        public void setStreams(final InputStream in, final OutputStream out) {
+            if (in != null) {
+                _in = in;
+            }
+            if (out != null) {
+                _out = out;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                finish();
+            } catch (IOException ioe) {
+                LOGGER.warn("Could not write response attachments: " + ioe.getMessage());
+            }
+            if (getResponseCode() != HTTP_ACCEPTED) {
+                deleteAttachments();
+            }
+            getExchange().close();
+        }
+    }
+}
@@ -23,30 +23,59 @@
 package org.switchyard.soap.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-import javax.wsdl.Operation;
-import javax.wsdl.OperationType;
-import javax.wsdl.Port;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.soap.Detail;
 import javax.xml.soap.DetailEntry;
 import javax.xml.soap.MessageFactory;
+import javax.xml.soap.MimeHeaders;
 import javax.xml.soap.SOAPBody;
+import javax.xml.soap.SOAPConstants;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPFault;
 import javax.xml.soap.SOAPMessage;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.SOAPFaultException;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * Contains utility methods to examine/manipulate SOAP Messages.
@@ -55,6 +84,27 @@ public final class SOAPUtil {
     private static final Logger LOGGER = Logger.getLogger(SOAPUtil.class);
     private static final QName SERVER_FAULT_QN = new QName("http://schemas.xmlsoap.org/soap/envelope/", "Server");
     private static final boolean RETURN_STACK_TRACES = false;
+    private static final String BODY = "Body";
+    private static final String FAULT = "Fault";
+    private static final String SOAP_ACTION = "SOAPAction";
+    private static final int BUFFER_SIZE = 4096;
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>();
+    private static final ErrorListener ERROR_LISTENER = new ErrorListener() {
+        public void warning(final TransformerException te) {
+            LOGGER.debug(te);
+        }
+
+        public void error(final TransformerException te) throws TransformerException {
+            throw te;
+        }
+
+        public void fatalError(final TransformerException te) throws TransformerException {
+            throw te;
+        }
+    };
+
+    /** Content type of SOAP 1.1 messages. */
+    public static final String CONTENT_TYPE = "text/xml; charset=utf-8";
 
     /** SOAP Message Factory holder. */
     public static final MessageFactory SOAP_MESSAGE_FACTORY;
@@ -63,46 +113,424 @@ public final class SOAPUtil {
     }
 
     /**
-     * Check if we are invoking a @Oneway annotated method.
-     *
-     * @param port The WSDL service port.
-     * @param soapMessage The SOAP message.
-     * @return True if there is no response to be expected.
-     * @throws SOAPException If the SOAP message is invalid
+     * Receives the name of the first SOAP body element while an envelope is copied.
      */
-    public static boolean isMessageOneWay(final Port port, final SOAPMessage soapMessage) throws SOAPException {
-        boolean isOneWay = false;
-        String opName = getOperationName(soapMessage);
-        // Overloaded methods not supported
-        // Encrypted messages will be treated as request-response as it cannot be decrypted
-        Operation operation = port.getBinding().getPortType().getOperation(opName, null, null);
-        if (operation != null) {
-            isOneWay = operation.getStyle().equals(OperationType.ONE_WAY);
-        }
-        return isOneWay;
+    public interface BodyElementListener {
+
+        /**
+         * Called once with the name of the first body element.
+         * @param name the element name, null if the body is empty
+         * @return true to copy the rest of the envelope, false to stop
+         */
+        boolean bodyElement(QName name);
     }
 
     /**
-     * Retrives the operation name from the SOAP Envelope.
+     * Retrieves the qualified name of the first element in the SOAP Body.
      *
      * @param soapMessage The SOAP message.
-     * @return The operation name.
+     * @return The element name or null if the body is empty.
      * @throws SOAPException If the SOAP message is invalid
      */
-    private static String getOperationName(final SOAPMessage soapMessage) throws SOAPException {
-        String operationName = null;
+    public static QName getBodyElementName(final SOAPMessage soapMessage) throws SOAPException {
         SOAPBody body = soapMessage.getSOAPPart().getEnvelope().getBody();
         if (body != null) {
-            Iterator<Node> nodes = body.getChildElements();
-            Node node = null;
-            while (nodes.hasNext()) {
-                node = nodes.next();
+            for (Node node = body.getFirstChild(); node != null; node = node.getNextSibling()) {
                 if (node instanceof Element) {
-                    operationName = node.getLocalName();
+                    return new QName(node.getNamespaceURI() != null ? node.getNamespaceURI() : "", node.getLocalName());
                 }
             }
         }
-        return operationName;
+        return null;
+    }
+
+    /**
+     * Retrieves the qualified name of the first element in the SOAP Body by streaming
+     * through the serialized envelope, without building a SAAJ tree. Parsing stops at
+     * that element.
+     *
+     * @param envelope The serialized SOAP envelope.
+     * @return The element name or null if the body is empty.
+     * @throws SOAPException If the envelope could not be parsed
+     */
+    public static QName peekBodyElementName(final byte[] envelope) throws SOAPException {
+        return peekBodyElementName(new ByteArrayInputStream(envelope));
+    }
+
+    /**
+     * Retrieves the qualified name of the first element in the SOAP Body of a streamed
+     * envelope. Parsing stops at that element, the stream is not closed.
+     *
+     * @param envelope The serialized SOAP envelope.
+     * @return The element name or null if the body is empty.
+     * @throws SOAPException If the envelope could not be parsed
+     */
+    public static QName peekBodyElementName(final InputStream envelope) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLHelper.getXMLStreamReader(envelope);
+            return moveToPayload(reader, true) ? reader.getName() : null;
+        } catch (XMLStreamException xse) {
+            throw new SOAPException("Unable to parse SOAP request", xse);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Computes a digest of the SOAP body payload that is independent of namespace
+     * prefixes, attribute order and whitespace between elements, for use as a cache key.
+     *
+     * @param document The serialized envelope or payload.
+     * @param envelope True if the document is a SOAP envelope, false for a body payload.
+     * @return The hex encoded SHA-256 digest.
+     * @throws SOAPException If the document could not be parsed
+     */
+    public static String canonicalHash(final byte[] document, final boolean envelope) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            reader = XMLHelper.getXMLStreamReader(new ByteArrayInputStream(document));
+            if (moveToPayload(reader, envelope)) {
+                int depth = 0;
+                do {
+                    switch (reader.getEventType()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        update(digest, "<" + reader.getNamespaceURI() + "}" + reader.getLocalName());
+                        String[] attributes = new String[reader.getAttributeCount()];
+                        for (int i = 0; i < attributes.length; i++) {
+                            attributes[i] = reader.getAttributeNamespace(i) + "}" + reader.getAttributeLocalName(i)
+                                    + "=" + reader.getAttributeValue(i);
+                        }
+                        Arrays.sort(attributes);
+                        for (String attribute : attributes) {
+                            update(digest, attribute);
+                        }
+                        depth++;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        update(digest, ">");
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (!reader.isWhiteSpace()) {
+                            update(digest, reader.getText());
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                } while (depth > 0 && reader.hasNext() && reader.next() > 0);
+            }
+            final StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new SOAPException(nsae);
+        } catch (XMLStreamException xse) {
+            throw new SOAPException("Unable to parse SOAP message", xse);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Checks if a serialized envelope or payload is a SOAP Fault.
+     *
+     * @param document The serialized envelope or payload.
+     * @param envelope True if the document is a SOAP envelope, false for a body payload.
+     * @return True if the payload is a SOAP Fault.
+     * @throws SOAPException If the document could not be parsed
+     */
+    public static boolean isFault(final byte[] document, final boolean envelope) throws SOAPException {
+        QName name = envelope ? peekBodyElementName(document) : peekRootElementName(document);
+        return (name != null) && FAULT.equals(name.getLocalPart())
+            && (SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE.equals(name.getNamespaceURI())
+                || SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE.equals(name.getNamespaceURI()));
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    /**
+     * Advances the reader to the start of the payload element, that is the first child
+     * of the SOAP Body for an envelope or the root element otherwise.
+     */
+    private static boolean moveToPayload(final XMLStreamReader reader, final boolean envelope) throws XMLStreamException {
+        int depth = 0;
+        boolean inBody = !envelope;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (inBody) {
+                    return true;
+                }
+                depth++;
+                // Envelope is at depth 1, Header and Body at depth 2
+                inBody = (depth == 2) && BODY.equals(reader.getLocalName());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (inBody) {
+                    return false;
+                }
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    private static void close(final XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException xse) {
+                LOGGER.debug(xse);
+            }
+        }
+    }
+
+    /**
+     * Copies the single element inside the SOAP Body of a serialized envelope into a
+     * standalone document by streaming through the envelope. Namespaces declared on
+     * the Envelope and Body are redeclared on the copied element.
+     *
+     * @param envelope The serialized SOAP envelope.
+     * @return The serialized body element.
+     * @throws SOAPException If the body does not contain exactly one element
+     */
+    public static byte[] extractBodyPayload(final byte[] envelope) throws SOAPException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        extractBodyPayload(new ByteArrayInputStream(envelope), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Streams the single element inside the SOAP Body of an envelope to a stream, neither
+     * the envelope nor the payload is held in memory.
+     *
+     * @param envelope The serialized SOAP envelope, not closed.
+     * @param out The stream receiving the body element, not closed.
+     * @throws SOAPException If the body does not contain exactly one element
+     */
+    public static void extractBodyPayload(final InputStream envelope, final OutputStream out) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLHelper.getXMLStreamReader(envelope);
+            Map<String, String> namespaces = new HashMap<String, String>();
+            boolean found = false;
+            int depth = 0;
+            boolean inBody = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (inBody) {
+                        if (found) {
+                            throw new SOAPException("Found multiple SOAPElements in SOAPBody");
+                        }
+                        copyElement(reader, namespaces, out);
+                        found = true;
+                        continue;
+                    }
+                    depth++;
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        namespaces.put((prefix != null) ? prefix : "", reader.getNamespaceURI(i));
+                    }
+                    inBody = (depth == 2) && BODY.equals(reader.getLocalName());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (inBody) {
+                        break;
+                    }
+                    depth--;
+                }
+            }
+            if (!found) {
+                throw new SOAPException("Could not find SOAPElement in SOAPBody");
+            }
+        } catch (XMLStreamException xse) {
+            throw new SOAPException("Unable to parse SOAP message", xse);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Copies the root element of a serialized XML document, dropping the XML declaration
+     * and anything outside the root element.
+     *
+     * @param document The serialized document.
+     * @return The serialized root element.
+     * @throws SOAPException If the document could not be parsed
+     */
+    public static byte[] extractPayload(final byte[] document) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLHelper.getXMLStreamReader(new ByteArrayInputStream(document));
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return copyElement(reader, new HashMap<String, String>());
+                }
+            }
+            throw new SOAPException("Could not find payload element");
+        } catch (XMLStreamException xse) {
+            throw new SOAPException("Unable to parse SOAP payload", xse);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Retrieves the qualified name of the root element of a serialized document
+     * without parsing past it.
+     *
+     * @param document The serialized document.
+     * @return The element name or null if there is none.
+     * @throws SOAPException If the document could not be parsed
+     */
+    public static QName peekRootElementName(final byte[] document) throws SOAPException {
+        return peekRootElementName(new ByteArrayInputStream(document));
+    }
+
+    /**
+     * Retrieves the qualified name of the root element of a streamed document without
+     * parsing past it, the stream is not closed.
+     *
+     * @param document The serialized document.
+     * @return The element name or null if there is none.
+     * @throws SOAPException If the document could not be parsed
+     */
+    public static QName peekRootElementName(final InputStream document) throws SOAPException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLHelper.getXMLStreamReader(document);
+            return moveToPayload(reader, false) ? reader.getName() : null;
+        } catch (XMLStreamException xse) {
+            throw new SOAPException("Unable to parse SOAP payload", xse);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Copies the element the reader is positioned on, leaving the reader on its end tag.
+     */
+    private static byte[] copyElement(final XMLStreamReader reader, final Map<String, String> inherited)
+        throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copyElement(reader, inherited, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Copies the element the reader is positioned on to a stream, leaving the reader on its end tag.
+     */
+    private static void copyElement(final XMLStreamReader reader, final Map<String, String> inherited,
+            final OutputStream out) throws XMLStreamException {
+        XMLStreamWriter writer = XMLHelper.getXMLStreamWriter(out);
+        int depth = 0;
+        do {
+            switch (reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                String prefix = (reader.getPrefix() != null) ? reader.getPrefix() : "";
+                String namespace = (reader.getNamespaceURI() != null) ? reader.getNamespaceURI() : "";
+                writer.writeStartElement(prefix, reader.getLocalName(), namespace);
+                Map<String, String> declared = new HashMap<String, String>();
+                if (depth == 0) {
+                    declared.putAll(inherited);
+                }
+                for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                    String nsPrefix = reader.getNamespacePrefix(i);
+                    declared.put((nsPrefix != null) ? nsPrefix : "", reader.getNamespaceURI(i));
+                }
+                for (Map.Entry<String, String> ns : declared.entrySet()) {
+                    if (ns.getKey().length() == 0) {
+                        writer.writeDefaultNamespace(ns.getValue());
+                    } else {
+                        writer.writeNamespace(ns.getKey(), ns.getValue());
+                    }
+                }
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    String attrNamespace = reader.getAttributeNamespace(i);
+                    if (attrNamespace == null || attrNamespace.length() == 0) {
+                        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    } else {
+                        writer.writeAttribute(reader.getAttributePrefix(i), attrNamespace,
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                }
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                writer.writeEndElement();
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            case XMLStreamConstants.CDATA:
+                writer.writeCData(reader.getText());
+                break;
+            case XMLStreamConstants.COMMENT:
+                writer.writeComment(reader.getText());
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                writer.writeEntityRef(reader.getLocalName());
+                break;
+            default:
+                break;
+            }
+        } while (depth > 0 && reader.hasNext() && reader.next() > 0);
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Retrieves the SOAPAction HTTP header of the current request.
+     *
+     * @param context The message context.
+     * @return The SOAPAction or null.
+     */
+    @SuppressWarnings("unchecked")
+    public static String getSOAPAction(final MessageContext context) {
+        if (context != null) {
+            Map<String, List<String>> headers = (Map<String, List<String>>) context.get(MessageContext.HTTP_REQUEST_HEADERS);
+            if (headers != null) {
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    if (SOAP_ACTION.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                        return header.getValue().get(0);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the angle brackets around a Content-ID.
+     * @param contentId the Content-ID, may be null
+     * @return the bare Content-ID
+     */
+    public static String stripContentId(final String contentId) {
+        if (contentId == null) {
+            return null;
+        }
+        String id = contentId.trim();
+        if (id.startsWith("<") && id.endsWith(">")) {
+            id = id.substring(1, id.length() - 1);
+        }
+        return id;
     }
 
     /**
@@ -143,6 +571,254 @@ public final class SOAPUtil {
         return faultMsg;
     }
 
+    /**
+     * Serializes a SOAP Message.
+     * @param soapMessage the SOAP Message
+     * @return the serialized message
+     * @throws SOAPException If the message could not be written
+     */
+    public static byte[] toBytes(final SOAPMessage soapMessage) throws SOAPException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            soapMessage.writeTo(out);
+        } catch (IOException ioe) {
+            throw new SOAPException(ioe);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks if a SOAP Message serializes to more bytes than a limit. Serialization
+     * stops as soon as the limit is exceeded.
+     * @param soapMessage the SOAP Message
+     * @param limit the limit in bytes
+     * @return true if the serialized message is larger than the limit
+     * @throws SOAPException If the message could not be written
+     */
+    public static boolean isLargerThan(final SOAPMessage soapMessage, final long limit) throws SOAPException {
+        final LimitedOutputStream out = new LimitedOutputStream(limit);
+        try {
+            soapMessage.writeTo(out);
+        } catch (IOException ioe) {
+            if (!out.isExceeded()) {
+                throw new SOAPException(ioe);
+            }
+        } catch (SOAPException se) {
+            // SAAJ wraps the exception thrown by the stream
+            if (!out.isExceeded()) {
+                throw se;
+            }
+        }
+        return out.isExceeded();
+    }
+
+    /**
+     * Counts the bytes written and fails once a limit is exceeded.
+     */
+    private static final class LimitedOutputStream extends OutputStream {
+        private final long _limit;
+        private long _count;
+
+        private LimitedOutputStream(final long limit) {
+            _limit = limit;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(null, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            _count += len;
+            if (_count > _limit) {
+                throw new IOException("Limit of " + _limit + " bytes exceeded");
+            }
+        }
+
+        private boolean isExceeded() {
+            return _count > _limit;
+        }
+    }
+
+    /**
+     * Creates a SOAP Message from its serialized form.
+     * @param headers the MIME headers
+     * @param content the serialized message
+     * @return the SOAP Message
+     * @throws SOAPException If the message could not be read
+     */
+    public static SOAPMessage createMessage(final MimeHeaders headers, final byte[] content) throws SOAPException {
+        try {
+            return SOAP_MESSAGE_FACTORY.createMessage(headers, new ByteArrayInputStream(content));
+        } catch (IOException ioe) {
+            throw new SOAPException(ioe);
+        }
+    }
+
+    /**
+     * Creates a SOAP Message from its serialized form. The SAAJ tree is built lazily
+     * when the message is first accessed.
+     * @param content the serialized message
+     * @return the SOAP Message
+     * @throws SOAPException If the message could not be read
+     */
+    public static SOAPMessage createMessage(final byte[] content) throws SOAPException {
+        MimeHeaders headers = new MimeHeaders();
+        headers.addHeader("Content-Type", CONTENT_TYPE);
+        return createMessage(headers, content);
+    }
+
+    /**
+     * Reads a Source into a byte array. Stream sources are copied as is, other sources
+     * are serialized.
+     * @param source the Source
+     * @return the serialized content
+     * @throws SOAPException If the source could not be read
+     */
+    public static byte[] toBytes(final Source source) throws SOAPException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(source, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a Source to a stream. Stream sources are copied as is, other sources are
+     * serialized. The target stream is not closed.
+     * @param source the Source
+     * @param out the stream to write to
+     * @throws SOAPException If the source could not be read
+     */
+    public static void copy(final Source source, final OutputStream out) throws SOAPException {
+        try {
+            if (source instanceof StreamSource && ((StreamSource) source).getInputStream() != null) {
+                final InputStream in = ((StreamSource) source).getInputStream();
+                final byte[] buf = new byte[BUFFER_SIZE];
+                int len = in.read(buf);
+                while (len > -1) {
+                    out.write(buf, 0, len);
+                    len = in.read(buf);
+                }
+                in.close();
+            } else {
+                getTransformer().transform(source, new StreamResult(out));
+            }
+        } catch (Exception e) {
+            throw new SOAPException("Unable to read SOAP request", e);
+        }
+    }
+
+    /**
+     * Writes a SOAP envelope Source to a stream and reports the name of its first body
+     * element as soon as it has been read, so that the caller can stop before the rest of
+     * the envelope is read. Stream sources are copied as is while they are inspected, SAX
+     * sources are inspected as they are serialized and DOM sources in place. The target
+     * stream is not closed.
+     * @param source the SOAP envelope
+     * @param out the stream to write to
+     * @param listener the listener receiving the body element name
+     * @return true if the envelope was copied, false if the listener stopped the copy
+     * @throws SOAPException If the source could not be read
+     */
+    public static boolean copyEnvelope(final Source source, final OutputStream out, final BodyElementListener listener)
+        throws SOAPException {
+        try {
+            if (source instanceof StreamSource && ((StreamSource) source).getInputStream() != null) {
+                final InputStream in = ((StreamSource) source).getInputStream();
+                if (!listener.bodyElement(peekBodyElementName(new TeeInputStream(in, out)))) {
+                    in.close();
+                    return false;
+                }
+                copy(source, out);
+                return true;
+            } else if (source instanceof DOMSource) {
+                if (!listener.bodyElement(getBodyElementName(((DOMSource) source).getNode()))) {
+                    return false;
+                }
+                copy(source, out);
+                return true;
+            } else if (source instanceof SAXSource && ((SAXSource) source).getXMLReader() != null) {
+                final BodyElementFilter filter = new BodyElementFilter(((SAXSource) source).getXMLReader(), listener);
+                try {
+                    getTransformer().transform(new SAXSource(filter, ((SAXSource) source).getInputSource()),
+                            new StreamResult(out));
+                } catch (TransformerException te) {
+                    if (!filter.isStopped()) {
+                        throw te;
+                    }
+                    // The transformer was interrupted, do not reuse it
+                    TRANSFORMER.remove();
+                }
+                return !filter.isStopped();
+            }
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            copy(source, buffer);
+            final byte[] envelope = buffer.toByteArray();
+            if (!listener.bodyElement(peekBodyElementName(envelope))) {
+                return false;
+            }
+            out.write(envelope, 0, envelope.length);
+            return true;
+        } catch (SOAPException se) {
+            throw se;
+        } catch (Exception e) {
+            throw new SOAPException("Unable to read SOAP request", e);
+        }
+    }
+
+    /**
+     * Retrieves the qualified name of the first element in the SOAP Body of a DOM envelope.
+     * @param node the SOAP envelope Document or Element
+     * @return The element name or null if the body is empty.
+     */
+    private static QName getBodyElementName(final Node node) {
+        final Node envelope = (node instanceof Document) ? ((Document) node).getDocumentElement() : node;
+        for (Node child = envelope.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && BODY.equals(child.getLocalName())) {
+                for (Node payload = child.getFirstChild(); payload != null; payload = payload.getNextSibling()) {
+                    if (payload.getNodeType() == Node.ELEMENT_NODE) {
+                        return new QName(payload.getNamespaceURI(), payload.getLocalName());
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Transformer of the calling thread. It omits the XML declaration, writes
+     * UTF-8 and reports errors only by throwing them.
+     * @return the Transformer
+     * @throws TransformerException If the Transformer could not be created
+     */
+    private static Transformer getTransformer() throws TransformerException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.setErrorListener(ERROR_LISTENER);
+            TRANSFORMER.set(transformer);
+        }
+        return transformer;
+    }
+
+    /**
+     * Serializes a DOM Element without an XML declaration. Namespaces declared on
+     * ancestors of the element are declared on the element itself.
+     * @param element the Element
+     * @param out the stream to write to
+     * @throws SOAPException If the element could not be serialized
+     */
+    public static void writeElement(final Element element, final OutputStream out) throws SOAPException {
+        try {
+            getTransformer().transform(new DOMSource(element), new StreamResult(out));
+        } catch (TransformerException te) {
+            throw new SOAPException("Unable to serialize element", te);
+        }
+    }
+
     /**
      * Create a new document based on a SOAP Message.
      * @param soapRes the SOAP Message
@@ -164,4 +840,108 @@ public final class SOAPUtil {
         }
         SOAP_MESSAGE_FACTORY = soapMessageFactory;
     }
+
+    /**
+     * Writes every byte read from a stream to another stream.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream _out;
+
+        private TeeInputStream(final InputStream in, final OutputStream out) {
+            super(in);
+            _out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b > -1) {
+                _out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                _out.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Reports the first SOAP body element of a SAX envelope to a BodyElementListener and
+     * ends the parse if the listener stops the copy.
+     */
+    private static final class BodyElementFilter extends XMLFilterImpl {
+        private final BodyElementListener _listener;
+        private int _depth;
+        private boolean _inBody;
+        private boolean _reported;
+        private boolean _stopped;
+
+        private BodyElementFilter(final XMLReader parent, final BodyElementListener listener) {
+            super(parent);
+            _listener = listener;
+        }
+
+        private boolean isStopped() {
+            return _stopped;
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException {
+            if (!_reported) {
+                if (_inBody) {
+                    report(new QName(uri, localName));
+                } else {
+                    _depth++;
+                    // Envelope is at depth 1, Header and Body at depth 2
+                    _inBody = (_depth == 2) && BODY.equals(localName);
+                }
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+            if (!_reported) {
+                if (_inBody) {
+                    report(null);
+                } else {
+                    _depth--;
+                }
+            }
+            super.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            if (!_reported) {
+                report(null);
+            }
+            super.endDocument();
+        }
+
+        private void report(final QName name) throws SAXException {
+            _reported = true;
+            if (!_listener.bodyElement(name)) {
+                _stopped = true;
+                throw new SAXException("Copy stopped at body element " + name);
+            }
+        }
+    }
 }
@@ -22,42 +22,245 @@
  
 package org.switchyard.soap.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.wsdl.Definition;
+import javax.wsdl.Import;
+import javax.wsdl.extensions.schema.Schema;
+import javax.wsdl.extensions.schema.SchemaReference;
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.wsdl.WSDLException;
 import javax.wsdl.factory.WSDLFactory;
 import javax.wsdl.xml.WSDLReader;
 
+import org.xml.sax.InputSource;
+
 /**
  * Contains utility methods to examine/manipulate WSDLs.
  */
 public final class WSDLUtil {
 
+    private static final long REVALIDATE_INTERVAL = 5000;
+    private static final ConcurrentHashMap<String, CachedDefinition> DEFINITIONS = new ConcurrentHashMap<String, CachedDefinition>();
+    private static WSDLFactory _wsdlFactory;
+
     private WSDLUtil() {
     }
 
     /**
-     * Read the WSDL document and create a WSDL Definition.
+     * Read the WSDL document and create a WSDL Definition. Definitions are cached per
+     * resolved URL and shared, callers must not modify them. A cached Definition is re-read
+     * when the WSDL or one of the documents it imports changes: files are checked by their
+     * modification time, HTTP documents are revalidated with a conditional GET at most
+     * every five seconds.
      *
      * @param wsdlLocation location pointing to a WSDL XML definition.
      * @return the Definition.
      * @throws WSDLException If unable to read the WSDL
      */
     public static Definition readWSDL(final String wsdlLocation) throws WSDLException {
-        WSDLFactory wsdlFactory = WSDLFactory.newInstance();
-        WSDLReader reader = wsdlFactory.newWSDLReader();
+        URL url;
+        try {
+            url = getURL(null, wsdlLocation);
+        } catch (MalformedURLException murle) {
+            throw new WSDLException(WSDLException.OTHER_ERROR, "Invalid WSDL location '" + wsdlLocation + "'", murle);
+        }
+        String key = url.toExternalForm();
+        CachedDefinition cached = DEFINITIONS.get(key);
+        if (cached == null) {
+            DEFINITIONS.putIfAbsent(key, new CachedDefinition(url));
+            cached = DEFINITIONS.get(key);
+        }
+        return cached.get();
+    }
+
+    /**
+     * Drops all cached WSDL Definitions.
+     */
+    public static void clearCache() {
+        DEFINITIONS.clear();
+    }
+
+    private static synchronized WSDLReader newWSDLReader() throws WSDLException {
+        if (_wsdlFactory == null) {
+            _wsdlFactory = WSDLFactory.newInstance();
+        }
+        WSDLReader reader = _wsdlFactory.newWSDLReader();
         reader.setFeature("javax.wsdl.verbose", false);
-        return reader.readWSDL(wsdlLocation);
+        return reader;
+    }
+
+    /**
+     * A cached Definition with the validators of the documents it was read from.
+     */
+    private static final class CachedDefinition {
+        private final URL _url;
+        private Definition _definition;
+        private Map<String, Validator> _validators;
+        private long _validated;
+
+        private CachedDefinition(final URL url) {
+            _url = url;
+        }
+
+        private synchronized Definition get() throws WSDLException {
+            if (_definition != null && isCurrent()) {
+                return _definition;
+            }
+            try {
+                if (_definition != null && isUnchanged()) {
+                    _validated = System.currentTimeMillis();
+                    return _definition;
+                }
+                URLConnection connection = _url.openConnection();
+                Definition definition;
+                InputStream in = connection.getInputStream();
+                try {
+                    definition = newWSDLReader().readWSDL(_url.toExternalForm(), new InputSource(in));
+                } finally {
+                    in.close();
+                }
+                Map<String, Validator> validators = new HashMap<String, Validator>();
+                validators.put(_url.toExternalForm(), Validator.read(_url, connection));
+                Set<String> locations = new LinkedHashSet<String>();
+                addLocations(definition, locations);
+                for (String location : locations) {
+                    if (!validators.containsKey(location)) {
+                        validators.put(location, Validator.read(new URL(location)));
+                    }
+                }
+                _definition = definition;
+                _validators = validators;
+                _validated = System.currentTimeMillis();
+                return _definition;
+            } catch (WSDLException we) {
+                throw we;
+            } catch (Exception e) {
+                throw new WSDLException(WSDLException.OTHER_ERROR, "Unable to read WSDL at '" + _url + "'", e);
+            }
+        }
+
+        private boolean isCurrent() {
+            for (Validator validator : _validators.values()) {
+                if (!validator.isCurrent(_validated)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isUnchanged() {
+            for (Validator validator : _validators.values()) {
+                if (!validator.isUnchanged()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The validators of one document a Definition was read from.
+     */
+    private static final class Validator {
+        private final URL _url;
+        private final long _lastModified;
+        private final String _etag;
+
+        private Validator(final URL url, final long lastModified, final String etag) {
+            _url = url;
+            _lastModified = lastModified;
+            _etag = etag;
+        }
+
+        private static Validator read(final URL url, final URLConnection connection) throws Exception {
+            if (isFile(url)) {
+                return new Validator(url, new File(url.toURI()).lastModified(), null);
+            }
+            return new Validator(url, connection.getLastModified(), connection.getHeaderField("ETag"));
+        }
+
+        private static Validator read(final URL url) throws Exception {
+            if (!isHttp(url)) {
+                return read(url, null);
+            }
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setRequestMethod("HEAD");
+                return read(url, connection);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private static boolean isFile(final URL url) {
+            return "file".equals(url.getProtocol());
+        }
+
+        private static boolean isHttp(final URL url) {
+            return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+        }
+
+        private boolean isCurrent(final long validated) {
+            if (isFile(_url)) {
+                return isUnchanged();
+            } else if (isHttp(_url)) {
+                return System.currentTimeMillis() - validated < REVALIDATE_INTERVAL;
+            }
+            // Documents on the class path or in archives do not change
+            return true;
+        }
+
+        private boolean isUnchanged() {
+            if (isFile(_url)) {
+                try {
+                    return new File(_url.toURI()).lastModified() == _lastModified;
+                } catch (Exception e) {
+                    return false;
+                }
+            } else if (!isHttp(_url)) {
+                return true;
+            }
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) _url.openConnection();
+                if (_etag != null) {
+                    connection.setRequestProperty("If-None-Match", _etag);
+                }
+                if (_lastModified > 0) {
+                    connection.setIfModifiedSince(_lastModified);
+                }
+                return connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+            } catch (IOException ioe) {
+                return false;
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
     }
 
     /**
      * Read the WSDL document accessible via the specified
-     * URI into a StreamSource.
+     * URI into a StreamSource. The document is read fully and the
+     * underlying stream closed.
      *
      * @param wsdlURI a URI (can be a filename or URL) pointing to a
      * WSDL XML definition.
@@ -67,8 +270,7 @@ public final class WSDLUtil {
     public static StreamSource getStream(final String wsdlURI) throws WSDLException {
         try {
             URL url = getURL(null, wsdlURI);
-            InputStream inputStream = url.openStream();
-            StreamSource inputSource = new StreamSource(inputStream);
+            StreamSource inputSource = new StreamSource(new ByteArrayInputStream(readBytes(url)));
             inputSource.setSystemId(url.toString());
             return inputSource;
         } catch (Exception e) {
@@ -78,6 +280,81 @@ public final class WSDLUtil {
         }
     }
 
+    /**
+     * Reads the WSDL document and every WSDL and XML Schema document it imports or
+     * includes, for use as Endpoint metadata. Each document is read fully into memory.
+     *
+     * @param wsdlLocation location pointing to a WSDL XML definition.
+     * @return the documents as StreamSources with their system ids, the WSDL first.
+     * @throws WSDLException If unable to read one of the documents
+     */
+    public static List<Source> getMetadata(final String wsdlLocation) throws WSDLException {
+        Set<String> locations = new LinkedHashSet<String>();
+        addLocations(readWSDL(wsdlLocation), locations);
+        List<Source> metadata = new ArrayList<Source>();
+        for (String location : locations) {
+            metadata.add(getStream(location));
+        }
+        return metadata;
+    }
+
+    private static void addLocations(final Definition definition, final Set<String> locations) {
+        if (!locations.add(definition.getDocumentBaseURI())) {
+            return;
+        }
+        for (Object imports : definition.getImports().values()) {
+            for (Object wsdlImport : (List<?>) imports) {
+                Definition imported = ((Import) wsdlImport).getDefinition();
+                if (imported != null && imported.getDocumentBaseURI() != null) {
+                    addLocations(imported, locations);
+                }
+            }
+        }
+        if (definition.getTypes() != null) {
+            for (Object element : definition.getTypes().getExtensibilityElements()) {
+                if (element instanceof Schema) {
+                    addReferences((Schema) element, locations);
+                }
+            }
+        }
+    }
+
+    private static void addReferences(final Schema schema, final Set<String> locations) {
+        List<SchemaReference> references = new ArrayList<SchemaReference>();
+        for (Object imports : schema.getImports().values()) {
+            for (Object schemaImport : (List<?>) imports) {
+                references.add((SchemaReference) schemaImport);
+            }
+        }
+        for (Object include : schema.getIncludes()) {
+            references.add((SchemaReference) include);
+        }
+        for (Object redefine : schema.getRedefines()) {
+            references.add((SchemaReference) redefine);
+        }
+        for (SchemaReference reference : references) {
+            Schema referenced = reference.getReferencedSchema();
+            if (referenced != null && referenced.getDocumentBaseURI() != null
+                    && locations.add(referenced.getDocumentBaseURI())) {
+                addReferences(referenced, locations);
+            }
+        }
+    }
+
+    private static byte[] readBytes(final URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Convert a path/uri to a URL.
      *
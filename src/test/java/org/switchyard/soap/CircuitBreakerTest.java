@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private CircuitBreaker _breaker;
+    private List<CircuitBreaker.State> _transitions;
+
+    @Before
+    public void setUp() throws Exception {
+        _breaker = new CircuitBreaker("test");
+        _breaker.setWindowSize(10);
+        _breaker.setMinimumCalls(4);
+        _breaker.setFailureRateThreshold(50);
+        _breaker.setSlowCallDuration(1000);
+        _breaker.setHalfOpenCalls(2);
+        _transitions = new ArrayList<CircuitBreaker.State>();
+        _breaker.addListener(new CircuitBreaker.Listener() {
+            public void stateChanged(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                _transitions.add(to);
+            }
+        });
+    }
+
+    private void record(boolean success, int count) {
+        for (int i = 0; i < count; i++) {
+            Assert.assertTrue(_breaker.allowRequest());
+            _breaker.record(success, 1);
+        }
+    }
+
+    @Test
+    public void openOnFailureRate() throws Exception {
+        record(false, 3);
+        // Not enough calls to evaluate the rate yet
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+        record(true, 1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+        Assert.assertFalse(_breaker.allowRequest());
+        Assert.assertEquals(1, _transitions.size());
+    }
+
+    @Test
+    public void stayClosedBelowFailureRate() throws Exception {
+        record(true, 3);
+        record(false, 2);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+    }
+
+    @Test
+    public void slideWindow() throws Exception {
+        _breaker.setMinimumCalls(10);
+        record(false, 4);
+        record(true, 6);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+        // The failures drop out of the window while successes keep the rate low
+        record(true, 4);
+        record(false, 4);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+        record(false, 1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+    }
+
+    @Test
+    public void openOnSlowCallRate() throws Exception {
+        _breaker.setSlowCallRateThreshold(50);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(_breaker.allowRequest());
+            _breaker.record(true, 2000);
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+    }
+
+    @Test
+    public void closeAfterProbes() throws Exception {
+        _breaker.setOpenDuration(0);
+        record(false, 4);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+
+        Assert.assertTrue(_breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, _breaker.getState());
+        Assert.assertTrue(_breaker.allowRequest());
+        // Only the configured number of probes are let through
+        Assert.assertFalse(_breaker.allowRequest());
+        _breaker.record(true, 1);
+        _breaker.record(true, 1);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+        Assert.assertEquals(3, _transitions.size());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _transitions.get(2));
+    }
+
+    @Test
+    public void releaseCancelledProbe() throws Exception {
+        _breaker.setOpenDuration(0);
+        record(false, 4);
+        Assert.assertTrue(_breaker.allowRequest());
+        Assert.assertTrue(_breaker.allowRequest());
+        Assert.assertFalse(_breaker.allowRequest());
+        // An abandoned probe gives its slot back without an outcome
+        _breaker.cancelled();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, _breaker.getState());
+        Assert.assertTrue(_breaker.allowRequest());
+        _breaker.record(true, 1);
+        _breaker.record(true, 1);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, _breaker.getState());
+    }
+
+    @Test
+    public void reopenOnFailedProbe() throws Exception {
+        _breaker.setOpenDuration(0);
+        record(false, 4);
+        Assert.assertTrue(_breaker.allowRequest());
+        _breaker.record(false, 1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+    }
+
+    @Test
+    public void rejectWhileOpen() throws Exception {
+        _breaker.setOpenDuration(60000);
+        record(false, 4);
+        Assert.assertFalse(_breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, _breaker.getState());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures bytes on the wire and CPU time of gzip and deflate for SOAP messages of
+ * several sizes, as sent by the CompressionFilter and the outbound Dispatch.
+ */
+public class CompressionBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(CompressionBenchmark.class);
+    private static final int[] ITEMS = {10, 100, 1000, 10000};
+    private static final int WARMUP = 20;
+    private static final long MIN_MEASURE_NANOS = 200000000L;
+    private static final String[] ENCODINGS = {CompressionFilter.GZIP, CompressionFilter.DEFLATE};
+
+    private static byte[] createMessage(int items) {
+        StringBuilder builder = new StringBuilder("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "<test:sayHelloResponse xmlns:test=\"http://test.ws/\">");
+        for (int i = 0; i < items; i++) {
+            builder.append("<return><name>Customer ").append(i).append("</name><status>ACTIVE</status>")
+                .append("<balance>").append(i * 17 % 1000).append(".00</balance></return>");
+        }
+        return builder.append("</test:sayHelloResponse></soap:Body></soap:Envelope>").toString().getBytes();
+    }
+
+    @Test
+    public void compareEncodings() throws Exception {
+        for (int items : ITEMS) {
+            byte[] message = createMessage(items);
+            for (String encoding : ENCODINGS) {
+                byte[] compressed = compress(encoding, message);
+                Assert.assertArrayEquals(message, decompress(encoding, compressed));
+                long compressNanos = measure(encoding, message, true);
+                long decompressNanos = measure(encoding, compressed, false);
+                LOGGER.info(String.format("size=%d bytes encoding=%s wire=%d bytes (%.1f%%) compress=%.1f us decompress=%.1f us",
+                        message.length, encoding, compressed.length, 100.0 * compressed.length / message.length,
+                        compressNanos / 1000.0, decompressNanos / 1000.0));
+                if (items >= 100) {
+                    Assert.assertTrue("Repetitive XML should compress", compressed.length < message.length / 4);
+                }
+            }
+        }
+    }
+
+    private static long measure(String encoding, byte[] input, boolean compress) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            run(encoding, input, compress);
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threadBean.isCurrentThreadCpuTimeSupported();
+        long start = cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+        long wallStart = System.nanoTime();
+        int iterations = 0;
+        do {
+            run(encoding, input, compress);
+            iterations++;
+        } while (System.nanoTime() - wallStart < MIN_MEASURE_NANOS);
+        long end = cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+        return (end - start) / iterations;
+    }
+
+    private static void run(String encoding, byte[] input, boolean compress) throws Exception {
+        if (compress) {
+            compress(encoding, input);
+        } else {
+            decompress(encoding, input);
+        }
+    }
+
+    private static byte[] compress(String encoding, byte[] input) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = CompressionFilter.encode(encoding, bytes);
+        out.write(input);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(String encoding, byte[] input) throws Exception {
+        InputStream in = CompressionFilter.decode(encoding, new ByteArrayInputStream(input));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            bytes.write(buffer, 0, len);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+}
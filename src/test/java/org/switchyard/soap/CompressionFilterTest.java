@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressionFilterTest {
+    private static final byte[] MESSAGE = ("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "<test:sayHelloResponse xmlns:test=\"http://test.ws/\"><return>Hello Jimbo</return></test:sayHelloResponse>"
+                     + "</soap:Body></soap:Envelope>").getBytes();
+
+    private static byte[] compress(String encoding, byte[] input) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = CompressionFilter.encode(encoding, bytes);
+        out.write(input);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(String encoding, byte[] input) throws Exception {
+        InputStream in = CompressionFilter.decode(encoding, new ByteArrayInputStream(input));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            bytes.write(buffer, 0, len);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Assert.assertArrayEquals(MESSAGE, decompress("gzip", compress("gzip", MESSAGE)));
+        Assert.assertArrayEquals(MESSAGE, decompress("x-gzip", compress("gzip", MESSAGE)));
+        Assert.assertArrayEquals(MESSAGE, decompress("deflate", compress("deflate", MESSAGE)));
+        Assert.assertArrayEquals(MESSAGE, decompress("Deflate", compress("DEFLATE", MESSAGE)));
+    }
+
+    @Test
+    public void unsupportedEncoding() throws Exception {
+        Assert.assertNull(CompressionFilter.encode("br", new ByteArrayOutputStream()));
+        Assert.assertNull(CompressionFilter.decode("identity", new ByteArrayInputStream(MESSAGE)));
+    }
+
+    @Test
+    public void negotiate() throws Exception {
+        Assert.assertNull(CompressionFilter.negotiate(null));
+        Assert.assertNull(CompressionFilter.negotiate("identity"));
+        Assert.assertEquals(CompressionFilter.GZIP, CompressionFilter.negotiate("deflate, gzip"));
+        Assert.assertEquals(CompressionFilter.GZIP, CompressionFilter.negotiate("*"));
+        Assert.assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("gzip;q=0, deflate;q=0.5"));
+        Assert.assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+    }
+
+    @Test
+    public void negotiateWildcard() throws Exception {
+        // A * does not override codings that are listed explicitly, in either order
+        Assert.assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("gzip;q=0, *"));
+        Assert.assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("*, gzip;q=0"));
+        Assert.assertEquals(CompressionFilter.DEFLATE, CompressionFilter.negotiate("*;q=0, deflate"));
+        Assert.assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0, *"));
+        Assert.assertNull(CompressionFilter.negotiate("*;q=0"));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.soap.SOAPElement;
+import javax.xml.soap.SOAPMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.switchyard.Message;
+import org.switchyard.MessageBuilder;
+import org.switchyard.soap.util.SOAPUtil;
+
+public class DefaultMessageDecomposerTest {
+    private static final String PAYLOAD = "<test:sayHelloResponse xmlns:test=\"http://test.ws/\"><return>Hello Jimbo</return></test:sayHelloResponse>";
+
+    @Test
+    public void decomposeElement() throws Exception {
+        Message message = MessageBuilder.newInstance().buildMessage();
+        message.setContent(SOAPUtil.parseAsDom(PAYLOAD).getDocumentElement());
+        SOAPMessage soapMessage = new DefaultMessageDecomposer().decompose(message);
+        SOAPElement response = (SOAPElement) soapMessage.getSOAPBody().getChildElements().next();
+        Assert.assertEquals("sayHelloResponse", response.getLocalName());
+        Assert.assertEquals("http://test.ws/", response.getNamespaceURI());
+        Assert.assertEquals("Hello Jimbo", response.getTextContent());
+    }
+
+    @Test
+    public void decomposeSerializedPayload() throws Exception {
+        String envelope = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + PAYLOAD + "</soap:Body></soap:Envelope>";
+        Message message = new StreamingMessageComposer().compose(envelope.getBytes("UTF-8"));
+        SOAPMessage soapMessage = new DefaultMessageDecomposer().decompose(message);
+        SOAPElement response = (SOAPElement) soapMessage.getSOAPBody().getChildElements().next();
+        Assert.assertEquals("Hello Jimbo", response.getTextContent());
+        Assert.assertTrue(message.getContent() instanceof PayloadSource);
+    }
+
+    @Test
+    public void writeEnvelope() throws Exception {
+        Message message = MessageBuilder.newInstance().buildMessage();
+        message.setContent(SOAPUtil.parseAsDom(PAYLOAD).getDocumentElement());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DefaultMessageDecomposer().decompose(message, out);
+        String envelope = out.toString("UTF-8");
+        Assert.assertTrue(envelope, envelope.startsWith("<soap:Envelope"));
+        Assert.assertTrue(envelope, envelope.contains("<return>Hello Jimbo</return>"));
+    }
+}
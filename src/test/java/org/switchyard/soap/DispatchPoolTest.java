@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.File;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.Dispatch;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DispatchPoolTest {
+    private static final String ADDRESS = "http://localhost:48081/HelloWebService";
+
+    private static String _wsdlLocation;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        _wsdlLocation = new File("target/test-classes/HelloWebService.wsdl").toURI().toURL().toExternalForm();
+    }
+
+    @Test
+    public void share() throws Exception {
+        DispatchPool pool = DispatchPool.acquire(_wsdlLocation, ADDRESS, 2);
+        DispatchPool other = DispatchPool.acquire(_wsdlLocation, ADDRESS + "2", 2);
+        try {
+            Assert.assertSame(pool, DispatchPool.acquire(_wsdlLocation, ADDRESS, 2));
+            pool.close();
+            Assert.assertNotSame(pool, other);
+            Assert.assertEquals("HelloWebServicePort", pool.getPort().getName());
+            Assert.assertEquals(2, pool.getIdle());
+        } finally {
+            pool.close();
+            other.close();
+        }
+        // The last reference discards the pool
+        pool = DispatchPool.acquire(_wsdlLocation, ADDRESS, 1);
+        Assert.assertEquals(1, pool.getSize());
+        pool.close();
+    }
+
+    @Test
+    public void borrowTimeout() throws Exception {
+        DispatchPool pool = DispatchPool.acquire(_wsdlLocation, ADDRESS, 1);
+        try {
+            Dispatch<SOAPMessage> dispatch = pool.borrow(1000);
+            Assert.assertEquals(0, pool.getIdle());
+            try {
+                pool.borrow(50);
+                Assert.fail("Expected a timeout, the only Dispatch is borrowed");
+            } catch (SOAPException se) {
+                Assert.assertTrue(se.getMessage(), se.getMessage().startsWith("Timed out after 50ms"));
+            }
+            Assert.assertEquals(1, pool.getTimeoutCount());
+            Assert.assertEquals(2, pool.getBorrowCount());
+            Assert.assertTrue(pool.getMaxWaitMillis() >= 40);
+
+            pool.giveBack(dispatch);
+            Assert.assertSame(dispatch, pool.borrow(50));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test(expected = SOAPException.class)
+    public void unreadableWSDL() throws Exception {
+        DispatchPool.acquire(new File("target/test-classes/Missing.wsdl").toURI().toURL().toExternalForm(), 1);
+    }
+}
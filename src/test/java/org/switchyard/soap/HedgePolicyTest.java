@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HedgePolicyTest {
+
+    @Test
+    public void delayFromPercentile() throws Exception {
+        HedgePolicy policy = new HedgePolicy(95, 5);
+        for (int i = 1; i < 100; i++) {
+            policy.record(i);
+        }
+        // Not enough samples yet
+        Assert.assertEquals(-1, policy.getDelay());
+        policy.record(100);
+        Assert.assertEquals(95, policy.getDelay());
+    }
+
+    @Test
+    public void capHedges() throws Exception {
+        HedgePolicy policy = new HedgePolicy(95, 5);
+        // The budget starts with a burst allowance
+        while (policy.tryHedge()) {
+            policy.requested();
+        }
+        long burst = policy.getHedgeCount();
+        Assert.assertTrue(burst >= 10);
+        for (int i = 0; i < 1000; i++) {
+            policy.requested();
+            policy.tryHedge();
+        }
+        long hedges = policy.getHedgeCount() - burst;
+        Assert.assertTrue("Sent " + hedges + " hedges for 1000 requests", hedges >= 49 && hedges <= 50);
+        Assert.assertTrue(policy.getHedgeRate() < 0.1);
+    }
+
+    @Test
+    public void winRate() throws Exception {
+        HedgePolicy policy = new HedgePolicy(95, 100);
+        Assert.assertEquals(0, policy.getWinRate(), 0.0);
+        policy.requested();
+        Assert.assertTrue(policy.tryHedge());
+        policy.requested();
+        Assert.assertTrue(policy.tryHedge());
+        policy.won();
+        Assert.assertEquals(2, policy.getRequestCount());
+        Assert.assertEquals(1, policy.getWinCount());
+        Assert.assertEquals(0.5, policy.getWinRate(), 0.0);
+        Assert.assertEquals(1, policy.getHedgeRate(), 0.0);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadBalancerTest {
+    private static final long UNHEALTHY_DURATION = 60000;
+
+    private final Backend _first = new Backend("http://localhost:48081/first", null, 2, UNHEALTHY_DURATION);
+    private final Backend _second = new Backend("http://localhost:48081/second", null, 2, UNHEALTHY_DURATION);
+    private final List<Backend> _backends = Arrays.asList(_first, _second);
+
+    @Test
+    public void roundRobin() throws Exception {
+        LoadBalancer loadBalancer = new RoundRobinLoadBalancer();
+        Assert.assertSame(_first, loadBalancer.select(_backends));
+        Assert.assertSame(_second, loadBalancer.select(_backends));
+        Assert.assertSame(_first, loadBalancer.select(_backends));
+    }
+
+    @Test
+    public void leastOutstanding() throws Exception {
+        LoadBalancer loadBalancer = new LeastOutstandingLoadBalancer();
+        _first.started();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(_second, loadBalancer.select(_backends));
+        }
+        _second.started();
+        _second.started();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(_first, loadBalancer.select(_backends));
+        }
+        Assert.assertSame(_first, loadBalancer.select(Arrays.asList(_first)));
+    }
+
+    @Test
+    public void ewma() throws Exception {
+        LoadBalancer loadBalancer = new EwmaLoadBalancer();
+        _first.started();
+        _first.completed(true, 100);
+        _second.started();
+        _second.completed(true, 10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(_second, loadBalancer.select(_backends));
+        }
+        // Outstanding calls outweigh the lower latency
+        for (int i = 0; i < 10; i++) {
+            _second.started();
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(_first, loadBalancer.select(_backends));
+        }
+    }
+
+    @Test
+    public void latency() throws Exception {
+        Assert.assertEquals(0, _first.getLatency(), 0.0);
+        _first.started();
+        _first.completed(true, 100);
+        Assert.assertEquals(100, _first.getLatency(), 0.001);
+        _first.started();
+        _first.completed(true, 200);
+        Assert.assertEquals(130, _first.getLatency(), 0.001);
+        // Failed calls do not count
+        _first.started();
+        _first.completed(false, 1);
+        Assert.assertEquals(130, _first.getLatency(), 0.001);
+        Assert.assertEquals(0, _first.getOutstanding());
+    }
+
+    @Test
+    public void unhealthy() throws Exception {
+        _first.started();
+        _first.completed(false, 1);
+        _first.started();
+        _first.completed(true, 1);
+        _first.started();
+        _first.completed(false, 1);
+        // A success in between resets the consecutive failures
+        Assert.assertTrue(_first.isHealthy());
+        _first.started();
+        _first.completed(false, 1);
+        Assert.assertFalse(_first.isHealthy());
+        _first.started();
+        _first.cancelled();
+        Assert.assertEquals(0, _first.getOutstanding());
+    }
+}
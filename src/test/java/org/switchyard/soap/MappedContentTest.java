@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MappedContentTest {
+    private static final byte[] CONTENT = "<test:sayHello xmlns:test=\"http://test.ws/\"/>".getBytes();
+
+    private static File createFile() throws Exception {
+        File file = File.createTempFile("switchyard-test", ".xml");
+        OutputStream out = new FileOutputStream(file);
+        out.write(CONTENT);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void delete() throws Exception {
+        File file = createFile();
+        MappedContent content = new MappedContent(file);
+        Assert.assertEquals(CONTENT.length, content.getSize());
+        Assert.assertArrayEquals(CONTENT, content.toByteArray());
+        content.delete();
+        Assert.assertTrue(content.isDeleted());
+        Assert.assertFalse(file.exists());
+        // Deleting twice is harmless
+        content.delete();
+    }
+
+    @Test
+    public void deleteWhenRead() throws Exception {
+        File file = createFile();
+        MappedContent content = new MappedContent(file);
+        InputStream in = content.getReleasingInputStream();
+        while (in.read() > -1) {
+            Assert.assertTrue(file.exists());
+        }
+        Assert.assertTrue(content.isDeleted());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void deleteUnreleasedContent() throws Exception {
+        File file = createFile();
+        new MappedContent(file).toByteArray();
+        for (int i = 0; i < 100 && file.exists(); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assert.assertFalse("Temporary file of collected content was not removed", file.exists());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.switchyard.Message;
+import org.switchyard.soap.util.SOAPUtil;
+
+import org.w3c.dom.Element;
+
+/**
+ * Measures allocation per request of a pass-through service for the default and
+ * the streaming composer.
+ */
+public class MessageComposerBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(MessageComposerBenchmark.class);
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+    private static final int ITEMS = 200;
+
+    private interface PassThrough {
+        void run() throws Exception;
+    }
+
+    private static byte[] createRequest() {
+        StringBuilder builder = new StringBuilder("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "<test:sayHello xmlns:test=\"http://test.ws/\">");
+        for (int i = 0; i < ITEMS; i++) {
+            builder.append("<arg0>Item number ").append(i).append("</arg0>");
+        }
+        return builder.append("</test:sayHello></soap:Body></soap:Envelope>").toString().getBytes();
+    }
+
+    @Test
+    public void passThroughAllocation() throws Exception {
+        final byte[] request = createRequest();
+        final DefaultMessageComposer defaultComposer = new DefaultMessageComposer();
+        final StreamingMessageComposer streamingComposer = new StreamingMessageComposer();
+
+        long defaultBytes = measure("default", new PassThrough() {
+            public void run() throws Exception {
+                Message message = defaultComposer.compose(SOAPUtil.createMessage(request));
+                Assert.assertEquals("sayHello", message.getContent(Element.class).getLocalName());
+            }
+        });
+        long streamingBytes = measure("streaming", new PassThrough() {
+            public void run() throws Exception {
+                Message message = streamingComposer.compose(request);
+                Assert.assertTrue(message.getContent(PayloadSource.class).getBytes().length > 0);
+            }
+        });
+        if (defaultBytes > 0 && streamingBytes > 0) {
+            Assert.assertTrue("Streaming composer allocated more than the default composer", streamingBytes < defaultBytes);
+        }
+    }
+
+    private long measure(String name, PassThrough passThrough) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            passThrough.run();
+        }
+        long start = allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            passThrough.run();
+        }
+        time = System.nanoTime() - time;
+        long perRequest = (start >= 0) ? (allocatedBytes() - start) / ITERATIONS : -1;
+        LOGGER.info(String.format("composer=%s allocated=%d bytes/request time=%.1f us/request",
+                name, perRequest, time / 1000.0 / ITERATIONS));
+        return perRequest;
+    }
+
+    private static long allocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (Throwable th) {
+            // Not supported by this JVM
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.soap.SOAPException;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OutboundHandlerTest {
+    private static String _wsdlLocation;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        _wsdlLocation = new File("target/test-classes/HelloWebService.wsdl").toURI().toURL().toExternalForm();
+    }
+
+    private static HashMap<String, String> config(String... settings) {
+        HashMap<String, String> config = new HashMap<String, String>();
+        config.put("remoteWSDL", _wsdlLocation);
+        for (int i = 0; i < settings.length; i += 2) {
+            config.put(settings[i], settings[i + 1]);
+        }
+        return config;
+    }
+
+    @Test
+    public void configureCircuitBreakerAndBulkhead() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config("maxConcurrentCalls", "2",
+                "circuitMinimumCalls", "1", "circuitFailureRate", "100"));
+        try {
+            Backend backend = handler.getBackends().get(0);
+            Throttle bulkhead = backend.getBulkhead();
+            Assert.assertEquals(2, bulkhead.getMaxInFlight());
+            Assert.assertEquals(0, bulkhead.tryAcquire());
+            Assert.assertEquals(0, bulkhead.tryAcquire());
+            Assert.assertTrue(bulkhead.tryAcquire() > 0);
+
+            CircuitBreaker breaker = backend.getCircuitBreaker();
+            Assert.assertEquals(_wsdlLocation, breaker.getName());
+            Assert.assertTrue(breaker.allowRequest());
+            breaker.record(false, 1);
+            Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void unlimitedBulkhead() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config());
+        try {
+            Backend backend = handler.getBackends().get(0);
+            Assert.assertEquals(0, backend.getBulkhead().getMaxInFlight());
+            Assert.assertEquals(CircuitBreaker.State.CLOSED, backend.getCircuitBreaker().getState());
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void circuitBreakerPerAddress() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config("maxConcurrentCalls", "1",
+                "circuitMinimumCalls", "1", "circuitFailureRate", "100",
+                "addresses", "http://localhost:48081/first, http://localhost:48081/second"));
+        try {
+            List<Backend> backends = handler.getBackends();
+            Backend first = backends.get(0);
+            Backend second = backends.get(1);
+            Assert.assertNotSame(first.getCircuitBreaker(), second.getCircuitBreaker());
+            Assert.assertNotSame(first.getBulkhead(), second.getBulkhead());
+            Assert.assertEquals("http://localhost:48081/first", first.getCircuitBreaker().getName());
+
+            first.getCircuitBreaker().allowRequest();
+            first.getCircuitBreaker().record(false, 1);
+            Assert.assertTrue(first.getCircuitBreaker().isOpen());
+            Assert.assertFalse(second.getCircuitBreaker().isOpen());
+            Assert.assertEquals(0, second.getBulkhead().tryAcquire());
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void startEagerly() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config("dispatchPoolSize", "3",
+                "addresses", "http://localhost:48081/first, http://localhost:48081/second"));
+        handler.start();
+        try {
+            List<Backend> backends = handler.getBackends();
+            Assert.assertEquals(2, backends.size());
+            Assert.assertEquals("http://localhost:48081/first", backends.get(0).getAddress());
+            for (Backend backend : backends) {
+                Assert.assertEquals(3, backend.getDispatchPool().getIdle());
+            }
+            Assert.assertSame(backends, handler.getBackends());
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void releasePoolsWhenWarmupFails() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config("warmupRequest", "target/test-classes/Missing.xml"));
+        DispatchPool pool = handler.getDispatchPool();
+        try {
+            handler.start();
+            Assert.fail("Expected the warm-up to fail");
+        } catch (SOAPException se) {
+            // The pool was released and a later start acquires a new one
+            Assert.assertEquals(0, pool.getIdle());
+            Assert.assertNotSame(pool, handler.getDispatchPool());
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test(expected = SOAPException.class)
+    public void failStartWithoutWarmupRequest() throws Exception {
+        OutboundHandler handler = new OutboundHandler(config("warmupRequest", "target/test-classes/Missing.xml"));
+        try {
+            handler.start();
+        } finally {
+            handler.stop();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.switchyard.Message;
+import org.switchyard.soap.util.SOAPUtil;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class PayloadMessageTest {
+    private static final String ENVELOPE = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "<test:sayHello xmlns:test=\"http://test.ws/\"><arg0>Jimbo</arg0></test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+
+    @Test
+    public void streamWithoutMaterializing() throws Exception {
+        Message message = new StreamingMessageComposer().compose(ENVELOPE.getBytes("UTF-8"));
+        Assert.assertTrue(message.getContent() instanceof PayloadSource);
+
+        Source source = message.getContent(Source.class);
+        Assert.assertNotNull(source);
+        XMLStreamReader reader = message.getContent(XMLStreamReader.class);
+        reader.nextTag();
+        Assert.assertEquals("sayHello", reader.getLocalName());
+        // Streaming leaves the serialized payload as content
+        Assert.assertTrue(message.getContent() instanceof PayloadSource);
+        Assert.assertTrue(new String(message.getContent(PayloadSource.class).getBytes(), "UTF-8").contains("Jimbo"));
+    }
+
+    @Test
+    public void passThroughWithoutMaterializing() throws Exception {
+        Message message = new StreamingMessageComposer().compose(ENVELOPE.getBytes("UTF-8"));
+        String envelope = new String(SOAPUtil.toBytes(new DefaultMessageDecomposer().decompose(message)), "UTF-8");
+        Assert.assertTrue(envelope, envelope.contains("<arg0>Jimbo</arg0>"));
+        Assert.assertTrue(message.getContent() instanceof PayloadSource);
+    }
+
+    @Test
+    public void materializeRealElement() throws Exception {
+        Message message = new StreamingMessageComposer().compose(ENVELOPE.getBytes("UTF-8"));
+        Element element = message.getContent(Element.class);
+        Assert.assertEquals("sayHello", element.getLocalName());
+        Assert.assertSame(element, message.getContent(Element.class));
+        Assert.assertSame(element, message.getContent());
+
+        // A real DOM node can be imported into another document
+        Document document = SOAPUtil.parseAsDom("<wrapper/>");
+        document.getDocumentElement().appendChild(document.importNode(element, true));
+        Assert.assertEquals("Jimbo", document.getDocumentElement().getFirstChild().getFirstChild().getTextContent());
+    }
+
+    @Test
+    public void materializedContentIsDecomposedFromDom() throws Exception {
+        Message message = new StreamingMessageComposer().compose(ENVELOPE.getBytes("UTF-8"));
+        Element element = message.getContent(Element.class);
+        element.getFirstChild().setTextContent("Jimmy");
+        String envelope = new String(SOAPUtil.toBytes(new DefaultMessageDecomposer().decompose(message)), "UTF-8");
+        Assert.assertTrue(envelope, envelope.contains("Jimmy"));
+    }
+}
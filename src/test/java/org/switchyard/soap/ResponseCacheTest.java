@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+    private static final long TTL = 60000;
+
+    @Test
+    public void hitAndMiss() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 1024);
+        byte[] response = "response".getBytes();
+        Assert.assertNull(cache.get("sayHello:1"));
+        cache.put("sayHello:1", response, TTL);
+        Assert.assertSame(response, cache.get("sayHello:1"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.0);
+    }
+
+    @Test
+    public void expire() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 1024);
+        cache.put("sayHello:1", "response".getBytes(), -1);
+        Assert.assertNull(cache.get("sayHello:1"));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        ResponseCache cache = new ResponseCache(2, 1024);
+        cache.put("a", "a".getBytes(), TTL);
+        cache.put("b", "b".getBytes(), TTL);
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", "c".getBytes(), TTL);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void limitBytes() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 10);
+        cache.put("a", "aaaaaa".getBytes(), TTL);
+        cache.put("b", "bbbbbb".getBytes(), TTL);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(6, cache.getBytes());
+        // Larger than the whole cache
+        cache.put("c", "ccccccccccc".getBytes(), TTL);
+        Assert.assertNull(cache.get("c"));
+        Assert.assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void replace() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 1024);
+        cache.put("a", "first".getBytes(), TTL);
+        cache.put("a", "second!".getBytes(), TTL);
+        Assert.assertEquals("second!", new String(cache.get("a")));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(7, cache.getBytes());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 1024);
+        cache.put("a", "a".getBytes(), -1, TTL, 0);
+        Assert.assertNull(cache.get("a"));
+        ResponseCache.Entry entry = cache.lookup("a");
+        Assert.assertNotNull(entry);
+        Assert.assertFalse(entry.isFresh());
+        Assert.assertEquals("a", new String(entry.getResponse()));
+        Assert.assertEquals(2, cache.getStaleHits());
+
+        // Only one caller refreshes a stale entry at a time
+        Assert.assertTrue(entry.startRevalidation());
+        Assert.assertFalse(cache.lookup("a").startRevalidation());
+        entry.endRevalidation();
+        Assert.assertTrue(entry.startRevalidation());
+    }
+
+    @Test
+    public void staleIfError() throws Exception {
+        ResponseCache cache = new ResponseCache(10, 1024);
+        cache.put("a", "a".getBytes(), -1, 0, TTL);
+        Assert.assertNull(cache.lookup("a"));
+        Assert.assertEquals("a", new String(cache.getIfError("a")));
+        Assert.assertEquals(1, cache.size());
+
+        cache.put("b", "b".getBytes(), -1, 0, 0);
+        Assert.assertNull(cache.getIfError("b"));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        ResponseCache cache = new ResponseCache(0, 1024);
+        cache.put("a", "a".getBytes(), TTL);
+        Assert.assertNull(cache.get("a"));
+    }
+}
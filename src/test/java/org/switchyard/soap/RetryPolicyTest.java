@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void limitRetries() throws Exception {
+        RetryPolicy policy = new RetryPolicy(2, 50, 1000, new TokenBudget(0.1, 10));
+        Assert.assertEquals(2, policy.getMaxRetries());
+        Assert.assertTrue(policy.tryRetry(0));
+        Assert.assertTrue(policy.tryRetry(1));
+        Assert.assertFalse(policy.tryRetry(2));
+        Assert.assertEquals(2, policy.getRetryCount());
+        Assert.assertEquals(0, policy.getBudgetExhaustedCount());
+    }
+
+    @Test
+    public void backoffWithJitter() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 1000, new TokenBudget(0.1, 10));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(policy.getBackoff(0) < 50);
+            Assert.assertTrue(policy.getBackoff(2) < 200);
+            long backoff = policy.getBackoff(40);
+            Assert.assertTrue(backoff >= 0 && backoff < 1000);
+        }
+    }
+
+    @Test
+    public void exhaustBudget() throws Exception {
+        TokenBudget budget = new TokenBudget(0.5, 2);
+        RetryPolicy policy = new RetryPolicy(10, 50, 1000, budget);
+        Assert.assertTrue(policy.tryRetry(0));
+        Assert.assertTrue(policy.tryRetry(0));
+        Assert.assertFalse(policy.tryRetry(0));
+        Assert.assertEquals(1, policy.getBudgetExhaustedCount());
+
+        // Regular requests earn retries back
+        budget.deposit();
+        Assert.assertFalse(policy.tryRetry(0));
+        budget.deposit();
+        Assert.assertTrue(policy.tryRetry(0));
+        Assert.assertEquals(3, policy.getRetryCount());
+    }
+
+    @Test
+    public void capTokens() throws Exception {
+        TokenBudget budget = new TokenBudget(0.1, 3);
+        Assert.assertEquals(3, budget.getTokens(), 0.0);
+        budget.deposit();
+        Assert.assertEquals(3, budget.getTokens(), 0.0);
+        Assert.assertTrue(budget.tryWithdraw());
+        Assert.assertEquals(2, budget.getTokens(), 0.0);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.namespace.QName;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.switchyard.ServiceDomain;
+import org.switchyard.internal.ServiceDomains;
+
+/**
+ * Compares throughput and p99 latency of the endpoint executor and service modes.
+ */
+public class SOAPGatewayLoadBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(SOAPGatewayLoadBenchmark.class);
+    private static final QName LOAD_TEST_SERVICE = new QName("load-test-service");
+    private static final int CLIENT_THREADS = 20;
+    private static final int NO_OF_REQUESTS = 500;
+
+    private static String _port;
+
+    private class TimedInvoker implements Callable<Long> {
+
+        private URL _url;
+        private int _requestNo;
+
+        public TimedInvoker(URL url, int requestNo) {
+            _url = url;
+            _requestNo = requestNo;
+        }
+
+        public Long call() throws IOException {
+            String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>Request " + _requestNo + "</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+            long start = System.nanoTime();
+            HttpURLConnection con = (HttpURLConnection) _url.openConnection();
+            con.setDoInput(true);
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+            OutputStream outStream = con.getOutputStream();
+            outStream.write(input.getBytes());
+            InputStream inStream = con.getInputStream();
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            byte[] byteBuf = new byte[256];
+            int len = inStream.read(byteBuf);
+            while (len > -1) {
+                byteStream.write(byteBuf, 0, len);
+                len = inStream.read(byteBuf);
+            }
+            outStream.close();
+            inStream.close();
+            long elapsed = System.nanoTime() - start;
+            Assert.assertTrue(byteStream.toString().contains("Hello Request " + _requestNo));
+            return elapsed;
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ServiceDomain domain = ServiceDomains.getDomain();
+        domain.registerService(LOAD_TEST_SERVICE, new SOAPProvider());
+        _port = System.getProperty("org.switchyard.saop.webservice.port");
+        if (_port == null) {
+            _port = "8080";
+        }
+    }
+
+    @Test
+    public void compareExecutors() throws Exception {
+        for (String executor : new String[] {"virtual", "fixed", "forkjoin"}) {
+            HashMap<String, String> config = new HashMap<String, String>();
+            config.put("executor", executor);
+            config.put("poolSize", "16");
+            publishAndRun("executor=" + executor, executor, config);
+        }
+    }
+
+    @Test
+    public void compareServiceModes() throws Exception {
+        for (String mode : new String[] {"message", "payload"}) {
+            HashMap<String, String> config = new HashMap<String, String>();
+            config.put("mode", mode);
+            publishAndRun("mode=" + mode, mode, config);
+        }
+    }
+
+    private void publishAndRun(String name, String context, HashMap<String, String> config) throws Exception {
+        SOAPGateway gateway = new SOAPGateway();
+        config.put("publishAsWS", "true");
+        config.put("wsdlLocation", "target/test-classes/HelloWebService.wsdl");
+        config.put("localService", LOAD_TEST_SERVICE.getLocalPart());
+        config.put("port", _port);
+        config.put("context", context + "/");
+        gateway.init(config);
+        gateway.start();
+        try {
+            run(name, new URL("http://localhost:" + _port + "/" + context + "/HelloWebService"));
+        } finally {
+            gateway.stop();
+            gateway.destroy();
+        }
+    }
+
+    private void run(String name, URL url) throws Exception {
+        Collection<Callable<Long>> callables = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < NO_OF_REQUESTS; i++) {
+            callables.add(new TimedInvoker(url, i));
+        }
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        long start = System.nanoTime();
+        List<Future<Long>> futures = clients.invokeAll(callables);
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+
+        long[] latencies = new long[futures.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = futures.get(i).get();
+        }
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+        double throughput = NO_OF_REQUESTS / (elapsed / 1000000000.0);
+        LOGGER.info(String.format("%s throughput=%.1f req/s p99=%.2f ms", name, throughput, p99 / 1000000.0));
+        Assert.assertEquals(NO_OF_REQUESTS, latencies.length);
+    }
+}
@@ -32,10 +32,13 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.namespace.QName;
 
 import org.junit.Assert;
@@ -58,11 +61,15 @@ import org.w3c.dom.Element;
 public class SOAPGatewayTest {
     private static final QName PUBLISH_AS_WS_SERVICE = new QName("publish-as-ws");
     private static final QName WS_CONSUMER_SERVICE = new QName("webservice-consumer");
+    private static final QName COMPRESSED_CONSUMER_SERVICE = new QName("compressed-webservice-consumer");
+    private static final QName ASYNC_CONSUMER_SERVICE = new QName("async-webservice-consumer");
     private static final int DEFAULT_THREAD_COUNT = 10;
     private static final long DEFAULT_NO_OF_THREADS = 100;
 
+    private static String _port;
     private static URL _serviceURL;
     private static ServiceDomain _domain;
+    private static SOAPProvider _provider;
     private static SOAPGateway _soapInbound;
     private static SOAPGateway _soapOutbound;
     private long _noOfThreads = DEFAULT_NO_OF_THREADS;
@@ -114,8 +121,8 @@ public class SOAPGatewayTest {
     public static void setUp() throws Exception {
         // Provide a switchyard service
         _domain = ServiceDomains.getDomain();
-        SOAPProvider provider = new SOAPProvider();
-        _domain.registerService(PUBLISH_AS_WS_SERVICE, provider);
+        _provider = new SOAPProvider();
+        _domain.registerService(PUBLISH_AS_WS_SERVICE, _provider);
 
         String port = System.getProperty("org.switchyard.saop.webservice.port");
 
@@ -132,6 +139,7 @@ public class SOAPGatewayTest {
         if (port == null) {
             port = "8080";
         }
+        _port = port;
         _serviceURL = new URL("http://localhost:" + port + "/HelloWebService");
 
         // A WS Consumer as Service
@@ -151,6 +159,34 @@ public class SOAPGatewayTest {
         _soapOutbound.destroy();
     }
 
+    /**
+     * Publishes the service on its own context, so that a feature is tested in isolation.
+     */
+    private static SOAPGateway publish(String context, String... settings) {
+        SOAPGateway gateway = new SOAPGateway();
+        HashMap config = new HashMap();
+        config.put("publishAsWS", "true");
+        config.put("wsdlLocation", "target/test-classes/HelloWebService.wsdl");
+        config.put("localService", PUBLISH_AS_WS_SERVICE.getLocalPart());
+        config.put("port", _port);
+        config.put("context", context + "/");
+        for (int i = 0; i < settings.length; i += 2) {
+            config.put(settings[i], settings[i + 1]);
+        }
+        gateway.init(config);
+        gateway.start();
+        return gateway;
+    }
+
+    private static void unpublish(SOAPGateway gateway) {
+        gateway.stop();
+        gateway.destroy();
+    }
+
+    private static URL serviceURL(String context) throws IOException {
+        return new URL("http://localhost:" + _port + "/" + context + "/HelloWebService");
+    }
+
     @Test
     public void invokeOneWay() throws Exception {
         Element input = SOAPUtil.parseAsDom("<test:helloWS xmlns:test=\"http://test.ws/\">"
@@ -212,6 +248,422 @@ public class SOAPGatewayTest {
         Assert.assertTrue("Expected \r\n" + XMLHelper.toString(output) + "\r\nbut was \r\n" + XMLHelper.toString(response), XMLHelper.compareXMLContent(output, response));
     }
 
+    @Test
+    public void invokeUnknownOperation() throws Exception {
+        String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayGoodbye xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>Jimbo</arg0>"
+                     + "   </test:sayGoodbye>"
+                     + "</soap:Body></soap:Envelope>";
+
+        HttpURLConnection con = (HttpURLConnection) _serviceURL.openConnection();
+        con.setDoInput(true);
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+        OutputStream outStream = con.getOutputStream();
+        outStream.write(input.getBytes());
+        outStream.close();
+        Assert.assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, con.getResponseCode());
+        String response = readFully(con.getErrorStream());
+        Assert.assertTrue("Expected an unknown operation fault but was \r\n" + response, response.contains("Unknown operation"));
+    }
+
+    @Test
+    public void fetchWSDLConditionally() throws Exception {
+        URL wsdlURL = new URL(_serviceURL.toExternalForm() + "?wsdl");
+        // The documents are loaded when the endpoint is published, the first fetch has validators
+        HttpURLConnection con = (HttpURLConnection) wsdlURL.openConnection();
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        String etag = con.getHeaderField("ETag");
+        Assert.assertNotNull(etag);
+        Assert.assertNotNull(con.getHeaderField("Last-Modified"));
+        Assert.assertTrue(readFully(con.getInputStream()).contains("HelloWebService"));
+
+        con = (HttpURLConnection) wsdlURL.openConnection();
+        con.setRequestProperty("If-None-Match", etag);
+        Assert.assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, con.getResponseCode());
+    }
+
+    @Test
+    public void invokeCompressed() throws Exception {
+        SOAPGateway gateway = publish("compressed", "compression", "true", "compressionThreshold", "0");
+        try {
+            invokeCompressed(serviceURL("compressed"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private void invokeCompressed(URL serviceURL) throws Exception {
+        String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>Zipped</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+        HttpURLConnection con = (HttpURLConnection) serviceURL.openConnection();
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+        con.setRequestProperty("Content-Encoding", "gzip");
+        con.setRequestProperty("Accept-Encoding", "gzip");
+        OutputStream outStream = new GZIPOutputStream(con.getOutputStream());
+        outStream.write(input.getBytes());
+        outStream.close();
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        Assert.assertEquals("gzip", con.getHeaderField("Content-Encoding"));
+        String response = readFully(new GZIPInputStream(con.getInputStream()));
+        Assert.assertTrue(response.contains("Hello Zipped"));
+    }
+
+    @Test
+    public void rejectMalformedCompressedRequest() throws Exception {
+        SOAPGateway gateway = publish("malformed", "compression", "true");
+        try {
+            HttpURLConnection con = (HttpURLConnection) serviceURL("malformed").openConnection();
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+            con.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream outStream = con.getOutputStream();
+            outStream.write("not gzip".getBytes("US-ASCII"));
+            outStream.close();
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, con.getResponseCode());
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeCompressedConsumer() throws Exception {
+        SOAPGateway gateway = publish("compressed-consumer", "compression", "true", "compressionThreshold", "0");
+        SOAPGateway consumerGateway = new SOAPGateway();
+        try {
+            HashMap config = new HashMap();
+            config.put("remoteWSDL", serviceURL("compressed-consumer").toExternalForm() + "?wsdl");
+            config.put("serviceName", COMPRESSED_CONSUMER_SERVICE.getLocalPart());
+            config.put("compression", "true");
+            config.put("compressionThreshold", "0");
+            consumerGateway.init(config);
+            consumerGateway.start();
+
+            Element input = SOAPUtil.parseAsDom("<test:sayHello xmlns:test=\"http://test.ws/\">"
+                         + "   <arg0>Zipped</arg0>"
+                         + "</test:sayHello>").getDocumentElement();
+            Element output = SOAPUtil.parseAsDom("<test:sayHelloResponse xmlns:test=\"http://test.ws/\">"
+                         + "   <return>Hello Zipped</return>"
+                         + "</test:sayHelloResponse>").getDocumentElement();
+
+            MockHandler consumer = new MockHandler();
+            Exchange exchange = _domain.createExchange(COMPRESSED_CONSUMER_SERVICE, ExchangePattern.IN_OUT, consumer);
+            Message message = MessageBuilder.newInstance().buildMessage();
+            message.setContent(input);
+            exchange.send(message);
+            consumer.waitForMessage();
+            Element response = consumer.getMessages().peek().getMessage().getContent(Element.class);
+            Assert.assertTrue("Expected \r\n" + XMLHelper.toString(output) + "\r\nbut was \r\n" + XMLHelper.toString(response), XMLHelper.compareXMLContent(output, response));
+        } finally {
+            consumerGateway.stop();
+            consumerGateway.destroy();
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeAsyncConsumer() throws Exception {
+        SOAPGateway consumerGateway = new SOAPGateway();
+        try {
+            HashMap config = new HashMap();
+            config.put("remoteWSDL", _serviceURL.toExternalForm() + "?wsdl");
+            config.put("serviceName", ASYNC_CONSUMER_SERVICE.getLocalPart());
+            config.put("async", "true");
+            config.put("maxInFlight", "4");
+            consumerGateway.init(config);
+            consumerGateway.start();
+
+            List<MockHandler> consumers = new ArrayList<MockHandler>();
+            for (int i = 0; i < 8; i++) {
+                Element input = SOAPUtil.parseAsDom("<test:sayHello xmlns:test=\"http://test.ws/\">"
+                             + "   <arg0>Async" + i + "</arg0>"
+                             + "</test:sayHello>").getDocumentElement();
+                MockHandler consumer = new MockHandler();
+                Exchange exchange = _domain.createExchange(ASYNC_CONSUMER_SERVICE, ExchangePattern.IN_OUT, consumer);
+                Message message = MessageBuilder.newInstance().buildMessage();
+                message.setContent(input);
+                exchange.send(message);
+                consumers.add(consumer);
+            }
+            for (int i = 0; i < consumers.size(); i++) {
+                MockHandler consumer = consumers.get(i);
+                consumer.waitForMessage();
+                Element response = consumer.getMessages().peek().getMessage().getContent(Element.class);
+                Assert.assertTrue(XMLHelper.toString(response).contains("Hello Async" + i));
+            }
+        } finally {
+            consumerGateway.stop();
+            consumerGateway.destroy();
+        }
+    }
+
+    @Test
+    public void invokeMtom() throws Exception {
+        SOAPGateway gateway = publish("mtom", "mtom", "true");
+        try {
+            invokeMtom(serviceURL("mtom"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private void invokeMtom(URL serviceURL) throws Exception {
+        String boundary = "uuid:gateway-test";
+        HttpURLConnection con = postWithAttachment(serviceURL, "Attached", boundary);
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        String response = readFully(con.getInputStream());
+        Assert.assertTrue(response.contains("Hello Attached"));
+        // The attachment is handed to the SwitchYard service by its Content-ID
+        byte[] attachment = _provider.getAttachment("photo@test.ws");
+        Assert.assertNotNull("Attachment photo@test.ws was not received by the service", attachment);
+        Assert.assertEquals("binary\r\n--" + boundary.substring(0, 8) + "\r\n", new String(attachment, "US-ASCII"));
+    }
+
+    private static HttpURLConnection postWithAttachment(URL serviceURL, String name, String boundary) throws IOException {
+        String input = "--" + boundary + "\r\n"
+                     + "Content-Type: application/xop+xml; charset=utf-8; type=\"text/xml\"\r\n"
+                     + "Content-ID: <root@test.ws>\r\n\r\n"
+                     + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>" + name + "</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>\r\n"
+                     + "--" + boundary + "\r\n"
+                     + "Content-Type: application/octet-stream\r\n"
+                     + "Content-Transfer-Encoding: binary\r\n"
+                     + "Content-ID: <photo@test.ws>\r\n\r\n"
+                     + "binary\r\n--" + boundary.substring(0, 8) + "\r\n"
+                     + "\r\n--" + boundary + "--\r\n";
+        HttpURLConnection con = (HttpURLConnection) serviceURL.openConnection();
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "multipart/related; type=\"application/xop+xml\"; boundary=\""
+                + boundary + "\"; start=\"<root@test.ws>\"; start-info=\"text/xml\"");
+        OutputStream outStream = con.getOutputStream();
+        outStream.write(input.getBytes("US-ASCII"));
+        outStream.close();
+        return con;
+    }
+
+    @Test
+    public void invokeCached() throws Exception {
+        SOAPGateway gateway = publish("cached", "cache.sayHello", "60000", "mtom", "true");
+        try {
+            URL serviceURL = serviceURL("cached");
+            int invocations = _provider.getInvocationCount();
+            Assert.assertTrue(sayHello(serviceURL, "Cached").contains("Hello Cached"));
+            Assert.assertEquals(invocations + 1, _provider.getInvocationCount());
+            // The identical request is answered from the response cache without an Exchange
+            Assert.assertTrue(sayHello(serviceURL, "Cached").contains("Hello Cached"));
+            Assert.assertEquals(invocations + 1, _provider.getInvocationCount());
+            // Requests with attachments always reach the service
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection con = postWithAttachment(serviceURL, "Cached", "uuid:cache-test");
+                Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+                Assert.assertTrue(readFully(con.getInputStream()).contains("Hello Cached"));
+            }
+            Assert.assertEquals(invocations + 3, _provider.getInvocationCount());
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeChunked() throws Exception {
+        SOAPGateway gateway = publish("chunked", "chunkedResponses", "true");
+        try {
+            invokeChunked(serviceURL("chunked"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private void invokeChunked(URL serviceURL) throws Exception {
+        String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>Chunked</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+        HttpURLConnection con = (HttpURLConnection) serviceURL.openConnection();
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+        OutputStream outStream = con.getOutputStream();
+        outStream.write(input.getBytes("UTF-8"));
+        outStream.close();
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        Assert.assertEquals("chunked", con.getHeaderField("Transfer-Encoding"));
+        String response = readFully(con.getInputStream());
+        Assert.assertTrue(response.contains("Hello Chunked"));
+    }
+
+    @Test
+    public void invokeLargeMessage() throws Exception {
+        SOAPGateway gateway = publish("large", "largeMessageThreshold", "65536");
+        try {
+            invokeLargeMessage(serviceURL("large"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private void invokeLargeMessage(URL serviceURL) throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            name.append("Large").append(i);
+        }
+        String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>" + name + "</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+        HttpURLConnection con = (HttpURLConnection) serviceURL.openConnection();
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+        OutputStream outStream = con.getOutputStream();
+        outStream.write(input.getBytes("UTF-8"));
+        outStream.close();
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        String response = readFully(con.getInputStream());
+        Assert.assertTrue(response.contains("Hello " + name));
+    }
+
+    @Test
+    public void invokeWithExecutors() throws Exception {
+        for (String executor : new String[] {"virtual", "fixed", "forkjoin"}) {
+            SOAPGateway gateway = publish(executor, "executor", executor, "poolSize", "4");
+            try {
+                Assert.assertTrue(sayHello(serviceURL(executor), executor).contains("Hello " + executor));
+            } finally {
+                unpublish(gateway);
+            }
+        }
+    }
+
+    @Test
+    public void invokePayloadMode() throws Exception {
+        SOAPGateway gateway = publish("payload", "mode", "payload");
+        try {
+            Assert.assertTrue(sayHello(serviceURL("payload"), "Payload").contains("Hello Payload"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeAsync() throws Exception {
+        SOAPGateway gateway = publish("async", "async", "true", "timeout.sayHello", "100");
+        try {
+            Assert.assertTrue(sayHello(serviceURL("async"), "Async").contains("Hello Async"));
+            // The timing wheel answers with a fault while the service is still busy
+            HttpURLConnection con = postSayHello(serviceURL("async"), SOAPProvider.SLEEP + "500");
+            Assert.assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, con.getResponseCode());
+            String response = readResponse(con);
+            Assert.assertTrue(response, response.contains("Timed out after 100ms"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeThrottled() throws Exception {
+        SOAPGateway gateway = publish("throttled", "maxInFlight", "1");
+        try {
+            invokeThrottled(serviceURL("throttled"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    @Test
+    public void invokeOperationThrottled() throws Exception {
+        SOAPGateway gateway = publish("op-throttled", "maxInFlight.sayHello", "1");
+        try {
+            invokeThrottled(serviceURL("op-throttled"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private void invokeThrottled(final URL serviceURL) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // The slow call holds the only slot while the second one arrives
+            Future<String> slow = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return sayHello(serviceURL, SOAPProvider.SLEEP + "1000");
+                }
+            });
+            Thread.sleep(300);
+            HttpURLConnection con = postSayHello(serviceURL, "Rejected");
+            Assert.assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, con.getResponseCode());
+            Assert.assertNotNull(con.getHeaderField("Retry-After"));
+            String response = readResponse(con);
+            Assert.assertTrue(response, response.contains("is busy"));
+            Assert.assertTrue(slow.get().contains("Hello " + SOAPProvider.SLEEP));
+            // The slot is free again
+            Assert.assertTrue(sayHello(serviceURL, "Admitted").contains("Hello Admitted"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String sayHello(URL serviceURL, String name) throws IOException {
+        HttpURLConnection con = postSayHello(serviceURL, name);
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, con.getResponseCode());
+        return readFully(con.getInputStream());
+    }
+
+    private static HttpURLConnection postSayHello(URL serviceURL, String name) throws IOException {
+        String input = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+                     + "   <test:sayHello xmlns:test=\"http://test.ws/\">"
+                     + "      <arg0>" + name + "</arg0>"
+                     + "   </test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+        HttpURLConnection con = (HttpURLConnection) serviceURL.openConnection();
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-type", "text/xml; charset=utf-8");
+        OutputStream outStream = con.getOutputStream();
+        outStream.write(input.getBytes("UTF-8"));
+        outStream.close();
+        return con;
+    }
+
+    private static String readResponse(HttpURLConnection con) throws IOException {
+        return readFully((con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) ? con.getErrorStream() : con.getInputStream());
+    }
+
+    @Test
+    public void invokeTimedOut() throws Exception {
+        SOAPGateway gateway = publish("timeout", "timeout.sayHello", "100");
+        try {
+            // The service answers after the operation timeout
+            HttpURLConnection con = postSayHello(serviceURL("timeout"), SOAPProvider.SLEEP + "500");
+            Assert.assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, con.getResponseCode());
+            String response = readResponse(con);
+            Assert.assertTrue(response, response.contains("Timed out after 100ms"));
+            // Answers within the timeout are not affected
+            Assert.assertTrue(sayHello(serviceURL("timeout"), "Punctual").contains("Hello Punctual"));
+        } finally {
+            unpublish(gateway);
+        }
+    }
+
+    private static String readFully(InputStream inStream) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        byte[] byteBuf = new byte[256];
+        int len = inStream.read(byteBuf);
+        while (len > -1) {
+            byteStream.write(byteBuf, 0, len);
+            len = inStream.read(byteBuf);
+        }
+        inStream.close();
+        return byteStream.toString();
+    }
+
     @Test
     public void invokeMultiThreaded() throws Exception {
         String output = null;
@@ -22,6 +22,15 @@
 
 package org.switchyard.soap;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataSource;
+
 import org.switchyard.BaseHandler;
 import org.switchyard.Exchange;
 import org.switchyard.ExchangePattern;
@@ -36,9 +45,30 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 public class SOAPProvider extends BaseHandler {
+    // A name starting with this answers after the number of milliseconds that follows
+    public static final String SLEEP = "Sleep";
+
+    private final Map<String, byte[]> _attachments = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger _invocations = new AtomicInteger();
+
+    public byte[] getAttachment(String contentId) {
+        return _attachments.get(contentId);
+    }
+
+    public int getInvocationCount() {
+        return _invocations.get();
+    }
 
     @Override
     public void handleMessage(Exchange exchange) throws HandlerException {
+        _invocations.incrementAndGet();
+        for (Map.Entry<String, DataSource> attachment : exchange.getMessage().getAttachmentMap().entrySet()) {
+            try {
+                _attachments.put(attachment.getKey(), readFully(attachment.getValue().getInputStream()));
+            } catch (IOException ioe) {
+                throw new HandlerException(ioe);
+            }
+        }
         if (exchange.getPattern().equals(ExchangePattern.IN_OUT)) {
             Message message;
             Element request = exchange.getMessage().getContent(Element.class);
@@ -47,6 +77,13 @@ public class SOAPProvider extends BaseHandler {
             if (name != null) {
                 toWhom = name.getTextContent();
             }
+            if (toWhom.startsWith(SLEEP)) {
+                try {
+                    Thread.sleep(Long.parseLong(toWhom.substring(SLEEP.length())));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             String response = null;
             if (toWhom.length() == 0) {
                 message = MessageBuilder.newInstance(FaultMessage.class).buildMessage();
@@ -73,4 +110,16 @@ public class SOAPProvider extends BaseHandler {
             exchange.send(message);
         }
     }
-}
\ No newline at end of file
+
+    private static byte[] readFully(InputStream inStream) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        byte[] byteBuf = new byte[256];
+        int len = inStream.read(byteBuf);
+        while (len > -1) {
+            byteStream.write(byteBuf, 0, len);
+            len = inStream.read(byteBuf);
+        }
+        inStream.close();
+        return byteStream.toByteArray();
+    }
+}
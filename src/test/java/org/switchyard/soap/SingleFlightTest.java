@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.switchyard.Exchange;
+
+public class SingleFlightTest {
+
+    private static Exchange newExchange() {
+        return (Exchange) Proxy.newProxyInstance(Exchange.class.getClassLoader(), new Class<?>[] {Exchange.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            });
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        Exchange follower = newExchange();
+        SingleFlight.Call call = singleFlight.join("sayHello:1", newExchange());
+        Assert.assertNotNull(call);
+        Assert.assertNull(singleFlight.join("sayHello:1", follower));
+        Assert.assertEquals(1, singleFlight.getInFlight());
+        Assert.assertEquals(1, singleFlight.getCoalescedCount());
+
+        List<Exchange> followers = singleFlight.complete(call);
+        Assert.assertEquals(1, followers.size());
+        Assert.assertSame(follower, followers.get(0));
+        Assert.assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    public void separateKeys() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        SingleFlight.Call first = singleFlight.join("sayHello:1", newExchange());
+        SingleFlight.Call second = singleFlight.join("sayHello:2", newExchange());
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertEquals(2, singleFlight.getInFlight());
+        Assert.assertTrue(singleFlight.complete(first).isEmpty());
+        Assert.assertTrue(singleFlight.complete(second).isEmpty());
+    }
+
+    @Test
+    public void newCallAfterComplete() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        SingleFlight.Call call = singleFlight.join("sayHello:1", newExchange());
+        singleFlight.complete(call);
+        // Completing twice is harmless
+        Assert.assertTrue(singleFlight.complete(call).isEmpty());
+        SingleFlight.Call next = singleFlight.join("sayHello:1", newExchange());
+        Assert.assertNotNull(next);
+        Assert.assertNotSame(call, next);
+        Assert.assertEquals(0, singleFlight.getCoalescedCount());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpooledDataSourceTest {
+    private static final byte[] CONTENT = "binary attachment content".getBytes();
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int b = in.read(); b > -1; b = in.read()) {
+            bytes.write(b);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void keepInMemory() throws Exception {
+        SpooledDataSource source = new SpooledDataSource("photo@test.ws", null, new ByteArrayInputStream(CONTENT), 1024);
+        Assert.assertFalse(source.isSpooled());
+        Assert.assertEquals("application/octet-stream", source.getContentType());
+        Assert.assertEquals(CONTENT.length, source.getSize());
+        Assert.assertArrayEquals(CONTENT, read(source.getInputStream()));
+    }
+
+    @Test
+    public void spoolToFile() throws Exception {
+        SpooledDataSource source = new SpooledDataSource("photo@test.ws", "image/jpeg", new ByteArrayInputStream(CONTENT), 4);
+        Assert.assertTrue(source.isSpooled());
+        Assert.assertArrayEquals(CONTENT, read(source.getInputStream()));
+        Assert.assertArrayEquals(CONTENT, read(source.getInputStream()));
+        source.delete();
+        Assert.assertFalse(source.isSpooled());
+        try {
+            source.getInputStream();
+            Assert.fail("Content was deleted");
+        } catch (IOException ioe) {
+            Assert.assertEquals("Content of photo@test.ws has been deleted", ioe.getMessage());
+        }
+    }
+}
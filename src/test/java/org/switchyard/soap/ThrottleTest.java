@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThrottleTest {
+
+    @Test
+    public void limitInFlight() throws Exception {
+        Throttle throttle = new Throttle(0, 2);
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertTrue(throttle.tryAcquire() > 0);
+        Assert.assertEquals(2, throttle.getInFlight());
+        throttle.release();
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertEquals(2, throttle.getInFlight());
+    }
+
+    @Test
+    public void limitRate() throws Exception {
+        Throttle throttle = new Throttle(5, 0);
+        // The burst is one second worth of requests
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(0, throttle.tryAcquire());
+        }
+        long retryAfter = throttle.tryAcquire();
+        Assert.assertTrue(retryAfter > 0);
+        Assert.assertTrue(retryAfter <= 200);
+    }
+
+    @Test
+    public void rateRejectionIsNotInFlight() throws Exception {
+        Throttle throttle = new Throttle(1, 10);
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertTrue(throttle.tryAcquire() > 0);
+        Assert.assertEquals(1, throttle.getInFlight());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Throttle throttle = new Throttle(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(0, throttle.tryAcquire());
+        }
+    }
+
+    @Test
+    public void changeLimits() throws Exception {
+        Throttle throttle = new Throttle(1, 1);
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertTrue(throttle.tryAcquire() > 0);
+        throttle.setMaxInFlight(0);
+        Assert.assertTrue(throttle.tryAcquire() > 0);
+        throttle.setRate(0);
+        Assert.assertEquals(0, throttle.tryAcquire());
+        Assert.assertEquals(0.0, throttle.getRate(), 0.0);
+        Assert.assertEquals(0, throttle.getMaxInFlight());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+    private TimingWheel _wheel;
+
+    private static class CountDown implements Runnable {
+        private final CountDownLatch _latch;
+
+        CountDown(CountDownLatch latch) {
+            _latch = latch;
+        }
+
+        public void run() {
+            _latch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Small buckets and a short tick so that timeouts wrap around the wheel
+        _wheel = new TimingWheel("timing-wheel-test", 10, 4);
+        _wheel.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _wheel.stop();
+    }
+
+    @Test
+    public void runAfterDelay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = _wheel.schedule(new CountDown(latch), 50);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // The wheel may fire up to one tick early, never before
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+        Assert.assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void runAfterSeveralRounds() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        _wheel.schedule(new CountDown(latch), 200);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        TimingWheel.Timeout timeout = _wheel.schedule(new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        }, 20);
+        timeout.cancel();
+        Assert.assertTrue(timeout.isCancelled());
+
+        CountDownLatch latch = new CountDownLatch(1);
+        _wheel.schedule(new CountDown(latch), 100);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(ran.get());
+    }
+
+    @Test
+    public void failedTaskKeepsWheelRunning() throws Exception {
+        _wheel.schedule(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("Expected by the test");
+            }
+        }, 10);
+        CountDownLatch latch = new CountDownLatch(1);
+        _wheel.schedule(new CountDown(latch), 50);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
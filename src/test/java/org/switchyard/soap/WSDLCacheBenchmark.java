@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.switchyard.soap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.switchyard.ServiceDomain;
+import org.switchyard.internal.ServiceDomains;
+import org.switchyard.soap.util.WSDLUtil;
+
+/**
+ * Measures the start up time of many gateways sharing a few WSDLs, with and without
+ * the shared WSDL Definition cache.
+ */
+public class WSDLCacheBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(WSDLCacheBenchmark.class);
+    private static final QName WSDL_CACHE_SERVICE = new QName("wsdl-cache-service");
+    private static final int NO_OF_WSDLS = 4;
+    private static final int NO_OF_GATEWAYS = 32;
+
+    private static String _port;
+    private static List<String> _wsdlLocations = new ArrayList<String>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ServiceDomain domain = ServiceDomains.getDomain();
+        domain.registerService(WSDL_CACHE_SERVICE, new SOAPProvider());
+        _port = System.getProperty("org.switchyard.saop.webservice.port");
+        if (_port == null) {
+            _port = "8080";
+        }
+        for (int i = 0; i < NO_OF_WSDLS; i++) {
+            File copy = File.createTempFile("HelloWebService" + i, ".wsdl");
+            copy.deleteOnExit();
+            copyFile(new File("target/test-classes/HelloWebService.wsdl"), copy);
+            _wsdlLocations.add(copy.getAbsolutePath());
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        byte[] buffer = new byte[4096];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        out.close();
+    }
+
+    @Test
+    public void compareStartup() throws Exception {
+        long uncached = startGateways("uncached", false);
+        long cached = startGateways("cached", true);
+        LOGGER.info(String.format("%d gateways on %d WSDLs: uncached=%d ms cached=%d ms",
+                NO_OF_GATEWAYS, NO_OF_WSDLS, uncached, cached));
+    }
+
+    private long startGateways(String context, boolean shareDefinitions) throws Exception {
+        WSDLUtil.clearCache();
+        List<SOAPGateway> gateways = new ArrayList<SOAPGateway>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < NO_OF_GATEWAYS; i++) {
+                if (!shareDefinitions) {
+                    WSDLUtil.clearCache();
+                }
+                HashMap<String, String> config = new HashMap<String, String>();
+                config.put("publishAsWS", "true");
+                config.put("wsdlLocation", _wsdlLocations.get(i % NO_OF_WSDLS));
+                config.put("localService", WSDL_CACHE_SERVICE.getLocalPart());
+                config.put("port", _port);
+                config.put("context", context + i + "/");
+                SOAPGateway gateway = new SOAPGateway();
+                gateway.init(config);
+                gateway.start();
+                gateways.add(gateway);
+            }
+            return (System.nanoTime() - start) / 1000000;
+        } finally {
+            for (SOAPGateway gateway : gateways) {
+                gateway.stop();
+                gateway.destroy();
+            }
+        }
+    }
+}
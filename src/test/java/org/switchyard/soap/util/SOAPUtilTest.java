@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+public class SOAPUtilTest {
+    private static final String ENVELOPE = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                     + "<soap:Header><test:id xmlns:test=\"http://test.ws/\">1</test:id></soap:Header><soap:Body>"
+                     + "<test:sayHello xmlns:test=\"http://test.ws/\"><arg0>Jimbo</arg0></test:sayHello>"
+                     + "</soap:Body></soap:Envelope>";
+    private static final QName SAY_HELLO = new QName("http://test.ws/", "sayHello");
+
+    private static class Recorder implements SOAPUtil.BodyElementListener {
+        private final boolean _proceed;
+        private QName _name;
+        private int _calls;
+
+        Recorder(boolean proceed) {
+            _proceed = proceed;
+        }
+
+        public boolean bodyElement(QName name) {
+            _name = name;
+            _calls++;
+            return _proceed;
+        }
+    }
+
+    private static Source streamSource(String envelope) throws Exception {
+        return new StreamSource(new ByteArrayInputStream(envelope.getBytes("UTF-8")));
+    }
+
+    private static Source domSource(String envelope) throws Exception {
+        return new DOMSource(SOAPUtil.parseAsDom(envelope));
+    }
+
+    private static Source saxSource(String envelope) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        return new SAXSource(reader, new InputSource(new ByteArrayInputStream(envelope.getBytes("UTF-8"))));
+    }
+
+    private static void assertCopied(Source source) throws Exception {
+        Recorder recorder = new Recorder(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(SOAPUtil.copyEnvelope(source, out, recorder));
+        Assert.assertEquals(SAY_HELLO, recorder._name);
+        Assert.assertEquals(1, recorder._calls);
+        Assert.assertEquals(SAY_HELLO, SOAPUtil.peekBodyElementName(out.toByteArray()));
+        Assert.assertTrue(out.toString("UTF-8").contains("Jimbo"));
+    }
+
+    private static void assertStopped(Source source) throws Exception {
+        Recorder recorder = new Recorder(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertFalse(SOAPUtil.copyEnvelope(source, out, recorder));
+        Assert.assertEquals(SAY_HELLO, recorder._name);
+        Assert.assertEquals(1, recorder._calls);
+    }
+
+    @Test
+    public void copyStreamSource() throws Exception {
+        assertCopied(streamSource(ENVELOPE));
+        assertStopped(streamSource(ENVELOPE));
+    }
+
+    @Test
+    public void copyDOMSource() throws Exception {
+        assertCopied(domSource(ENVELOPE));
+        assertStopped(domSource(ENVELOPE));
+    }
+
+    @Test
+    public void copySAXSource() throws Exception {
+        assertStopped(saxSource(ENVELOPE));
+        // The serializer of the thread is not left in the interrupted state
+        assertCopied(saxSource(ENVELOPE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SAXSource stopped = (SAXSource) saxSource(ENVELOPE);
+        Assert.assertFalse(SOAPUtil.copyEnvelope(stopped, out, new Recorder(false)));
+        // The payload is not read once the copy has been stopped
+        Assert.assertFalse(out.toString("UTF-8").contains("Jimbo"));
+    }
+
+    @Test
+    public void copyEmptyBody() throws Exception {
+        String empty = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body/></soap:Envelope>";
+        Source[] sources = {streamSource(empty), domSource(empty), saxSource(empty)};
+        for (Source source : sources) {
+            Recorder recorder = new Recorder(true);
+            Assert.assertTrue(SOAPUtil.copyEnvelope(source, new ByteArrayOutputStream(), recorder));
+            Assert.assertNull(recorder._name);
+            Assert.assertEquals(1, recorder._calls);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.switchyard.soap.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.wsdl.Definition;
+import javax.xml.namespace.QName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WSDLUtilTest {
+    private File _wsdl;
+
+    @Before
+    public void setUp() throws Exception {
+        WSDLUtil.clearCache();
+        _wsdl = File.createTempFile("HelloWebService", ".wsdl");
+        copyFile(new File("target/test-classes/HelloWebService.wsdl"), _wsdl);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WSDLUtil.clearCache();
+        _wsdl.delete();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        byte[] buffer = new byte[4096];
+        for (int len = in.read(buffer); len > -1; len = in.read(buffer)) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        out.close();
+    }
+
+    @Test
+    public void readCachedDefinition() throws Exception {
+        Definition definition = WSDLUtil.readWSDL(_wsdl.getAbsolutePath());
+        Assert.assertNotNull(definition.getService(new QName("http://test.ws/", "HelloWebService")));
+        Assert.assertSame(definition, WSDLUtil.readWSDL(_wsdl.getAbsolutePath()));
+    }
+
+    @Test
+    public void rereadModifiedFile() throws Exception {
+        Definition definition = WSDLUtil.readWSDL(_wsdl.getAbsolutePath());
+        Assert.assertTrue(_wsdl.setLastModified(_wsdl.lastModified() - 10000));
+        Assert.assertNotSame(definition, WSDLUtil.readWSDL(_wsdl.getAbsolutePath()));
+    }
+
+    @Test
+    public void rereadModifiedImport() throws Exception {
+        File root = File.createTempFile("HelloImport", ".wsdl", _wsdl.getParentFile());
+        try {
+            OutputStream out = new FileOutputStream(root);
+            out.write(("<definitions targetNamespace=\"http://test.ws/import\" xmlns=\"http://schemas.xmlsoap.org/wsdl/\">"
+                    + "<import namespace=\"http://test.ws/\" location=\"" + _wsdl.getName() + "\"/>"
+                    + "</definitions>").getBytes("UTF-8"));
+            out.close();
+            Definition definition = WSDLUtil.readWSDL(root.getAbsolutePath());
+            Assert.assertSame(definition, WSDLUtil.readWSDL(root.getAbsolutePath()));
+            // Only the imported document changes
+            Assert.assertTrue(_wsdl.setLastModified(_wsdl.lastModified() - 10000));
+            Assert.assertNotSame(definition, WSDLUtil.readWSDL(root.getAbsolutePath()));
+        } finally {
+            root.delete();
+        }
+    }
+
+    @Test
+    public void clearCache() throws Exception {
+        Definition definition = WSDLUtil.readWSDL(_wsdl.getAbsolutePath());
+        WSDLUtil.clearCache();
+        Assert.assertNotSame(definition, WSDLUtil.readWSDL(_wsdl.getAbsolutePath()));
+    }
+}